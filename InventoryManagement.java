@@ -1,14 +1,76 @@
 package NamanDigital;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
     ///Inventory Management System
 
@@ -19,21 +81,45 @@ import java.util.*;
             long id;
             String name;
             String category;
-            int quantity; // current stock
+            volatile int quantity; // current stock; changed only under the item's stripe lock
             double unitPrice;
+            int reorderPoint;      // low on stock at or below this; 0 = no threshold
+            int reserved;          // units held for open orders, in memory only; same lock as quantity
 
             public Item(long id, String name, String category, int quantity, double unitPrice) {
+                this(id, name, category, quantity, unitPrice, 0);
+            }
+
+            public Item(long id, String name, String category, int quantity, double unitPrice, int reorderPoint) {
                 this.id = id;
                 this.name = name;
                 this.category = category;
                 this.quantity = quantity;
                 this.unitPrice = unitPrice;
+                this.reorderPoint = reorderPoint;
             }
+
+            boolean isLowStock() { return reorderPoint > 0 && quantity <= reorderPoint; }
         }
 
         enum TxType { IN, OUT }
 
-        static class Txn {
+        // Read-only access to one transaction. Txn is one; the columnar table hands out a
+        // cursor instead, so callers can walk history without a Txn object per row.
+        interface TxnView {
+            long id();
+            long itemId();
+            TxType type();
+            int quantity();
+            LocalDateTime timestamp();
+            String note();
+
+            default long epochSecond() { return timestamp().toEpochSecond(ZoneOffset.UTC); }
+
+            default Txn toTxn() { return new Txn(id(), itemId(), type(), quantity(), timestamp(), note()); }
+        }
+
+        static class Txn implements TxnView {
             long id;
             long itemId;
             TxType type;
@@ -49,11 +135,19 @@ import java.util.*;
                 this.timestamp = timestamp;
                 this.note = note;
             }
+
+            public long id() { return id; }
+            public long itemId() { return itemId; }
+            public TxType type() { return type; }
+            public int quantity() { return quantity; }
+            public LocalDateTime timestamp() { return timestamp; }
+            public String note() { return note; }
+            @Override public Txn toTxn() { return this; }
         }
 
         static class User {
             String username;
-            String passwordHash; // SHA-256 hex
+            volatile String passwordHash; // SHA-256 hex
 
             User(String username, String passwordHash) {
                 this.username = username;
@@ -62,30 +156,121 @@ import java.util.*;
         }
 
         // ====== SIMPLE CSV STORAGE ======
-        static class CsvStore {
+        // SNAPSHOT rewrites items.csv on every change; JOURNAL appends each change to
+        // items.journal and folds it into items.csv once enough entries pile up.
+        enum ItemPersistence { SNAPSHOT, JOURNAL }
+
+        // Where items, transactions and users are kept: one data directory (CsvStore), or
+        // several with items and their transactions split between them (ShardedStore). The
+        // services only see this; tuning knobs stay on CsvStore.
+        interface Store {
+            Path baseDir();
+            void initIfNeeded();
+            void close();
+
+            List<Item> loadItems();
+            // `all` is every item, read only when a full rewrite is due
+            void saveItem(Item it, Collection<Item> all);
+            void saveItems(Collection<Item> changed, Collection<Item> all);
+            void removeItem(long id, Collection<Item> all);
+            void compactItems(Collection<Item> all);
+
+            YearMonth activeMonth();
+            NavigableMap<YearMonth, TxnSegment> txnSegments();
+            long maxTxnId();
+            long txnCount();
+            List<Txn> loadSegment(YearMonth month);
+            void appendTxn(Txn tx);
+            void appendTxns(List<Txn> txns);
+            void rollTxnLog(YearMonth month);
+
+            // Quantities at the start of `month` (see TransactionService.stockAsOf); null if
+            // none was saved.
+            StockLevels loadCheckpoint(YearMonth month);
+            void saveCheckpoint(YearMonth month, StockLevels levels);
+            // Forgets the checkpoints of `from` and every later month.
+            void dropCheckpoints(YearMonth from);
+            // Stock changes that aren't transactions (see StockAdjustment), oldest first.
+            List<StockAdjustment> loadAdjustments();
+            void appendAdjustment(StockAdjustment a);
+
+            List<User> loadUsers();
+            void saveUsers(List<User> users);
+
+            void writeSnapshot(List<Item> items, YearMonth month, Consumer<Consumer<? super TxnView>> txns, List<User> users);
+
+            // A ShardedStore if `dir` holds a sharded layout (see ShardedStore.reshard), else a
+            // CsvStore; `settings` is applied to every CsvStore before it is used.
+            static Store open(String dir, ItemPersistence itemPersistence, Consumer<CsvStore> settings) {
+                if (Files.exists(Paths.get(dir).resolve(ShardedStore.LAYOUT_FILE))) return new ShardedStore(dir, itemPersistence, settings);
+                CsvStore store = new CsvStore(dir, itemPersistence);
+                settings.accept(store);
+                return store;
+            }
+        }
+
+        static class CsvStore implements Store {
+            static final String ITEMS_HEADER = "id,name,category,quantity,unitPrice,reorderPoint";
+            static final String TXNS_HEADER = "id,itemId,type,quantity,timestamp,note";
+            static final int DEFAULT_COMPACT_EVERY = 10_000;
+
             final Path baseDir;
             final Path itemsCsv;
-            final Path txnsCsv;
+            final Path itemsJournal;
+            final Path txnsCsv;  // the single-file log from before segments; migrated on first use
+            final Path txnDir;   // one yyyy-MM.csv segment per month, see TxnSegment
             final Path usersCsv;
-            final DateTimeFormatter TS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            final Path adjustmentsCsv; // stock changes that aren't transactions, see StockAdjustment
+            final Path snapshotBin;
+            static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            final ItemPersistence itemPersistence;
+            int compactEvery = DEFAULT_COMPACT_EVERY;
+            boolean syncJournal = false; // force each journal entry to disk, not just to the OS
+
+            Durability txnDurability = Durability.OS_BUFFERED;
+            long groupCommitWindowMicros = 0; // how long the writer waits for more appends before flushing
+            long parallelLoadMinBytes = 8L << 20;
+            boolean preferSnapshot = true;    // load from snapshot.bin when it matches the CSV files
+            boolean holdsUsers = true;        // false for the shards of a ShardedStore other than the first
 
-            CsvStore(String dir) {
+            private FileChannel journal;
+            private int journalEntries;
+            private FileChannel adjustmentsLog; // open from the first append
+            private TxnLogWriter txnLog;      // appends to the active month's segment
+            // shared by appends to the active segment, exclusive while its writer is switched or
+            // closed; taken before the store's monitor
+            private final ReentrantReadWriteLock txnLogLock = new ReentrantReadWriteLock();
+            private volatile YearMonth activeMonth = YearMonth.now();
+            private final ConcurrentSkipListMap<YearMonth, TxnSegment> segments = new ConcurrentSkipListMap<>();
+            private final Object segmentLock = new Object(); // guards segment discovery and creation
+            private boolean segmentsScanned;
+            private SnapshotFile.Contents snapshot;
+            private boolean snapshotChecked;
+
+            CsvStore(String dir) { this(dir, ItemPersistence.SNAPSHOT); }
+
+            CsvStore(String dir, ItemPersistence itemPersistence) {
                 this.baseDir = Paths.get(dir);
                 this.itemsCsv = baseDir.resolve("items.csv");
+                this.itemsJournal = baseDir.resolve("items.journal");
                 this.txnsCsv = baseDir.resolve("transactions.csv");
+                this.txnDir = baseDir.resolve("transactions");
                 this.usersCsv = baseDir.resolve("users.csv");
+                this.adjustmentsCsv = baseDir.resolve("stock-adjustments.csv");
+                this.snapshotBin = baseDir.resolve("snapshot.bin");
+                this.itemPersistence = itemPersistence;
+                Metrics.gauge("itemJournalEntries", () -> journalEntries);
             }
 
-            void initIfNeeded() {
+            public Path baseDir() { return baseDir; }
+
+            public void initIfNeeded() {
                 try {
                     if (!Files.exists(baseDir)) Files.createDirectories(baseDir);
                     if (!Files.exists(itemsCsv)) {
-                        Files.write(itemsCsv, Collections.singletonList("id,name,category,quantity,unitPrice"), StandardCharsets.UTF_8);
-                    }
-                    if (!Files.exists(txnsCsv)) {
-                        Files.write(txnsCsv, Collections.singletonList("id,itemId,type,quantity,timestamp,note"), StandardCharsets.UTF_8);
+                        Files.write(itemsCsv, Collections.singletonList(ITEMS_HEADER), StandardCharsets.UTF_8);
                     }
-                    if (!Files.exists(usersCsv)) {
+                    if (holdsUsers && !Files.exists(usersCsv)) {
                         Files.write(usersCsv, Collections.singletonList("username,passwordHash"), StandardCharsets.UTF_8);
                         // create default admin/admin123
                         String hash = SecurityUtil.sha256Hex("admin123");
@@ -96,521 +281,5844 @@ import java.util.*;
                 }
             }
 
+            public void close() {
+                txnLogLock.writeLock().lock();
+                try {
+                    synchronized (this) {
+                        if (txnLog != null) { txnLog.close(); txnLog = null; }
+                        for (TxnSegment seg : segments.values()) seg.writeMetaIfChanged();
+                        try {
+                            if (journal != null) { journal.close(); journal = null; }
+                            if (adjustmentsLog != null) { adjustmentsLog.close(); adjustmentsLog = null; }
+                        } catch (IOException e) { throw new RuntimeException(e); }
+                    }
+                } finally { txnLogLock.writeLock().unlock(); }
+            }
+
             // --- Items ---
-            List<Item> loadItems() {
-                List<Item> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(itemsCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        long id = Long.parseLong(p[0]);
-                        String name = p[1];
-                        String cat = p[2];
-                        int qty = Integer.parseInt(p[3]);
-                        double price = Double.parseDouble(p[4]);
-                        list.add(new Item(id, name, cat, qty, price));
+            // Reads the items.csv snapshot, then replays any journal entries written after it.
+            public List<Item> loadItems() {
+                long t0 = Metrics.start();
+                try {
+                    SnapshotFile.Contents snap = snapshot();
+                    if (snap != null && snap.items != null) {
+                        List<Item> list = snap.items;
+                        snap.items = null;
+                        journalEntries = snap.journalEntries;
+                        return list;
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                return list;
+                    Map<Long, Item> byId = new LinkedHashMap<>();
+                    try (CsvReader r = new CsvReader(itemsCsv)) {
+                        boolean first = true;
+                        while (r.next()) {
+                            if (first) { first = false; continue; }
+                            if (r.tokens().isBlank()) continue;
+                            Item it = parseItem(r.tokens(), 0);
+                            byId.put(it.id, it);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    replayJournal(byId);
+                    return new ArrayList<>(byId.values());
+                } finally { Metrics.LOAD_ITEMS.stop(t0); }
             }
 
-            void saveItems(List<Item> items) {
-                List<String> lines = new ArrayList<>();
-                lines.add("id,name,category,quantity,unitPrice");
-                for (Item it : items) {
-                    lines.add(String.join(",",
-                            String.valueOf(it.id),
-                            esc(it.name),
-                            esc(it.category),
-                            String.valueOf(it.quantity),
-                            String.valueOf(it.unitPrice)));
-                }
-                try { Files.write(itemsCsv, lines, StandardCharsets.UTF_8); }
-                catch (IOException e) { throw new RuntimeException(e); }
+            synchronized void saveItems(Collection<Item> items) {
+                long t0 = Metrics.start();
+                try {
+                    List<String> lines = new ArrayList<>();
+                    lines.add(ITEMS_HEADER);
+                    for (Item it : items) lines.add(itemLine(it));
+                    try {
+                        Path tmp = itemsCsv.resolveSibling(itemsCsv.getFileName() + ".tmp");
+                        Files.write(tmp, lines, StandardCharsets.UTF_8);
+                        Files.move(tmp, itemsCsv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        // the snapshot now covers everything the journal held
+                        if (journal != null) journal.truncate(0);
+                        else Files.deleteIfExists(itemsJournal);
+                        journalEntries = 0;
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                } finally { Metrics.SAVE_ITEMS.stop(t0); }
             }
 
-            // --- Transactions ---
-            List<Txn> loadTxns() {
-                List<Txn> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(txnsCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        long id = Long.parseLong(p[0]);
-                        long itemId = Long.parseLong(p[1]);
-                        TxType t = TxType.valueOf(p[2]);
-                        int qty = Integer.parseInt(p[3]);
-                        LocalDateTime ts = LocalDateTime.parse(p[4], TS);
-                        String note = p.length > 5 ? unesc(p[5]) : "";
-                        list.add(new Txn(id, itemId, t, qty, ts, note));
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                return list;
+            // Persists one created or changed item; `all` is only read when a full rewrite is due.
+            public synchronized void saveItem(Item it, Collection<Item> all) {
+                if (itemPersistence == ItemPersistence.SNAPSHOT) { saveItems(all); return; }
+                appendJournal("P," + itemLine(it) + "\n", 1, all);
+            }
+
+            // Persists several changed items with one snapshot rewrite or one journal write.
+            public synchronized void saveItems(Collection<Item> changed, Collection<Item> all) {
+                if (changed.isEmpty()) return;
+                if (itemPersistence == ItemPersistence.SNAPSHOT) { saveItems(all); return; }
+                StringBuilder entries = new StringBuilder();
+                for (Item it : changed) entries.append("P,").append(itemLine(it)).append('\n');
+                appendJournal(entries.toString(), changed.size(), all);
+            }
+
+            public synchronized void removeItem(long id, Collection<Item> all) {
+                if (itemPersistence == ItemPersistence.SNAPSHOT) { saveItems(all); return; }
+                appendJournal("D," + id + "\n", 1, all);
+            }
+
+            // Folds the journal into a fresh items.csv snapshot.
+            public synchronized void compactItems(Collection<Item> all) {
+                if (journalEntries > 0 || Files.exists(itemsJournal)) saveItems(all);
             }
 
-            void appendTxn(Txn tx) {
-                String line = String.join(",",
-                        String.valueOf(tx.id),
-                        String.valueOf(tx.itemId),
-                        tx.type.name(),
-                        String.valueOf(tx.quantity),
-                        tx.timestamp.format(TS),
-                        esc(tx.note));
+            // `entries` holds `count` newline-terminated entries, written with one call.
+            private void appendJournal(String entries, int count, Collection<Item> all) {
+                long t0 = Metrics.start();
                 try {
-                    Files.write(txnsCsv, Collections.singletonList(line), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
-                } catch (IOException e) { throw new RuntimeException(e); }
+                    try {
+                        if (journal == null) {
+                            journal = FileChannel.open(itemsJournal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                        }
+                        ByteBuffer buf = ByteBuffer.wrap(entries.getBytes(StandardCharsets.UTF_8));
+                        while (buf.hasRemaining()) journal.write(buf);
+                        if (syncJournal) journal.force(false);
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    journalEntries += count;
+                    if (journalEntries >= compactEvery) saveItems(all);
+                } finally { Metrics.APPEND_JOURNAL.stop(t0); }
             }
 
-            // --- Users ---
-            List<User> loadUsers() {
-                List<User> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(usersCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        list.add(new User(p[0], p[1]));
+            // Entries are full item states or deletes, so replaying a journal over a snapshot
+            // that already contains some of its entries is harmless. A torn last entry left by
+            // a crash (unparseable, or missing its newline) is cut off so later appends start
+            // on a clean line.
+            private void replayJournal(Map<Long, Item> byId) {
+                if (!Files.exists(itemsJournal)) return;
+                long validBytes = 0;
+                int entries = 0;
+                try (CsvReader r = new CsvReader(itemsJournal)) {
+                    while (r.next()) {
+                        if (!r.terminated()) break;
+                        CsvTokenizer e = r.tokens();
+                        if (!e.isBlank()) {
+                            try {
+                                if (e.isChar(0, 'P')) { Item it = parseItem(e, 1); byId.put(it.id, it); }
+                                else if (e.isChar(0, 'D')) byId.remove(e.longAt(1));
+                                else throw new IllegalArgumentException("Unknown journal entry: " + e.text(0));
+                            } catch (RuntimeException ex) {
+                                break;
+                            }
+                            entries++;
+                        }
+                        validBytes = r.recordEnd();
                     }
                 } catch (IOException e) { throw new RuntimeException(e); }
-                return list;
+                try {
+                    long size = Files.size(itemsJournal);
+                    if (validBytes < size) {
+                        try (FileChannel ch = FileChannel.open(itemsJournal, StandardOpenOption.WRITE)) { ch.truncate(validBytes); }
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                journalEntries = entries;
             }
 
-            void saveUsers(List<User> users) {
-                List<String> lines = new ArrayList<>();
-                lines.add("username,passwordHash");
-                for (User u : users) lines.add(u.username + "," + u.passwordHash);
-                try { Files.write(usersCsv, lines, StandardCharsets.UTF_8); }
-                catch (IOException e) { throw new RuntimeException(e); }
+            static Item parseItem(CsvTokenizer p, int off) {
+                long id = p.longAt(off);
+                String name = p.text(off + 1);
+                String cat = p.text(off + 2);
+                int qty = p.intAt(off + 3);
+                double price = p.doubleAt(off + 4);
+                int reorder = p.fields() > off + 5 ? p.intAt(off + 5) : 0; // absent in files written before thresholds
+                return new Item(id, name, cat, qty, price, reorder);
             }
 
-            // --- CSV Helpers ---
-            private static String esc(String s) {
-                if (s == null) return "";
-                boolean needQuotes = s.contains(",") || s.contains("\"") || s.contains("\n");
-                String t = s.replace("\"", "\"\"");
-                return needQuotes ? "\"" + t + "\"" : t;
+            static String itemLine(Item it) {
+                StringBuilder sb = new StringBuilder(64).append(it.id).append(',');
+                esc(sb, it.name).append(',');
+                esc(sb, it.category).append(',');
+                return sb.append(it.quantity).append(',').append(it.unitPrice).append(',').append(it.reorderPoint).toString();
             }
-            private static String unesc(String s) {
-                if (s.startsWith("\"") && s.endsWith("\"")) {
-                    String inner = s.substring(1, s.length()-1);
-                    return inner.replace("\"\"", "\"");
+
+            // --- Transactions ---
+            // The log is split into monthly segments under transactions/. Only the active month
+            // (the current one) is written through the group-commit writer; rows dated in any
+            // other month, which only bulk uploads produce, are appended straight to their
+            // segment. Large segments go through the memory-mapped parallel loader.
+
+            public YearMonth activeMonth() { return activeMonth; }
+
+            // Every segment, oldest first. The first call migrates a single-file
+            // transactions.csv and checks each segment's meta against its file.
+            public NavigableMap<YearMonth, TxnSegment> txnSegments() {
+                synchronized (segmentLock) {
+                    if (!segmentsScanned) {
+                        scanSegments();
+                        segmentsScanned = true;
+                    }
                 }
-                return s;
+                return Collections.unmodifiableNavigableMap(segments);
             }
-            private static String[] splitCsv(String line) {
-                List<String> parts = new ArrayList<>();
-                StringBuilder cur = new StringBuilder();
-                boolean inQuotes = false;
-                for (int i=0;i<line.length();i++) {
-                    char c=line.charAt(i);
-                    if (inQuotes) {
-                        if (c=='"') {
-                            if (i+1<line.length() && line.charAt(i+1)=='"') { cur.append('"'); i++; }
-                            else { inQuotes=false; }
-                        } else cur.append(c);
-                    } else {
-                        if (c=='"') inQuotes=true;
-                        else if (c==',') { parts.add(cur.toString()); cur.setLength(0); }
-                        else cur.append(c);
+
+            public long maxTxnId() {
+                long max = 0;
+                for (TxnSegment seg : txnSegments().values()) max = Math.max(max, seg.maxId());
+                return max;
+            }
+
+            public long txnCount() {
+                long n = 0;
+                for (TxnSegment seg : txnSegments().values()) n += seg.rows();
+                return n;
+            }
+
+            // One month of transactions in file order; empty if the month has no segment.
+            public List<Txn> loadSegment(YearMonth month) {
+                long t0 = Metrics.start();
+                try {
+                    SnapshotFile.Contents snap = snapshot();
+                    if (snap != null && snap.txns != null && month.equals(activeMonth)) {
+                        List<Txn> list = snap.txns;
+                        snap.txns = null;
+                        return list;
                     }
-                }
-                parts.add(cur.toString());
-                return parts.toArray(new String[0]);
+                    TxnSegment seg = txnSegments().get(month);
+                    return seg == null ? new ArrayList<>() : loadTxns(seg.file);
+                } finally { Metrics.LOAD_TXNS.stop(t0); }
             }
-        }
 
-        // ====== SECURITY ======
-        static class SecurityUtil {
-            static String sha256Hex(String input) {
+            // The whole history, segment by segment.
+            List<Txn> loadTxns() {
+                List<Txn> list = new ArrayList<>();
+                for (TxnSegment seg : txnSegments().values()) list.addAll(loadTxns(seg.file));
+                return list;
+            }
+
+            List<Txn> loadTxnsSequential() {
+                List<Txn> list = new ArrayList<>();
+                for (TxnSegment seg : txnSegments().values()) list.addAll(loadTxnsSequential(seg.file));
+                return list;
+            }
+
+            List<Txn> loadTxns(Path file) {
                 try {
-                    MessageDigest md = MessageDigest.getInstance("SHA-256");
-                    byte[] hash = md.digest(input.getBytes(StandardCharsets.UTF_8));
-                    StringBuilder sb = new StringBuilder();
-                    for (byte b : hash) sb.append(String.format("%02x", b));
-                    return sb.toString();
-                } catch (NoSuchAlgorithmException e) {
+                    if (Files.size(file) >= parallelLoadMinBytes) return new ParallelTxnLoader(file).load();
+                } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
+                return loadTxnsSequential(file);
             }
-        }
-
-        // ====== SERVICES ======
-        static class UserService {
-            private final CsvStore store;
-            private List<User> users;
-
-            UserService(CsvStore store) { this.store = store; this.users = store.loadUsers(); }
 
-            boolean authenticate(String username, String password) {
-                String hash = SecurityUtil.sha256Hex(password);
-                for (User u : users) if (u.username.equals(username) && u.passwordHash.equals(hash)) return true;
-                return false;
+            static List<Txn> loadTxnsSequential(Path file) {
+                List<Txn> list = new ArrayList<>();
+                try (CsvReader r = new CsvReader(file)) {
+                    boolean first = true;
+                    while (r.next()) {
+                        if (first) { first = false; continue; }
+                        if (r.tokens().isBlank()) continue;
+                        list.add(parseTxn(r.tokens()));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return list;
             }
 
-            boolean changePassword(String username, String newPassword) {
-                for (User u : users) if (u.username.equals(username)) { u.passwordHash = SecurityUtil.sha256Hex(newPassword); store.saveUsers(users); return true; }
-                return false;
+            static Txn parseTxn(CsvTokenizer p) {
+                long id = p.longAt(0);
+                long itemId = p.longAt(1);
+                TxType t = p.typeAt(2);
+                int qty = p.intAt(3);
+                LocalDateTime ts = p.timestampAt(4);
+                String note = p.fields() > 5 ? unesc(p.text(5)) : "";
+                return new Txn(id, itemId, t, qty, ts, note);
             }
 
-            boolean addUser(String username, String password) {
-                for (User u : users) if (u.username.equals(username)) return false;
-                users.add(new User(username, SecurityUtil.sha256Hex(password)));
-                store.saveUsers(users);
-                return true;
+            // Returns once the line is on disk according to txnDurability.
+            public void appendTxn(Txn tx) {
+                long t0 = Metrics.start();
+                try {
+                    YearMonth month = YearMonth.from(tx.timestamp);
+                    TxnSegment seg = segmentFor(month);
+                    byte[] line = appendTxnLine(new StringBuilder(80), tx).append(System.lineSeparator()).toString().getBytes(StandardCharsets.UTF_8);
+                    CompletableFuture<Void> done = appendActive(month, line);
+                    if (done != null) TxnLogWriter.await(done);
+                    else appendDirect(seg, line);
+                    seg.add(tx);
+                    if (done == null) seg.writeMetaIfChanged();
+                } finally { Metrics.APPEND_TXN.stop(t0); }
             }
 
-            boolean deleteUser(String username) {
-                boolean removed = users.removeIf(u -> u.username.equals(username));
-                if (removed) store.saveUsers(users);
-                return removed;
+            // One write per segment touched. The active segment is written last, and if any
+            // write fails the segments already written are cut back, so either every row is
+            // in the log or none is.
+            public void appendTxns(List<Txn> txns) {
+                long t0 = Metrics.start();
+                try {
+                    if (txns.isEmpty()) return;
+                    TxnBatch batch = new TxnBatch(txns);
+                    batch.writeOtherMonths();
+                    try { batch.writeActiveMonth(); }
+                    catch (RuntimeException e) { batch.undo(); throw e; }
+                    batch.count();
+                } finally { Metrics.APPEND_TXNS.stop(t0); }
             }
-        }
 
-        static class InventoryService {
-            private final CsvStore store;
-            private List<Item> items;
+            // appendTxns in steps, so a ShardedStore can write a batch across several stores:
+            // rows for months other than the active one first (and undo them if a later step
+            // fails), then the active month's, which can't be cut back as other writers share
+            // its segment, then the segment metas.
+            final class TxnBatch {
+                private final Map<YearMonth, List<Txn>> byMonth = new TreeMap<>();
+                private final YearMonth active = activeMonth;
+                private final List<Txn> activeRows;
+                private final Map<TxnSegment, Long> written = new LinkedHashMap<>();
 
-            InventoryService(CsvStore store) { this.store = store; this.items = store.loadItems(); }
+                TxnBatch(List<Txn> txns) {
+                    for (Txn tx : txns) byMonth.computeIfAbsent(YearMonth.from(tx.timestamp), k -> new ArrayList<>()).add(tx);
+                    activeRows = byMonth.remove(active);
+                }
 
-            List<Item> listItems() { return new ArrayList<>(items); }
+                // cuts back what it wrote before rethrowing
+                void writeOtherMonths() {
+                    try {
+                        for (Map.Entry<YearMonth, List<Txn>> e : byMonth.entrySet()) {
+                            TxnSegment seg = segmentFor(e.getKey());
+                            written.put(seg, appendDirect(seg, lines(e.getValue())));
+                        }
+                    } catch (RuntimeException e) {
+                        undo();
+                        throw e;
+                    }
+                }
 
-            Item findById(long id) { return items.stream().filter(i->i.id==id).findFirst().orElse(null); }
+                void writeActiveMonth() {
+                    if (activeRows == null) return;
+                    TxnSegment seg = segmentFor(active);
+                    byte[] data = lines(activeRows);
+                    CompletableFuture<Void> done = appendActive(active, data);
+                    if (done != null) TxnLogWriter.await(done);
+                    else appendDirect(seg, data); // the month rolled over meanwhile
+                    byMonth.put(active, activeRows);
+                }
 
-            Item createItem(String name, String category, int quantity, double unitPrice) {
-                long id = nextItemId();
-                Item it = new Item(id, name, category, quantity, unitPrice);
-                items.add(it);
-                store.saveItems(items);
-                return it;
+                void undo() { written.forEach(TxnSegment::truncate); }
+
+                void count() {
+                    for (Map.Entry<YearMonth, List<Txn>> e : byMonth.entrySet()) {
+                        TxnSegment seg = segments.get(e.getKey());
+                        for (Txn tx : e.getValue()) seg.add(tx);
+                        if (!e.getKey().equals(activeMonth)) seg.writeMetaIfChanged();
+                    }
+                }
             }
 
-            boolean updateItem(long id, String name, String category, Integer quantity, Double unitPrice) {
-                Item it = findById(id);
-                if (it==null) return false;
-                if (name!=null) it.name = name;
-                if (category!=null) it.category = category;
-                if (quantity!=null) it.quantity = quantity;
-                if (unitPrice!=null) it.unitPrice = unitPrice;
-                store.saveItems(items);
-                return true;
+            private static byte[] lines(List<Txn> txns) {
+                StringBuilder lines = new StringBuilder(txns.size() * 64);
+                for (Txn tx : txns) appendTxnLine(lines, tx).append(System.lineSeparator());
+                return lines.toString().getBytes(StandardCharsets.UTF_8);
             }
 
-            boolean deleteItem(long id) {
-                boolean ok = items.removeIf(i->i.id==id);
-                if (ok) store.saveItems(items);
-                return ok;
+            // Queues `data` on the active segment's writer, or returns null if `month` isn't
+            // the active month (any more). The queueing wakes the writer thread, so it happens
+            // outside the store's monitor.
+            private CompletableFuture<Void> appendActive(YearMonth month, byte[] data) {
+                txnLogLock.readLock().lock();
+                try {
+                    if (!month.equals(activeMonth)) return null;
+                    return txnLog().append(data);
+                } finally { txnLogLock.readLock().unlock(); }
             }
 
-            void adjustStock(long itemId, int delta) {
-                Item it = findById(itemId);
-                if (it==null) throw new IllegalArgumentException("Item not found: " + itemId);
-                int newQty = it.quantity + delta;
-                if (newQty < 0) throw new IllegalArgumentException("Insufficient stock. Current: " + it.quantity);
-                it.quantity = newQty;
-                store.saveItems(items);
+            // Appends to a segment other than the active one; returns its size before the write.
+            private long appendDirect(TxnSegment seg, byte[] data) {
+                synchronized (seg) {
+                    try (FileChannel ch = FileChannel.open(seg.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        long before = ch.size();
+                        ByteBuffer buf = ByteBuffer.wrap(data);
+                        while (buf.hasRemaining()) ch.write(buf);
+                        if (txnDurability != Durability.OS_BUFFERED) ch.force(false);
+                        return before;
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                }
             }
 
-            private long nextItemId() {
-                return items.stream().map(i->i.id).max(Long::compare).orElse(1000L) + 1;
+            // Makes `month` the active one: the previous segment's writer is drained and closed
+            // and its meta saved. Later rows for an older month go straight to its segment.
+            public void rollTxnLog(YearMonth month) {
+                txnLogLock.writeLock().lock();
+                try {
+                    synchronized (this) {
+                        if (!month.isAfter(activeMonth)) return;
+                        YearMonth previous = activeMonth;
+                        if (txnLog != null) { txnLog.close(); txnLog = null; }
+                        activeMonth = month;
+                        TxnSegment seg = segments.get(previous);
+                        if (seg != null) seg.writeMetaIfChanged();
+                    }
+                } finally { txnLogLock.writeLock().unlock(); }
             }
-        }
 
-        static class TransactionService {
-            private final CsvStore store;
-            private final InventoryService inventory;
-            private List<Txn> txns;
+            // --- Stock checkpoints: transactions/yyyy-MM.stock ---
+            public StockLevels loadCheckpoint(YearMonth month) { return StockLevels.read(checkpointFile(month), month.atDay(1).atStartOfDay()); }
+
+            public void saveCheckpoint(YearMonth month, StockLevels levels) { levels.write(checkpointFile(month)); }
 
-            TransactionService(CsvStore store, InventoryService inventory) {
-                this.store = store; this.inventory = inventory; this.txns = store.loadTxns();
+            public void dropCheckpoints(YearMonth from) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(txnDir, "*.stock")) {
+                    for (Path f : files) {
+                        String name = f.getFileName().toString();
+                        YearMonth month;
+                        try { month = YearMonth.parse(name.substring(0, name.length() - ".stock".length())); }
+                        catch (DateTimeParseException e) { continue; }
+                        if (!month.isBefore(from)) Files.deleteIfExists(f);
+                    }
+                } catch (NoSuchFileException e) {
+                    // no transactions directory yet, so no checkpoints either
+                } catch (IOException e) { throw new RuntimeException(e); }
             }
 
-            List<Txn> listAll() { return new ArrayList<>(txns); }
+            private Path checkpointFile(YearMonth month) { return txnDir.resolve(month + ".stock"); }
 
-            List<Txn> listByDate(LocalDate from, LocalDate to) {
-                LocalDateTime start = from.atStartOfDay();
-                LocalDateTime end = to.plusDays(1).atStartOfDay();
-                List<Txn> out = new ArrayList<>();
-                for (Txn t : txns) if (!t.timestamp.isBefore(start) && t.timestamp.isBefore(end)) out.add(t);
+            // --- Stock adjustments: stock-adjustments.csv, appended to ---
+            // As with the item journal, a torn last line left by a crash (unparseable, or
+            // missing its newline) is cut off so later appends start on a clean line.
+            public synchronized List<StockAdjustment> loadAdjustments() {
+                List<StockAdjustment> out = new ArrayList<>();
+                if (!Files.exists(adjustmentsCsv)) return out;
+                long validBytes = 0;
+                try (CsvReader r = new CsvReader(adjustmentsCsv)) {
+                    boolean first = true;
+                    while (r.next()) {
+                        if (!r.terminated()) break;
+                        CsvTokenizer p = r.tokens();
+                        if (first) first = false;
+                        else if (!p.isBlank()) {
+                            try {
+                                out.add(new StockAdjustment(p.longAt(0), p.timestampAt(1), StockAdjustment.Kind.valueOf(p.text(2)), p.intAt(3)));
+                            } catch (RuntimeException e) {
+                                break;
+                            }
+                        }
+                        validBytes = r.recordEnd();
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                try {
+                    if (validBytes < Files.size(adjustmentsCsv)) {
+                        try (FileChannel ch = FileChannel.open(adjustmentsCsv, StandardOpenOption.WRITE)) { ch.truncate(validBytes); }
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
                 return out;
             }
 
-            Txn record(long itemId, TxType type, int quantity, String note) {
-                if (quantity <= 0) throw new IllegalArgumentException("Quantity must be positive");
-                int delta = type==TxType.IN ? quantity : -quantity;
-                inventory.adjustStock(itemId, delta);
-                long id = nextTxnId();
-                Txn t = new Txn(id, itemId, type, quantity, LocalDateTime.now(), note==null?"":note);
-                txns.add(t);
-                store.appendTxn(t);
-                return t;
+            public synchronized void appendAdjustment(StockAdjustment a) {
+                StringBuilder sb = new StringBuilder(64);
+                try {
+                    if (adjustmentsLog == null) {
+                        adjustmentsLog = FileChannel.open(adjustmentsCsv, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    }
+                    if (adjustmentsLog.size() == 0) sb.append(StockAdjustment.HEADER).append('\n');
+                    appendTimestamp(sb.append(a.itemId).append(','), a.at).append(',').append(a.kind).append(',').append(a.delta).append('\n');
+                    ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buf.hasRemaining()) adjustmentsLog.write(buf);
+                    if (syncJournal) adjustmentsLog.force(false);
+                } catch (IOException e) { throw new RuntimeException(e); }
             }
 
-            private long nextTxnId() { return txns.stream().map(x->x.id).max(Long::compare).orElse(5000L) + 1; }
-        }
-
-        static class ReportService {
-            private final InventoryService inventory;
-            private final TransactionService txnService;
+            private TxnSegment segmentFor(YearMonth month) {
+                TxnSegment seg = txnSegments().get(month);
+                if (seg != null) return seg;
+                synchronized (segmentLock) {
+                    seg = segments.get(month);
+                    if (seg == null) {
+                        seg = TxnSegment.create(txnDir, month);
+                        segments.put(month, seg);
+                    }
+                    return seg;
+                }
+            }
 
-            ReportService(InventoryService inv, TransactionService tx) { this.inventory = inv; this.txnService = tx; }
-
-            Path generateStockReportHtml(String outDir) {
-                List<Item> items = inventory.listItems();
-                items.sort(Comparator.comparingInt(i->i.quantity)); // low to high
-                StringBuilder html = new StringBuilder();
-                html.append("<html><head><meta charset='utf-8'><title>Stock Report</title>");
-                html.append("<style>body{font-family:Arial;margin:24px} table{border-collapse:collapse;width:100%} th,td{border:1px solid #999;padding:8px;text-align:left} th{background:#eee} .right{text-align:right}</style>");
-                html.append("</head><body><h2>Stock Levels</h2>");
-                html.append("<p>Generated: ").append(LocalDateTime.now()).append("</p>");
-                html.append("<table><tr><th>ID</th><th>Name</th><th>Category</th><th class='right'>Qty</th><th class='right'>Unit Price</th><th class='right'>Value</th></tr>");
-                double total = 0.0;
-                for (Item it : items) {
-                    double value = it.quantity * it.unitPrice;
-                    total += value;
-                    html.append("<tr><td>").append(it.id).append("</td><td>")
-                            .append(escape(it.name)).append("</td><td>")
-                            .append(escape(it.category)).append("</td><td class='right'>")
-                            .append(it.quantity).append("</td><td class='right'>")
-                            .append(String.format(Locale.US, "%.2f", it.unitPrice)).append("</td><td class='right'>")
-                            .append(String.format(Locale.US, "%.2f", value)).append("</td></tr>");
-                }
-                html.append("<tr><th colspan='5' class='right'>Total Inventory Value</th><th class='right'>")
-                        .append(String.format(Locale.US, "%.2f", total)).append("</th></tr>");
-                html.append("</table></body></html>");
-                try {
-                    Path out = Paths.get(outDir).resolve("stock_report_" + System.currentTimeMillis() + ".html");
-                    Files.createDirectories(out.getParent());
-                    Files.write(out, html.toString().getBytes(StandardCharsets.UTF_8));
-                    return out;
+            // Splits a single-file transactions.csv into monthly segments. They are written to a
+            // side directory that is renamed into place only once complete, and the old file is
+            // kept as transactions.csv.migrated; a crash at any point leaves something the next
+            // start can finish from.
+            private void scanSegments() {
+                try {
+                    if (Files.exists(txnsCsv)) {
+                        if (!Files.exists(txnDir)) migrateTxns();
+                        Files.move(txnsCsv, txnsCsv.resolveSibling(txnsCsv.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    Files.createDirectories(txnDir);
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(txnDir, "*.csv")) {
+                        for (Path f : files) {
+                            YearMonth month = TxnSegment.monthOf(f);
+                            if (month == null) continue;
+                            TxnSegment seg = new TxnSegment(txnDir, month);
+                            if (!seg.readMeta()) seg.rebuildMeta(loadTxns(seg.file));
+                            segments.put(month, seg);
+                        }
+                    }
                 } catch (IOException e) { throw new RuntimeException(e); }
             }
 
-            Path generateTransactionsReportHtml(String outDir, LocalDate from, LocalDate to) {
-                List<Txn> list = txnService.listByDate(from, to);
-                Map<Long, Item> itemMap = new HashMap<>();
-                for (Item it : inventory.listItems()) itemMap.put(it.id, it);
-
-                StringBuilder html = new StringBuilder();
-                html.append("<html><head><meta charset='utf-8'><title>Transactions Report</title>");
-                html.append("<style>body{font-family:Arial;margin:24px} table{border-collapse:collapse;width:100%} th,td{border:1px solid #999;padding:8px;text-align:left} th{background:#eee} .right{text-align:right}</style>");
-                html.append("</head><body><h2>Transactions ");
-                html.append("(" + from + " to " + to + ")</h2>");
-                html.append("<p>Generated: ").append(LocalDateTime.now()).append("</p>");
-                html.append("<table><tr><th>ID</th><th>Time</th><th>Item</th><th>Type</th><th class='right'>Qty</th><th>Note</th></tr>");
-                for (Txn t : list) {
-                    Item it = itemMap.get(t.itemId);
-                    html.append("<tr><td>").append(t.id).append("</td><td>")
-                            .append(t.timestamp).append("</td><td>")
-                            .append(it==null? ("#"+t.itemId) : escape(it.name)).append("</td><td>")
-                            .append(t.type).append("</td><td class='right'>")
-                            .append(t.quantity).append("</td><td>")
-                            .append(escape(t.note)).append("</td></tr>");
-                }
-                html.append("</table></body></html>");
-                try {
-                    Path out = Paths.get(outDir).resolve("transactions_" + from + "to" + to + "_" + System.currentTimeMillis() + ".html");
-                    Files.createDirectories(out.getParent());
-                    Files.write(out, html.toString().getBytes(StandardCharsets.UTF_8));
-                    return out;
-                } catch (IOException e) { throw new RuntimeException(e); }
+            private void migrateTxns() throws IOException {
+                Path tmp = txnDir.resolveSibling(txnDir.getFileName() + ".migrating");
+                if (Files.exists(tmp)) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp)) {
+                        for (Path f : files) Files.delete(f);
+                    }
+                }
+                Files.createDirectories(tmp);
+                Map<YearMonth, TxnSegment> out = new TreeMap<>();
+                Map<YearMonth, BufferedWriter> writers = new HashMap<>();
+                StringBuilder line = new StringBuilder(128);
+                try (CsvReader r = new CsvReader(txnsCsv)) {
+                    boolean first = true;
+                    while (r.next()) {
+                        if (first) { first = false; continue; }
+                        if (r.tokens().isBlank()) continue;
+                        Txn t = parseTxn(r.tokens());
+                        YearMonth month = YearMonth.from(t.timestamp);
+                        BufferedWriter w = writers.get(month);
+                        if (w == null) {
+                            TxnSegment seg = TxnSegment.create(tmp, month);
+                            out.put(month, seg);
+                            w = Files.newBufferedWriter(seg.file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                            writers.put(month, w);
+                        }
+                        line.setLength(0);
+                        w.append(appendTxnLine(line, t).append(System.lineSeparator()));
+                        out.get(month).add(t);
+                    }
+                } finally {
+                    for (BufferedWriter w : writers.values()) w.close();
+                }
+                for (TxnSegment seg : out.values()) seg.writeMetaIfChanged();
+                Files.move(tmp, txnDir, StandardCopyOption.ATOMIC_MOVE);
             }
 
-            private String escape(String s) {
-                return s==null?"":s.replace("&","&amp;").replace("<","&lt;").replace(">","&gt;");
+            static String txnLine(Txn tx) { return appendTxnLine(new StringBuilder(80), tx).toString(); }
+
+            static StringBuilder appendTxnLine(StringBuilder sb, Txn tx) {
+                sb.append(tx.id).append(',').append(tx.itemId).append(',').append(tx.type.name()).append(',')
+                        .append(tx.quantity).append(',');
+                appendTimestamp(sb, tx.timestamp).append(',');
+                return esc(sb, tx.note);
             }
-        }
 
-        // ====== CONSOLE UI ======
-        static class ConsoleApp {
-            private final Scanner sc = new Scanner(System.in);
-            private final UserService users;
-            private final InventoryService inv;
-            private final TransactionService tx;
-            private final ReportService reports;
-            private String currentUser;
+            // Same text as TS.format for years 1-9999, without going through the formatter.
+            static StringBuilder appendTimestamp(StringBuilder sb, LocalDateTime ts) {
+                int y = ts.getYear();
+                if (y < 1 || y > 9999) return sb.append(TS.format(ts));
+                pad(sb, y, 4).append('-');
+                pad(sb, ts.getMonthValue(), 2).append('-');
+                pad(sb, ts.getDayOfMonth(), 2).append(' ');
+                pad(sb, ts.getHour(), 2).append(':');
+                pad(sb, ts.getMinute(), 2).append(':');
+                return pad(sb, ts.getSecond(), 2);
+            }
 
-            ConsoleApp(UserService users, InventoryService inv, TransactionService tx, ReportService reports) {
-                this.users = users; this.inv = inv; this.tx = tx; this.reports = reports;
+            private static StringBuilder pad(StringBuilder sb, int v, int width) {
+                for (int p = width == 4 ? 1000 : 10; p > 1 && v < p; p /= 10) sb.append('0');
+                return sb.append(v);
             }
 
-            void run() {
-                if (!login()) return;
-                while (true) {
-                    System.out.println("\n Welcome to Inventory System  (logged in as: " + currentUser + ")");
-                    System.out.println("1) Items (CRUD)");
-                    System.out.println("2) Transactions (IN/OUT)");
-                    System.out.println("3) Reports");
-                    System.out.println("4) Users");
-                    System.out.println("0) Exit");
-                    System.out.print("Choose: ");
-                    String choice = sc.nextLine().trim();
-                    switch (choice) {
-                        case "1": itemsMenu(); break;
-                        case "2": txMenu(); break;
-                        case "3": reportsMenu(); break;
-                        case "4": usersMenu(); break;
-                        case "0": System.out.println("Goodbye!"); return;
-                        default: System.out.println("Invalid option.");
+            private synchronized TxnLogWriter txnLog() {
+                if (txnLog == null) txnLog = new TxnLogWriter(segmentFor(activeMonth).file, txnDurability, groupCommitWindowMicros);
+                return txnLog;
+            }
+
+            // --- Bulk uploads ---
+            // itemId,type,quantity,timestamp,note with a header line; timestamp
+            // (yyyy-MM-dd HH:mm:ss) and note may be blank. Rows that don't parse come back
+            // marked with their error so the ingest can report them.
+            static List<IngestRow> readIngestCsv(Path file) {
+                List<IngestRow> rows = new ArrayList<>();
+                try (CsvReader r = new CsvReader(file)) {
+                    int row = 0;
+                    while (r.next()) {
+                        if (row++ == 0) continue;
+                        CsvTokenizer p = r.tokens();
+                        if (p.isBlank()) continue;
+                        try {
+                            // hand-made files get trimmed and case-folded, so these go through Strings
+                            long itemId = Long.parseLong(p.text(0).trim());
+                            TxType type = TxType.valueOf(p.text(1).trim().toUpperCase(Locale.ROOT));
+                            int qty = Integer.parseInt(p.text(2).trim());
+                            String when = p.fields() > 3 ? p.text(3) : "";
+                            LocalDateTime ts = !when.isBlank() ? LocalDateTime.parse(when.trim(), TS) : null;
+                            String note = p.fields() > 4 ? p.text(4) : "";
+                            rows.add(new IngestRow(row, itemId, type, qty, note, ts));
+                        } catch (RuntimeException e) {
+                            rows.add(IngestRow.invalid(row, "Unreadable row (" + e.getMessage() + ")"));
+                        }
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                return rows;
+            }
+
+            // --- Users ---
+            public List<User> loadUsers() {
+                long t0 = Metrics.start();
+                try {
+                    SnapshotFile.Contents snap = snapshot();
+                    if (snap != null && snap.users != null) {
+                        List<User> list = snap.users;
+                        snap.users = null;
+                        return list;
                     }
+                    List<User> list = new ArrayList<>();
+                    try (CsvReader r = new CsvReader(usersCsv)) {
+                        boolean first = true;
+                        while (r.next()) {
+                            if (first) { first = false; continue; }
+                            CsvTokenizer p = r.tokens();
+                            if (p.isBlank()) continue;
+                            list.add(new User(p.text(0), p.text(1)));
+                        }
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return list;
+                } finally { Metrics.LOAD_USERS.stop(t0); }
+            }
+
+            public void saveUsers(List<User> users) {
+                long t0 = Metrics.start();
+                try {
+                    List<String> lines = new ArrayList<>();
+                    lines.add("username,passwordHash");
+                    for (User u : users) lines.add(u.username + "," + u.passwordHash);
+                    try { Files.write(usersCsv, lines, StandardCharsets.UTF_8); }
+                    catch (IOException e) { throw new RuntimeException(e); }
+                } finally { Metrics.SAVE_USERS.stop(t0); }
+            }
+
+            // --- Binary snapshot ---
+            // Writes items, users and the transactions of `month` (the active month) to
+            // snapshot.bin, stamped with the current state of the files they come from. The stamp
+            // is taken first, so a change that races with the write makes the snapshot stale
+            // rather than silently incomplete.
+            public synchronized void writeSnapshot(List<Item> items, YearMonth month, Consumer<Consumer<? super TxnView>> txns, List<User> users) {
+                long t0 = Metrics.start();
+                try {
+                    long[] stamp = sourceStamp(month);
+                    Path tmp = snapshotBin.resolveSibling(snapshotBin.getFileName() + ".tmp");
+                    try {
+                        SnapshotFile.write(tmp, stamp, journalEntries, items, txns, users);
+                        Files.move(tmp, snapshotBin, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                } finally { Metrics.WRITE_SNAPSHOT.stop(t0); }
+            }
+
+            // Read once, on the first load call; null when missing, stale, corrupt or disabled.
+            private synchronized SnapshotFile.Contents snapshot() {
+                if (!snapshotChecked) {
+                    snapshotChecked = true;
+                    if (preferSnapshot) snapshot = SnapshotFile.read(snapshotBin, sourceStamp(activeMonth));
                 }
+                return snapshot;
             }
 
-            private boolean login() {
-                int attempts = 0;
-                while (attempts < 3) {
-                    System.out.print("Username: ");
-                    String u = sc.nextLine().trim();
-                    System.out.print("Password: ");
-                    String p = sc.nextLine().trim();
-                    if (users.authenticate(u, p)) { currentUser = u; return true; }
-                    System.out.println("Invalid credentials. Try again.");
-                    attempts++;
+            // size, mtime and file identity of every file the snapshot stands in for, then the month
+            private long[] sourceStamp(YearMonth month) {
+                Path[] sources = {itemsCsv, itemsJournal, TxnSegment.fileOf(txnDir, month), usersCsv};
+                long[] stamp = new long[sources.length * 3 + 1];
+                stamp[stamp.length - 1] = month.getYear() * 12L + month.getMonthValue() - 1;
+                for (int i = 0; i < sources.length; i++) {
+                    try {
+                        BasicFileAttributes a = Files.readAttributes(sources[i], BasicFileAttributes.class);
+                        stamp[i * 3] = a.size();
+                        stamp[i * 3 + 1] = a.lastModifiedTime().toMillis();
+                        stamp[i * 3 + 2] = a.fileKey() == null ? 0 : a.fileKey().hashCode();
+                    } catch (NoSuchFileException e) {
+                        stamp[i * 3] = -1;
+                    } catch (IOException e) { throw new RuntimeException(e); }
                 }
-                System.out.println("Too many attempts. Exiting.");
-                return false;
+                return stamp;
             }
 
-            private void itemsMenu() {
-                while (true) {
-                    System.out.println("\n-- Items --");
-                    System.out.println("1) List");
-                    System.out.println("2) Create");
-                    System.out.println("3) Update");
-                    System.out.println("4) Delete");
-                    System.out.println("0) Back");
-                    System.out.print("Choose: ");
-                    String c = sc.nextLine().trim();
-                    switch (c) {
-                        case "1": listItems(); break;
-                        case "2": createItem(); break;
-                        case "3": updateItem(); break;
-                        case "4": deleteItem(); break;
-                        case "0": return;
-                        default: System.out.println("Invalid option.");
-                    }
+            // --- CSV Helpers ---
+            // Quotes a field that holds a comma, quote or newline, doubling its quotes.
+            static StringBuilder esc(StringBuilder sb, String s) {
+                if (s == null) return sb;
+                int n = s.length(), i = 0;
+                while (i < n) {
+                    char c = s.charAt(i);
+                    if (c == ',' || c == '"' || c == '\n') break;
+                    i++;
+                }
+                if (i == n) return sb.append(s);
+                sb.append('"').append(s, 0, i);
+                for (; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c == '"') sb.append('"');
+                    sb.append(c);
                 }
+                return sb.append('"');
             }
 
-            private void listItems() {
-                System.out.println("ID | Name | Category | Qty | UnitPrice");
-                for (Item it : inv.listItems()) {
-                    System.out.printf(Locale.US, "%d | %s | %s | %d | %.2f%n", it.id, it.name, it.category, it.quantity, it.unitPrice);
+            // Notes are unquoted once more after tokenizing, as they always have been, so a
+            // note that itself starts and ends with a quote loses them on reload.
+            private static String unesc(String s) {
+                int n = s.length();
+                if (n < 2 || s.charAt(0) != '"' || s.charAt(n - 1) != '"') return s;
+                int q = s.indexOf('"', 1);
+                if (q == n - 1) return s.substring(1, n - 1);
+                StringBuilder sb = new StringBuilder(n);
+                for (int i = 1; i < n - 1; i++) {
+                    char c = s.charAt(i);
+                    sb.append(c);
+                    if (c == '"' && i + 1 < n - 1 && s.charAt(i + 1) == '"') i++;
                 }
+                return sb.toString();
             }
+        }
 
-            private void createItem() {
-                try {
+        // ====== SHARDED STORAGE ======
+        // Items and their transactions split across N data directories, shard-0 to shard-(N-1)
+        // under the base directory, by item id modulo N. Each shard is a full CsvStore with its
+        // own item files, monthly segments, log writer and snapshot, so writes for items in
+        // different shards never share a file, a writer or a lock. Users live in shard-0.
+        // Loads read every shard in parallel and merge; a month's transactions come back in id
+        // order. shards.csv in the base directory holds N; reshard builds a layout from any store.
+        static class ShardedStore implements Store {
+            static final String LAYOUT_FILE = "shards.csv";
+
+            private final Path baseDir;
+            private final CsvStore[] shards;
+            private volatile boolean segmentsScanned;
+
+            ShardedStore(String dir, ItemPersistence itemPersistence, Consumer<CsvStore> settings) {
+                this.baseDir = Paths.get(dir);
+                int n = readLayout(baseDir.resolve(LAYOUT_FILE));
+                shards = new CsvStore[n];
+                for (int i = 0; i < n; i++) {
+                    CsvStore shard = new CsvStore(shardDir(baseDir, i).toString(), itemPersistence);
+                    shard.holdsUsers = i == 0;
+                    settings.accept(shard);
+                    shards[i] = shard;
+                }
+                Metrics.gauge("itemJournalEntries", () -> {
+                    long entries = 0;
+                    for (CsvStore shard : shards) entries += shard.journalEntries;
+                    return entries;
+                });
+            }
+
+            int shardCount() { return shards.length; }
+
+            int shardOf(long itemId) { return Math.floorMod(itemId, shards.length); }
+
+            static Path shardDir(Path baseDir, int shard) { return baseDir.resolve("shard-" + shard); }
+
+            public Path baseDir() { return baseDir; }
+
+            public void initIfNeeded() { for (CsvStore shard : shards) shard.initIfNeeded(); }
+
+            public void close() {
+                RuntimeException failure = null;
+                for (CsvStore shard : shards) {
+                    try { shard.close(); }
+                    catch (RuntimeException e) { if (failure == null) failure = e; else failure.addSuppressed(e); }
+                }
+                if (failure != null) throw failure;
+            }
+
+            // --- Items ---
+            public List<Item> loadItems() {
+                List<Item> all = Arrays.stream(shards).parallel()
+                        .flatMap(shard -> shard.loadItems().stream())
+                        .collect(Collectors.toCollection(ArrayList::new));
+                all.sort(Comparator.comparingLong(it -> it.id));
+                return all;
+            }
+
+            public void saveItem(Item it, Collection<Item> all) {
+                int i = shardOf(it.id);
+                shards[i].saveItem(it, itemsOf(i, all));
+            }
+
+            // One write per shard touched. A failure part way leaves the earlier shards' items
+            // saved; InventoryService restores quantities in memory, not on disk.
+            public void saveItems(Collection<Item> changed, Collection<Item> all) {
+                Map<Integer, List<Item>> byShard = new TreeMap<>();
+                for (Item it : changed) byShard.computeIfAbsent(shardOf(it.id), k -> new ArrayList<>()).add(it);
+                byShard.forEach((i, items) -> shards[i].saveItems(items, itemsOf(i, all)));
+            }
+
+            public void removeItem(long id, Collection<Item> all) {
+                int i = shardOf(id);
+                shards[i].removeItem(id, itemsOf(i, all));
+            }
+
+            public void compactItems(Collection<Item> all) {
+                IntStream.range(0, shards.length).parallel().forEach(i -> shards[i].compactItems(itemsOf(i, all)));
+            }
+
+            // The shard's share of `all`, filtered whenever it is read; a CsvStore only reads it
+            // to rewrite its items.csv.
+            private Collection<Item> itemsOf(int shard, Collection<Item> all) {
+                return new AbstractCollection<Item>() {
+                    @Override public Iterator<Item> iterator() { return all.stream().filter(it -> shardOf(it.id) == shard).iterator(); }
+                    @Override public int size() { return (int) all.stream().filter(it -> shardOf(it.id) == shard).count(); }
+                };
+            }
+
+            // --- Transactions ---
+            public YearMonth activeMonth() { return shards[0].activeMonth(); }
+
+            // Every month held by any shard, each summarized across shards as of this call.
+            // The first call scans (and if needed migrates) the shards in parallel.
+            public NavigableMap<YearMonth, TxnSegment> txnSegments() {
+                if (!segmentsScanned) {
+                    Arrays.stream(shards).parallel().forEach(CsvStore::txnSegments);
+                    segmentsScanned = true;
+                }
+                TreeMap<YearMonth, List<TxnSegment>> parts = new TreeMap<>();
+                for (CsvStore shard : shards) {
+                    for (TxnSegment seg : shard.txnSegments().values()) parts.computeIfAbsent(seg.month, k -> new ArrayList<>()).add(seg);
+                }
+                TreeMap<YearMonth, TxnSegment> merged = new TreeMap<>();
+                parts.forEach((month, segs) -> merged.put(month, TxnSegment.merge(month, segs)));
+                return Collections.unmodifiableNavigableMap(merged);
+            }
+
+            public long maxTxnId() {
+                long max = 0;
+                for (CsvStore shard : shards) max = Math.max(max, shard.maxTxnId());
+                return max;
+            }
+
+            public long txnCount() {
+                long n = 0;
+                for (CsvStore shard : shards) n += shard.txnCount();
+                return n;
+            }
+
+            public List<Txn> loadSegment(YearMonth month) {
+                List<Txn> all = Arrays.stream(shards).parallel()
+                        .flatMap(shard -> shard.loadSegment(month).stream())
+                        .collect(Collectors.toCollection(ArrayList::new));
+                all.sort(Comparator.comparingLong(t -> t.id));
+                return all;
+            }
+
+            public void appendTxn(Txn tx) { shards[shardOf(tx.itemId)].appendTxn(tx); }
+
+            // Every shard's rows for months other than the active one are written first, and all
+            // of them are cut back if any of those writes fails; then each shard's active-month
+            // rows. Those can't be cut back (other writers share the segment), so if one fails
+            // after another shard's succeeded, the rows already queued stay in the log.
+            public void appendTxns(List<Txn> txns) {
+                Map<Integer, List<Txn>> byShard = new TreeMap<>();
+                for (Txn tx : txns) byShard.computeIfAbsent(shardOf(tx.itemId), k -> new ArrayList<>()).add(tx);
+                if (byShard.size() <= 1) {
+                    byShard.forEach((i, rows) -> shards[i].appendTxns(rows));
+                    return;
+                }
+                long t0 = Metrics.start();
+                try {
+                    List<CsvStore.TxnBatch> batches = new ArrayList<>();
+                    byShard.forEach((i, rows) -> batches.add(shards[i].new TxnBatch(rows)));
+                    List<CsvStore.TxnBatch> written = new ArrayList<>();
+                    try {
+                        for (CsvStore.TxnBatch b : batches) { b.writeOtherMonths(); written.add(b); }
+                        for (CsvStore.TxnBatch b : batches) b.writeActiveMonth();
+                    } catch (RuntimeException e) {
+                        for (CsvStore.TxnBatch b : written) b.undo();
+                        throw e;
+                    }
+                    for (CsvStore.TxnBatch b : batches) b.count();
+                } finally { Metrics.APPEND_TXNS.stop(t0); }
+            }
+
+            public void rollTxnLog(YearMonth month) { for (CsvStore shard : shards) shard.rollTxnLog(month); }
+
+            // --- Stock checkpoints: each shard keeps its own items' quantities ---
+            // A checkpoint some shard is missing (a crash while saving) counts as missing.
+            public StockLevels loadCheckpoint(YearMonth month) {
+                List<StockLevels> parts = Arrays.stream(shards).parallel().map(shard -> shard.loadCheckpoint(month)).collect(Collectors.toList());
+                if (parts.contains(null)) return null;
+                return StockLevels.merge(month.atDay(1).atStartOfDay(), parts);
+            }
+
+            public void saveCheckpoint(YearMonth month, StockLevels levels) {
+                IntStream.range(0, shards.length).parallel()
+                        .forEach(i -> shards[i].saveCheckpoint(month, levels.filter(id -> shardOf(id) == i)));
+            }
+
+            public void dropCheckpoints(YearMonth from) { for (CsvStore shard : shards) shard.dropCheckpoints(from); }
+
+            // --- Stock adjustments: each in its item's shard ---
+            public List<StockAdjustment> loadAdjustments() {
+                List<StockAdjustment> out = new ArrayList<>();
+                for (CsvStore shard : shards) out.addAll(shard.loadAdjustments());
+                out.sort(Comparator.comparing(a -> a.at));
+                return out;
+            }
+
+            public void appendAdjustment(StockAdjustment a) { shards[shardOf(a.itemId)].appendAdjustment(a); }
+
+            // --- Users ---
+            public List<User> loadUsers() { return shards[0].loadUsers(); }
+
+            public void saveUsers(List<User> users) { shards[0].saveUsers(users); }
+
+            // --- Binary snapshot ---
+            // One snapshot per shard, written in parallel, each holding that shard's items and
+            // active-month transactions (and the users, for shard-0).
+            public void writeSnapshot(List<Item> items, YearMonth month, Consumer<Consumer<? super TxnView>> txns, List<User> users) {
+                IntStream.range(0, shards.length).parallel().forEach(i -> {
+                    List<Item> mine = new ArrayList<>();
+                    for (Item it : items) if (shardOf(it.id) == i) mine.add(it);
+                    shards[i].writeSnapshot(mine, month,
+                            action -> txns.accept(t -> { if (shardOf(t.itemId()) == i) action.accept(t); }),
+                            i == 0 ? users : Collections.emptyList());
+                });
+            }
+
+            // --- Layout ---
+            private static int readLayout(Path file) {
+                try {
+                    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                    int n = Integer.parseInt(lines.get(1).trim());
+                    if (n < 1) throw new IllegalArgumentException("shard count " + n);
+                    return n;
+                } catch (IOException | RuntimeException e) {
+                    throw new RuntimeException("Unreadable shard layout " + file + ": " + e.getMessage(), e);
+                }
+            }
+
+            // Copies every item, transaction and user of `source` into a new `shards`-way layout
+            // at `target`, which must be missing or empty. The source is only read, apart from a
+            // single-file transaction log being split into months first, as on any start.
+            // Point the application at `target` once this returns.
+            static void reshard(Store source, Path target, int shards, Consumer<CsvStore> settings) {
+                if (shards < 1) throw new IllegalArgumentException("Shard count must be at least 1");
+                try {
+                    if (Files.exists(target)) {
+                        try (DirectoryStream<Path> entries = Files.newDirectoryStream(target)) {
+                            if (entries.iterator().hasNext()) throw new IllegalArgumentException("Target directory is not empty: " + target);
+                        }
+                    }
+                    Files.createDirectories(target);
+                    Files.write(target.resolve(LAYOUT_FILE), Arrays.asList("shards", Integer.toString(shards)), StandardCharsets.UTF_8);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                ShardedStore out = new ShardedStore(target.toString(), ItemPersistence.SNAPSHOT, settings);
+                out.initIfNeeded();
+                List<Item> items = source.loadItems();
+                IntStream.range(0, shards).parallel().forEach(i -> out.shards[i].saveItems(out.itemsOf(i, items)));
+                out.saveUsers(source.loadUsers());
+                for (StockAdjustment a : source.loadAdjustments()) out.appendAdjustment(a);
+                for (YearMonth month : source.txnSegments().keySet()) out.appendTxns(source.loadSegment(month));
+                out.close();
+            }
+        }
+
+        // ====== CSV TOKENIZER ======
+        // Splits one UTF-8 record in place: fields are offsets into the caller's byte buffer,
+        // numbers and timestamps are parsed straight from those bytes, and Strings are only
+        // made for fields read as text. Quoting follows the old splitCsv exactly: a quote
+        // toggles quoted mode wherever it appears, "" inside quotes is one quote, and the
+        // quote characters themselves are dropped. Anything the fast paths don't recognise is
+        // handed to the JDK parser on the field's text, so errors and edge cases match.
+        static final class CsvTokenizer {
+            private byte[] buf;
+            private int start, end;
+            private int count;
+            private int[] from = new int[8], to = new int[8];
+            private boolean[] hasQuote = new boolean[8];
+            private byte[] scratch = new byte[64];
+
+            // Tokenizes buf[start, end), which holds one record without its line terminator.
+            CsvTokenizer reset(byte[] buf, int start, int end) {
+                this.buf = buf; this.start = start; this.end = end;
+                count = 0;
+                int fieldStart = start;
+                boolean inQuotes = false, quoted = false;
+                for (int i = start; i < end; i++) {
+                    byte b = buf[i];
+                    if (b == '"') { inQuotes = !inQuotes; quoted = true; }
+                    else if (b == ',' && !inQuotes) { add(fieldStart, i, quoted); fieldStart = i + 1; quoted = false; }
+                }
+                add(fieldStart, end, quoted);
+                return this;
+            }
+
+            CsvTokenizer reset(String line) {
+                byte[] b = line.getBytes(StandardCharsets.UTF_8);
+                return reset(b, 0, b.length);
+            }
+
+            int fields() { return count; }
+
+            // true when the record is empty or whitespace only
+            boolean isBlank() {
+                for (int i = start; i < end; i++) if ((buf[i] & 0xFF) > ' ') return false;
+                return true;
+            }
+
+            String line() { return new String(buf, start, end - start, StandardCharsets.UTF_8); }
+
+            String text(int field) {
+                check(field);
+                int f = from[field], t = to[field];
+                if (!hasQuote[field]) return new String(buf, f, t - f, StandardCharsets.UTF_8);
+                if (scratch.length < t - f) scratch = new byte[Math.max(t - f, scratch.length * 2)];
+                int n = 0;
+                boolean inQuotes = false;
+                for (int i = f; i < t; i++) {
+                    byte b = buf[i];
+                    if (b == '"') {
+                        if (inQuotes && i + 1 < t && buf[i + 1] == '"') { scratch[n++] = '"'; i++; }
+                        else inQuotes = !inQuotes;
+                    } else if (b == '\r') {
+                        // a quoted line break reads back as \n, as readLine-joined records did
+                        if (i + 1 < t && buf[i + 1] == '\n') continue;
+                        scratch[n++] = '\n';
+                    } else scratch[n++] = b;
+                }
+                return new String(scratch, 0, n, StandardCharsets.UTF_8);
+            }
+
+            long longAt(int field) {
+                check(field);
+                int i = from[field], t = to[field];
+                boolean neg = i < t && buf[i] == '-';
+                if (neg || (i < t && buf[i] == '+')) i++;
+                if (hasQuote[field] || i == t || t - i > 18) return Long.parseLong(text(field));
+                long v = 0;
+                for (; i < t; i++) {
+                    int d = buf[i] - '0';
+                    if (d < 0 || d > 9) return Long.parseLong(text(field));
+                    v = v * 10 + d;
+                }
+                return neg ? -v : v;
+            }
+
+            int intAt(int field) {
+                long v = longAt(field);
+                if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) return Integer.parseInt(text(field));
+                return (int) v;
+            }
+
+            // Plain decimals with at most 15 significant digits are exact as mantissa / 10^k,
+            // which rounds the same way Double.parseDouble does; everything else goes to it.
+            double doubleAt(int field) {
+                check(field);
+                int i = from[field], t = to[field];
+                boolean neg = i < t && buf[i] == '-';
+                if (neg) i++;
+                long mantissa = 0;
+                int digits = 0, scale = -1;
+                for (; i < t; i++) {
+                    byte b = buf[i];
+                    if (b == '.' && scale < 0) { scale = 0; continue; }
+                    int d = b - '0';
+                    if (d < 0 || d > 9) { digits = 99; break; }
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) digits++;
+                    if (scale >= 0) scale++;
+                }
+                if (hasQuote[field] || digits > 15 || scale == 0 || i == from[field] + (neg ? 1 : 0) || scale > 22) {
+                    return Double.parseDouble(text(field));
+                }
+                double v = scale <= 0 ? mantissa : mantissa / POW10[scale];
+                return neg ? -v : v;
+            }
+
+            // yyyy-MM-dd HH:mm:ss, as CsvStore writes it
+            LocalDateTime timestampAt(int field) {
+                check(field);
+                int f = from[field];
+                if (!hasQuote[field] && to[field] - f == 19 && buf[f + 4] == '-' && buf[f + 7] == '-' && buf[f + 10] == ' '
+                        && buf[f + 13] == ':' && buf[f + 16] == ':') {
+                    int y = digits(f, 4), mo = digits(f + 5, 2), d = digits(f + 8, 2);
+                    int h = digits(f + 11, 2), mi = digits(f + 14, 2), s = digits(f + 17, 2);
+                    if (y > 0 && mo >= 1 && mo <= 12 && d >= 1 && (d <= 28 || d <= YearMonth.of(y, mo).lengthOfMonth())
+                            && h >= 0 && h <= 23 && mi >= 0 && mi <= 59 && s >= 0 && s <= 59) {
+                        return LocalDateTime.of(y, mo, d, h, mi, s);
+                    }
+                }
+                return LocalDateTime.parse(text(field), CsvStore.TS);
+            }
+
+            TxType typeAt(int field) {
+                check(field);
+                int f = from[field], n = to[field] - f;
+                if (!hasQuote[field]) {
+                    if (n == 2 && buf[f] == 'I' && buf[f + 1] == 'N') return TxType.IN;
+                    if (n == 3 && buf[f] == 'O' && buf[f + 1] == 'U' && buf[f + 2] == 'T') return TxType.OUT;
+                }
+                return TxType.valueOf(text(field));
+            }
+
+            boolean isChar(int field, char c) {
+                check(field);
+                return !hasQuote[field] && to[field] - from[field] == 1 && buf[from[field]] == c;
+            }
+
+            private int digits(int at, int n) {
+                int v = 0;
+                for (int i = at; i < at + n; i++) {
+                    int d = buf[i] - '0';
+                    if (d < 0 || d > 9) return -1;
+                    v = v * 10 + d;
+                }
+                return v;
+            }
+
+            private void add(int f, int t, boolean quoted) {
+                if (count == from.length) {
+                    from = Arrays.copyOf(from, count * 2);
+                    to = Arrays.copyOf(to, count * 2);
+                    hasQuote = Arrays.copyOf(hasQuote, count * 2);
+                }
+                from[count] = f; to[count] = t; hasQuote[count] = quoted;
+                count++;
+            }
+
+            private void check(int field) {
+                if (field >= count) throw new IllegalArgumentException("Missing field " + (field + 1) + " in: " + line());
+            }
+
+            private static final double[] POW10 = new double[23];
+            static { POW10[0] = 1; for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10; }
+        }
+
+        // Reads CSV records from a UTF-8 file through one reusable byte buffer. A record ends
+        // at a newline outside quotes, so quoted fields may span lines; a \r before the newline
+        // is dropped, as readLine would.
+        static final class CsvReader implements Closeable {
+            private final InputStream in;
+            private final CsvTokenizer tokens = new CsvTokenizer();
+            private byte[] buf = new byte[64 * 1024];
+            private int pos, limit;
+            private long consumed;      // file offset of buf[0]
+            private long recordEnd;    // file offset just past the current record's newline
+            private boolean terminated;
+            private boolean eof;
+
+            CsvReader(Path file) throws IOException { this.in = Files.newInputStream(file); }
+
+            // Advances to the next record; false at end of file.
+            boolean next() throws IOException {
+                if (pos >= limit && !fill()) return false;
+                boolean inQuotes = false;
+                int i = pos;
+                while (true) {
+                    if (i >= limit) {
+                        int scanned = i - pos;
+                        if (!fill()) break;
+                        i = pos + scanned;
+                        continue;
+                    }
+                    byte b = buf[i];
+                    if (b == '"') inQuotes = !inQuotes;
+                    else if (b == '\n' && !inQuotes) break;
+                    i++;
+                }
+                terminated = i < limit;
+                int end = i;
+                if (end > pos && buf[end - 1] == '\r') end--;
+                tokens.reset(buf, pos, end);
+                pos = terminated ? i + 1 : i;
+                recordEnd = consumed + pos;
+                return true;
+            }
+
+            CsvTokenizer tokens() { return tokens; }
+
+            // File offset just past the current record, and whether a newline ended it (a last
+            // record without one may have been cut short by a crash).
+            long recordEnd() { return recordEnd; }
+            boolean terminated() { return terminated; }
+
+            // Moves unread bytes to the front, growing the buffer if a record fills it, then reads.
+            private boolean fill() throws IOException {
+                if (eof) return false;
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    consumed += pos;
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n <= 0) { eof = true; return false; }
+                limit += n;
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException { in.close(); }
+        }
+
+        // ====== PARALLEL TRANSACTION LOADER ======
+        // Loads a transaction segment by memory-mapping it in chunks and parsing the chunks on the
+        // fork-join pool. A chunk can only be cut at a newline that is outside quotes, and
+        // whether a byte offset is inside quotes depends on every quote before it, so:
+        //   1. count quotes per raw chunk in parallel,
+        //   2. prefix the parities to know the quote state at each raw chunk start,
+        //   3. move each chunk start to the first unquoted newline after it, in parallel,
+        //   4. parse the adjusted chunks in parallel and concatenate them in file order.
+        // File order is id order for an append-only log, and the result is the same list
+        // loadTxnsSequential returns.
+        static class ParallelTxnLoader {
+            private static final long MIN_CHUNK = 1L << 20;
+            private static final long MAX_CHUNK = 256L << 20; // keeps every mapping far below 2 GB
+
+            private final Path file;
+
+            ParallelTxnLoader(Path file) { this.file = file; }
+
+            List<Txn> load() {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = ch.size();
+                    int parallelism = ForkJoinPool.getCommonPoolParallelism();
+                    long chunk = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / (parallelism * 4L) + 1));
+                    int n = (int) ((size + chunk - 1) / chunk);
+                    if (n == 0) return new ArrayList<>();
+                    long[] rawStart = new long[n + 1];
+                    for (int i = 0; i < n; i++) rawStart[i] = i * chunk;
+                    rawStart[n] = size;
+
+                    boolean[] oddQuotes = new boolean[n];
+                    IntStream.range(0, n).parallel().forEach(i -> oddQuotes[i] = (countQuotes(map(ch, rawStart[i], rawStart[i + 1])) & 1) == 1);
+                    boolean[] inQuotes = new boolean[n];
+                    for (int i = 1; i < n; i++) inQuotes[i] = inQuotes[i - 1] ^ oddQuotes[i - 1];
+
+                    // start[i] = offset of the first record owned by chunk i, or -1 if a single
+                    // record covers the whole raw chunk; chunk 0 starts after the header
+                    long[] start = new long[n];
+                    IntStream.range(0, n).parallel().forEach(i -> {
+                        MappedByteBuffer m = map(ch, rawStart[i], rawStart[i + 1]);
+                        int nl = nextRecordEnd(m, 0, i == 0 ? false : inQuotes[i]);
+                        start[i] = nl < 0 ? -1 : rawStart[i] + nl + 1;
+                    });
+
+                    List<long[]> ranges = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        if (start[i] < 0) continue;
+                        long end = size;
+                        for (int j = i + 1; j < n; j++) if (start[j] >= 0) { end = start[j]; break; }
+                        if (end > start[i]) ranges.add(new long[]{start[i], end});
+                    }
+                    // an ordered stream, so the chunks come back in file order
+                    List<List<Txn>> parsed = ranges.parallelStream().map(r -> parse(map(ch, r[0], r[1]))).collect(Collectors.toList());
+
+                    int total = 0;
+                    for (List<Txn> l : parsed) total += l.size();
+                    List<Txn> out = new ArrayList<>(total);
+                    for (List<Txn> l : parsed) out.addAll(l);
+                    return out;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private List<Txn> parse(MappedByteBuffer m) {
+                List<Txn> out = new ArrayList<>();
+                CsvTokenizer tokens = new CsvTokenizer();
+                byte[] rec = new byte[256];
+                int pos = 0, limit = m.limit();
+                while (pos < limit) {
+                    int end = nextRecordEnd(m, pos, false);
+                    int stop = end < 0 ? limit : end;
+                    int len = stop - pos;
+                    if (len > 0 && m.get(pos + len - 1) == '\r') len--; // as readLine would strip it
+                    if (rec.length < len) rec = new byte[Math.max(len, rec.length * 2)];
+                    m.get(pos, rec, 0, len);
+                    tokens.reset(rec, 0, len);
+                    if (!tokens.isBlank()) out.add(CsvStore.parseTxn(tokens));
+                    pos = stop + 1;
+                }
+                return out;
+            }
+
+            // Offset of the first newline at or after `from` that is outside quotes, or -1.
+            private static int nextRecordEnd(MappedByteBuffer m, int from, boolean inQuotes) {
+                for (int i = from, limit = m.limit(); i < limit; i++) {
+                    byte b = m.get(i);
+                    if (b == '"') inQuotes = !inQuotes;
+                    else if (b == '\n' && !inQuotes) return i;
+                }
+                return -1;
+            }
+
+            private static long countQuotes(MappedByteBuffer m) {
+                long n = 0;
+                for (int i = 0, limit = m.limit(); i < limit; i++) if (m.get(i) == '"') n++;
+                return n;
+            }
+
+            private static MappedByteBuffer map(FileChannel ch, long from, long to) {
+                try { return ch.map(FileChannel.MapMode.READ_ONLY, from, to - from); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+        }
+
+        // One month of the transaction log: transactions/yyyy-MM.csv, plus yyyy-MM.meta holding
+        // its time and id range, row count and the file size they were computed at. A meta whose
+        // size doesn't match the file (a crash before it was rewritten) is rebuilt by rescanning.
+        static final class TxnSegment {
+            static final String META_HEADER = "minTimestamp,maxTimestamp,minId,maxId,rows,bytes";
+
+            final YearMonth month;
+            final Path file;
+            final Path metaFile;
+            private LocalDateTime minTs, maxTs;
+            private long minId = Long.MAX_VALUE, maxId = Long.MIN_VALUE;
+            private long rows;
+            private boolean changed;
+
+            TxnSegment(Path dir, YearMonth month) {
+                this.month = month;
+                this.file = fileOf(dir, month);
+                this.metaFile = dir.resolve(month + ".meta");
+            }
+
+            // A summary of the same month in several logs (see ShardedStore), as of now. It has
+            // no file of its own and must not be written to.
+            static TxnSegment merge(YearMonth month, Collection<TxnSegment> parts) {
+                TxnSegment m = new TxnSegment(month);
+                for (TxnSegment p : parts) {
+                    synchronized (p) {
+                        if (p.rows == 0) continue;
+                        if (m.minTs == null || p.minTs.isBefore(m.minTs)) m.minTs = p.minTs;
+                        if (m.maxTs == null || p.maxTs.isAfter(m.maxTs)) m.maxTs = p.maxTs;
+                        m.minId = Math.min(m.minId, p.minId);
+                        m.maxId = Math.max(m.maxId, p.maxId);
+                        m.rows += p.rows;
+                    }
+                }
+                return m;
+            }
+
+            private TxnSegment(YearMonth month) { this.month = month; this.file = null; this.metaFile = null; }
+
+            static Path fileOf(Path dir, YearMonth month) { return dir.resolve(month + ".csv"); }
+
+            static YearMonth monthOf(Path file) {
+                String name = file.getFileName().toString();
+                try { return YearMonth.parse(name.substring(0, name.length() - ".csv".length())); }
+                catch (DateTimeParseException e) { return null; }
+            }
+
+            // A new, empty segment file with its header.
+            static TxnSegment create(Path dir, YearMonth month) {
+                TxnSegment seg = new TxnSegment(dir, month);
+                try {
+                    if (!Files.exists(seg.file)) Files.write(seg.file, Collections.singletonList(CsvStore.TXNS_HEADER), StandardCharsets.UTF_8);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                seg.changed = true;
+                return seg;
+            }
+
+            synchronized void add(TxnView t) {
+                LocalDateTime ts = t.timestamp();
+                if (minTs == null || ts.isBefore(minTs)) minTs = ts;
+                if (maxTs == null || ts.isAfter(maxTs)) maxTs = ts;
+                minId = Math.min(minId, t.id());
+                maxId = Math.max(maxId, t.id());
+                rows++;
+                changed = true;
+            }
+
+            synchronized long rows() { return rows; }
+            synchronized long maxId() { return rows == 0 ? 0 : maxId; }
+            synchronized long minId() { return rows == 0 ? 0 : minId; }
+            synchronized LocalDateTime minTimestamp() { return minTs; }
+            synchronized LocalDateTime maxTimestamp() { return maxTs; }
+
+            // true if the segment may hold rows in [start, end)
+            synchronized boolean overlaps(LocalDateTime start, LocalDateTime end) {
+                return rows > 0 && maxTs.compareTo(start) >= 0 && minTs.isBefore(end);
+            }
+
+            // Cuts the file back to `size`, undoing an append whose rows were never counted.
+            void truncate(long size) {
+                synchronized (this) {
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) { ch.truncate(size); }
+                    catch (IOException e) { throw new RuntimeException(e); }
+                }
+            }
+
+            // false when the meta is missing, unreadable or doesn't describe the file as it is
+            synchronized boolean readMeta() {
+                try (CsvReader r = new CsvReader(metaFile)) {
+                    if (!r.next() || !r.next()) return false;
+                    CsvTokenizer p = r.tokens();
+                    if (p.longAt(5) != Files.size(file)) return false;
+                    rows = p.longAt(4);
+                    if (rows > 0) {
+                        minTs = p.timestampAt(0);
+                        maxTs = p.timestampAt(1);
+                        minId = p.longAt(2);
+                        maxId = p.longAt(3);
+                    }
+                    changed = false;
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    return false;
+                }
+            }
+
+            synchronized void rebuildMeta(List<Txn> txns) {
+                minTs = maxTs = null;
+                minId = Long.MAX_VALUE;
+                maxId = Long.MIN_VALUE;
+                rows = 0;
+                for (Txn t : txns) add(t);
+                changed = true;
+                writeMetaIfChanged();
+            }
+
+            synchronized void writeMetaIfChanged() {
+                if (!changed) return;
+                StringBuilder sb = new StringBuilder(META_HEADER).append('\n');
+                if (rows > 0) {
+                    CsvStore.appendTimestamp(sb, minTs).append(',');
+                    CsvStore.appendTimestamp(sb, maxTs).append(',').append(minId).append(',').append(maxId);
+                } else sb.append(",,,");
+                try {
+                    sb.append(',').append(rows).append(',').append(Files.size(file)).append('\n');
+                    Path tmp = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+                    Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                changed = false;
+            }
+        }
+
+        // ====== BINARY SNAPSHOT ======
+        // snapshot.bin layout (big-endian):
+        //   int magic "INVS", int version, int stampLength, long[stampLength] source stamp,
+        //   int journalEntries,
+        //   then the item, transaction (stamped month only) and user sections, each a run of records
+        //   (int length > 0, payload) closed by a zero length; a transaction's note is an int
+        //   reference into the notes seen so far, followed by the text when it is a new one,
+        //   then a long CRC32 of every byte before it.
+        // A reader that finds a bad magic, another version, a different stamp or a CRC mismatch
+        // reports the snapshot as unusable and the caller falls back to CSV.
+        static class SnapshotFile {
+            static final int MAGIC = 0x494E5653;
+            static final int VERSION = 3;
+
+            static final class Contents {
+                List<Item> items;
+                List<Txn> txns;
+                List<User> users;
+                int journalEntries;
+            }
+
+            static void write(Path file, long[] stamp, int journalEntries, List<Item> items,
+                              Consumer<Consumer<? super TxnView>> txns, List<User> users) throws IOException {
+                CRC32 crc = new CRC32();
+                try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file), 1 << 16), crc))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(stamp.length);
+                    for (long v : stamp) out.writeLong(v);
+                    out.writeInt(journalEntries);
+                    RecordBuffer rec = new RecordBuffer();
+                    for (Item it : items) {
+                        rec.reset().putLong(it.id).putString(it.name).putString(it.category).putInt(it.quantity).putDouble(it.unitPrice).putInt(it.reorderPoint);
+                        rec.writeTo(out);
+                    }
+                    out.writeInt(0);
+                    Map<String, Integer> noteRefs = new HashMap<>();
+                    try {
+                        txns.accept(t -> {
+                            LocalDateTime ts = t.timestamp();
+                            rec.reset().putLong(t.id()).putLong(t.itemId()).putByte((byte) t.type().ordinal()).putInt(t.quantity())
+                                    .putLong(ts.toEpochSecond(ZoneOffset.UTC)).putInt(ts.getNano());
+                            // notes repeat a lot: each distinct note is written once, at first use
+                            Integer ref = noteRefs.get(t.note());
+                            if (ref != null) rec.putInt(ref);
+                            else {
+                                rec.putInt(noteRefs.size()).putString(t.note());
+                                noteRefs.put(t.note(), noteRefs.size());
+                            }
+                            try { rec.writeTo(out); }
+                            catch (IOException e) { throw new UncheckedIOException(e); }
+                        });
+                    } catch (UncheckedIOException e) { throw e.getCause(); }
+                    out.writeInt(0);
+                    for (User u : users) {
+                        rec.reset().putString(u.username).putString(u.passwordHash);
+                        rec.writeTo(out);
+                    }
+                    out.writeInt(0);
+                    out.flush();
+                    out.writeLong(crc.getValue());
+                }
+            }
+
+            static Contents read(Path file, long[] expectedStamp) {
+                if (!Files.exists(file)) return null;
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ChunkReader in = new ChunkReader(ch);
+                    if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+                    long[] stamp = new long[in.getInt()];
+                    for (int i = 0; i < stamp.length; i++) stamp[i] = in.getLong();
+                    if (!Arrays.equals(stamp, expectedStamp)) return null;
+                    Contents c = new Contents();
+                    c.journalEntries = in.getInt();
+                    TxType[] types = TxType.values();
+                    c.items = new ArrayList<>();
+                    for (int len; (len = in.record()) != 0; ) {
+                        c.items.add(new Item(in.getLong(), in.getString(), in.getString(), in.getInt(), in.getDouble(), in.getInt()));
+                    }
+                    c.txns = new ArrayList<>();
+                    List<String> notes = new ArrayList<>();
+                    for (int len; (len = in.record()) != 0; ) {
+                        long id = in.getLong(), itemId = in.getLong();
+                        TxType type = types[in.getByte()];
+                        int qty = in.getInt();
+                        LocalDateTime ts = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+                        int ref = in.getInt();
+                        if (ref == notes.size()) notes.add(in.getString());
+                        c.txns.add(new Txn(id, itemId, type, qty, ts, notes.get(ref)));
+                    }
+                    c.users = new ArrayList<>();
+                    for (int len; (len = in.record()) != 0; ) c.users.add(new User(in.getString(), in.getString()));
+                    long computed = in.crc();
+                    if (in.getLong() != computed) return null;
+                    return c;
+                } catch (IOException | RuntimeException e) {
+                    return null; // truncated or garbled: fall back to CSV
+                }
+            }
+
+            // Reads the file through one large buffer, feeding the CRC as bytes are consumed.
+            private static final class ChunkReader {
+                private final FileChannel ch;
+                private final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+                private final CRC32 crc = new CRC32();
+                private int crcPos; // buffer position up to which the CRC has been fed
+
+                ChunkReader(FileChannel ch) { this.ch = ch; buf.limit(0); }
+
+                // Makes the whole next record (length prefix included) available in the buffer.
+                int record() throws IOException {
+                    int len = getInt();
+                    if (len < 0) throw new IOException("Bad record length " + len);
+                    ensure(len);
+                    return len;
+                }
+
+                byte getByte() throws IOException { ensure(1); return buf.get(); }
+                int getInt() throws IOException { ensure(4); return buf.getInt(); }
+                long getLong() throws IOException { ensure(8); return buf.getLong(); }
+                double getDouble() throws IOException { ensure(8); return buf.getDouble(); }
+
+                String getString() throws IOException {
+                    int len = getInt();
+                    if (len < 0) return null;
+                    ensure(len);
+                    String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+                    buf.position(buf.position() + len);
+                    return s;
+                }
+
+                long crc() {
+                    crc.update(buf.array(), crcPos, buf.position() - crcPos);
+                    crcPos = buf.position();
+                    return crc.getValue();
+                }
+
+                private void ensure(int n) throws IOException {
+                    if (buf.remaining() >= n) return;
+                    if (n > buf.capacity()) throw new IOException("Record of " + n + " bytes exceeds the read buffer");
+                    crc.update(buf.array(), crcPos, buf.position() - crcPos);
+                    buf.compact();
+                    while (buf.position() < n) {
+                        if (ch.read(buf) < 0) throw new EOFException();
+                    }
+                    buf.flip();
+                    crcPos = 0;
+                }
+            }
+
+            // Reusable buffer one record is encoded into before its length is known.
+            private static final class RecordBuffer {
+                private ByteBuffer buf = ByteBuffer.allocate(256);
+
+                RecordBuffer reset() { buf.clear(); return this; }
+                RecordBuffer putByte(byte v) { ensure(1); buf.put(v); return this; }
+                RecordBuffer putInt(int v) { ensure(4); buf.putInt(v); return this; }
+                RecordBuffer putLong(long v) { ensure(8); buf.putLong(v); return this; }
+                RecordBuffer putDouble(double v) { ensure(8); buf.putDouble(v); return this; }
+
+                RecordBuffer putString(String s) {
+                    if (s == null) return putInt(-1);
+                    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                    putInt(b.length);
+                    ensure(b.length);
+                    buf.put(b);
+                    return this;
+                }
+
+                void writeTo(DataOutputStream out) throws IOException {
+                    out.writeInt(buf.position());
+                    out.write(buf.array(), 0, buf.position());
+                }
+
+                private void ensure(int n) {
+                    if (buf.remaining() >= n) return;
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+            }
+        }
+
+        // ====== TRANSACTION LOG WRITER ======
+        // FSYNC_EACH forces every appended record, GROUP_FSYNC forces once per flushed batch,
+        // OS_BUFFERED leaves it to the OS (the old Files.write behaviour).
+        enum Durability { FSYNC_EACH, GROUP_FSYNC, OS_BUFFERED }
+
+        // Keeps the log open on one channel. Appends from concurrent callers are queued and a
+        // single flusher thread writes whatever has gathered (optionally waiting a short window
+        // for more) in one write; each caller's future completes when its batch is durable.
+        static class TxnLogWriter implements Closeable {
+            private static final Pending CLOSE = new Pending(new byte[0]);
+
+            private static class Pending {
+                final byte[] data;
+                final CompletableFuture<Void> done = new CompletableFuture<>();
+                Pending(byte[] data) { this.data = data; }
+            }
+
+            private final FileChannel ch;
+            private final Durability durability;
+            private final long windowNanos;
+            private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+            private final Thread flusher;
+            private final Metrics.Timer flushTimer;
+            private final LongAdder records;
+            private final Runnable afterFlush; // on the flusher thread, after each batch; may be null
+            private volatile boolean closed;
+            private ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+
+            TxnLogWriter(Path file, Durability durability, long windowMicros) {
+                this(file, durability, windowMicros, "txn-log-writer", Metrics.LOG_FLUSH, Metrics.LOG_RECORDS, null);
+            }
+
+            TxnLogWriter(Path file, Durability durability, long windowMicros, String threadName,
+                         Metrics.Timer flushTimer, LongAdder records, Runnable afterFlush) {
+                try {
+                    this.ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                this.durability = durability;
+                this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                this.flushTimer = flushTimer;
+                this.records = records;
+                this.afterFlush = afterFlush;
+                this.flusher = new Thread(this::flushLoop, threadName);
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+
+            CompletableFuture<Void> append(byte[] record) {
+                if (closed) throw new IllegalStateException("Transaction log is closed");
+                Pending p = new Pending(record);
+                queue.add(p);
+                return p.done;
+            }
+
+            static void await(CompletableFuture<Void> f) {
+                try { f.join(); }
+                catch (CompletionException e) {
+                    Throwable c = e.getCause();
+                    if (c instanceof RuntimeException) throw (RuntimeException) c;
+                    throw new RuntimeException(c);
+                }
+            }
+
+            private void flushLoop() {
+                List<Pending> batch = new ArrayList<>();
+                boolean stop = false;
+                while (!stop) {
+                    try {
+                        batch.add(queue.take());
+                        if (windowNanos > 0) LockSupport.parkNanos(windowNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    queue.drainTo(batch);
+                    stop = batch.remove(CLOSE);
+                    if (!batch.isEmpty()) flush(batch);
+                    batch.clear();
+                }
+            }
+
+            // A failed batch is cut back off the file, so a later load finds neither rows whose
+            // callers were told they failed nor a torn last line. With FSYNC_EACH each record
+            // completes as soon as it is forced, and only the ones after it can fail.
+            private void flush(List<Pending> batch) {
+                long t0 = Metrics.start();
+                int written = 0;
+                long mark = -1; // file size before the records not yet completed
+                try {
+                    mark = ch.position();
+                    if (durability == Durability.FSYNC_EACH) {
+                        for (Pending p : batch) {
+                            write(ByteBuffer.wrap(p.data));
+                            ch.force(false);
+                            p.done.complete(null);
+                            written++;
+                            mark = ch.position();
+                        }
+                    } else {
+                        int total = 0;
+                        for (Pending p : batch) total += p.data.length;
+                        if (buf.capacity() < total) buf = ByteBuffer.allocateDirect(Integer.highestOneBit(total) << 1);
+                        buf.clear();
+                        for (Pending p : batch) buf.put(p.data);
+                        buf.flip();
+                        write(buf);
+                        if (durability == Durability.GROUP_FSYNC) ch.force(false);
+                        for (Pending p : batch) p.done.complete(null);
+                        written = batch.size();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (mark >= 0) {
+                        try { ch.truncate(mark); }
+                        catch (IOException te) { e.addSuppressed(te); }
+                    }
+                    for (int i = written; i < batch.size(); i++) batch.get(i).done.completeExceptionally(e);
+                }
+                flushTimer.stop(t0);
+                Metrics.add(records, written);
+                if (afterFlush != null) afterFlush.run();
+            }
+
+            private void write(ByteBuffer b) throws IOException {
+                while (b.hasRemaining()) ch.write(b);
+            }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                queue.add(CLOSE);
+                try { flusher.join(); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                try { ch.close(); }
+                catch (IOException e) { throw new RuntimeException(e); }
+            }
+        }
+
+        // ====== CHANGE FEED ======
+        // Every item change and every recorded transaction as a numbered event, for whatever
+        // follows the inventory (reordering, BI loads) instead of rereading it. Events go to
+        // changes.log, one JSON object per line in sequence order, through a background writer:
+        // publishing queues the line and returns, so no stock change waits for the feed. A
+        // crash can lose the last few queued lines. A gap in the sequence numbers shows it, and
+        // a follower that sees one should re-read the items it cares about.
+        static class ChangeEvent {
+            enum Kind { ITEM, ITEM_DELETED, TXN }
+
+            final long seq;
+            final Kind kind;
+            final long itemId;
+            final Item item;   // ITEM: the item as it was after the change
+            final Txn txn;     // TXN
+            final long next;   // feed offset just past this event; save it to resume after it
+
+            ChangeEvent(long seq, Kind kind, long itemId, Item item, Txn txn, long next) {
+                this.seq = seq;
+                this.kind = kind;
+                this.itemId = itemId;
+                this.item = item;
+                this.txn = txn;
+                this.next = next;
+            }
+
+            static ChangeEvent parse(String line, long next) {
+                Map<String, Object> o = Json.parseObject(line);
+                Kind kind = Kind.valueOf(String.valueOf(o.get("kind")));
+                long itemId = num(o, "itemId").longValue();
+                Item item = null;
+                Txn txn = null;
+                if (kind == Kind.ITEM) {
+                    item = new Item(itemId, (String) o.get("name"), (String) o.get("category"), num(o, "quantity").intValue(),
+                            num(o, "unitPrice").doubleValue(), num(o, "reorderPoint").intValue());
+                } else if (kind == Kind.TXN) {
+                    txn = new Txn(num(o, "txnId").longValue(), itemId, TxType.valueOf(String.valueOf(o.get("type"))),
+                            num(o, "quantity").intValue(), LocalDateTime.parse(String.valueOf(o.get("timestamp"))), (String) o.get("note"));
+                }
+                return new ChangeEvent(num(o, "seq").longValue(), kind, itemId, item, txn, next);
+            }
+
+            private static Number num(Map<String, Object> o, String key) {
+                Object v = o.get(key);
+                if (!(v instanceof Number)) throw new IllegalArgumentException("Bad change event, " + key + ": " + v);
+                return (Number) v;
+            }
+        }
+
+        static class ChangeFeed implements Closeable {
+            static final String FILE = "changes.log";
+            private static final byte[] SEQ = "{\"seq\":".getBytes(StandardCharsets.US_ASCII);
+            private static final int POLL_BATCH = 256;
+            private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+            // Nobody waits for the feed, so the writer gathers a millisecond of events per
+            // write rather than waking up for each one.
+            static final long FLUSH_WINDOW_MICROS = 1000;
+
+            private final Path file;
+            private final TxnLogWriter writer;
+            private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+            private long lastSeq;                 // guarded by this
+            private boolean closed;               // guarded by this
+            private volatile boolean drained;     // closed and everything written
+
+            ChangeFeed(Path file, Durability durability) {
+                this.file = file;
+                this.lastSeq = recover(file);
+                this.writer = new TxnLogWriter(file, durability, FLUSH_WINDOW_MICROS, "change-feed-writer",
+                        Metrics.FEED_FLUSH, Metrics.FEED_EVENTS, this::wakeSubscribers);
+                Metrics.gauge("feed.lastSeq", this::lastSeq);
+            }
+
+            Path file() { return file; }
+
+            synchronized long lastSeq() { return lastSeq; }
+
+            void itemChanged(Item it) {
+                StringBuilder sb = new StringBuilder(160).append(",\"kind\":\"ITEM\",\"itemId\":").append(it.id).append(",\"name\":");
+                Json.quote(sb, it.name).append(",\"category\":");
+                Json.quote(sb, it.category).append(",\"quantity\":").append(it.quantity)
+                        .append(",\"unitPrice\":").append(it.unitPrice).append(",\"reorderPoint\":").append(it.reorderPoint);
+                publish(sb);
+            }
+
+            void itemDeleted(long itemId) {
+                publish(new StringBuilder(48).append(",\"kind\":\"ITEM_DELETED\",\"itemId\":").append(itemId));
+            }
+
+            void txnRecorded(TxnView t) {
+                StringBuilder sb = new StringBuilder(160).append(",\"kind\":\"TXN\",\"itemId\":").append(t.itemId())
+                        .append(",\"txnId\":").append(t.id()).append(",\"type\":\"").append(t.type().name())
+                        .append("\",\"quantity\":").append(t.quantity()).append(",\"timestamp\":\"");
+                timestamp(sb, t.timestamp()).append("\",\"note\":");
+                Json.quote(sb, t.note());
+                publish(sb);
+            }
+
+            // yyyy-MM-ddTHH:mm:ss, without the garbage of LocalDateTime.toString
+            private static StringBuilder timestamp(StringBuilder sb, LocalDateTime t) {
+                sb.append(t.getYear());
+                pad(sb.append('-'), t.getMonthValue());
+                pad(sb.append('-'), t.getDayOfMonth());
+                pad(sb.append('T'), t.getHour());
+                pad(sb.append(':'), t.getMinute());
+                return pad(sb.append(':'), t.getSecond());
+            }
+
+            private static StringBuilder pad(StringBuilder sb, int v) { return sb.append((char) ('0' + v / 10)).append((char) ('0' + v % 10)); }
+
+            // The line is built before taking the lock; under it the sequence number is only
+            // put in front and the line queued, which keeps the file in sequence order.
+            private void publish(StringBuilder body) {
+                body.append("}\n");
+                byte[] tail = new byte[body.length()];
+                for (int i = 0; i < tail.length; i++) {
+                    char c = body.charAt(i);
+                    if (c >= 0x80) { tail = body.toString().getBytes(StandardCharsets.UTF_8); break; }
+                    tail[i] = (byte) c;
+                }
+                synchronized (this) {
+                    if (closed) { Metrics.inc(Metrics.FEED_DROPPED); return; }
+                    long seq = lastSeq + 1;
+                    int digits = 1;
+                    for (long v = seq; v >= 10; v /= 10) digits++;
+                    byte[] line = new byte[SEQ.length + digits + tail.length];
+                    System.arraycopy(SEQ, 0, line, 0, SEQ.length);
+                    for (long v = seq, i = SEQ.length + digits - 1; i >= SEQ.length; v /= 10, i--) line[(int) i] = (byte) ('0' + v % 10);
+                    System.arraycopy(tail, 0, line, SEQ.length + digits, tail.length);
+                    writer.append(line);
+                    lastSeq = seq;
+                }
+            }
+
+            // Delivers the feed from `offset` (0 = the beginning) to `subscriber` on a thread of
+            // its own, as fast as it requests. The file is the buffer: a subscriber that falls
+            // behind does so on disk, not in memory, and holds up nobody recording stock. It
+            // completes once the feed is closed and it has seen every event.
+            void subscribe(long offset, Flow.Subscriber<? super ChangeEvent> subscriber) {
+                Subscription s = new Subscription(offset, subscriber);
+                subscriptions.add(s);
+                s.thread.start();
+            }
+
+            @Override
+            public void close() {
+                synchronized (this) {
+                    if (closed) return;
+                    closed = true;
+                }
+                writer.close();
+                drained = true;
+                wakeSubscribers();
+            }
+
+            private void wakeSubscribers() {
+                for (Subscription s : subscriptions) LockSupport.unpark(s.thread);
+            }
+
+            private final class Subscription implements Flow.Subscription, Runnable {
+                final long offset;
+                final Flow.Subscriber<? super ChangeEvent> subscriber;
+                final Thread thread;
+                final AtomicLong demand = new AtomicLong();
+                volatile boolean cancelled;
+                volatile RuntimeException badRequest;
+
+                Subscription(long offset, Flow.Subscriber<? super ChangeEvent> subscriber) {
+                    this.offset = offset;
+                    this.subscriber = subscriber;
+                    this.thread = new Thread(this, "change-feed-subscriber");
+                    thread.setDaemon(true);
+                }
+
+                @Override
+                public void request(long n) {
+                    if (n <= 0) badRequest = new IllegalArgumentException("Requested " + n + " events; must be positive");
+                    else demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                    LockSupport.unpark(thread);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                    LockSupport.unpark(thread);
+                }
+
+                @Override
+                public void run() {
+                    try {
+                        subscriber.onSubscribe(this);
+                        try (FeedReader reader = new FeedReader(file, offset)) { deliver(reader); }
+                    } catch (RuntimeException e) {
+                        if (!cancelled) subscriber.onError(e);
+                    } finally { subscriptions.remove(this); }
+                }
+
+                private void deliver(FeedReader reader) {
+                    while (!cancelled) {
+                        if (badRequest != null) throw badRequest;
+                        long want = demand.get();
+                        if (want == 0) { LockSupport.park(this); continue; }
+                        boolean last = drained; // read before polling, so nothing written after it is missed
+                        List<ChangeEvent> batch = reader.poll((int) Math.min(want, POLL_BATCH));
+                        if (batch.isEmpty()) {
+                            if (last) { subscriber.onComplete(); return; }
+                            LockSupport.parkNanos(this, IDLE_NANOS); // the writer wakes us after each flush
+                            continue;
+                        }
+                        for (ChangeEvent e : batch) {
+                            if (cancelled) return;
+                            if (want != Long.MAX_VALUE) demand.decrementAndGet();
+                            subscriber.onNext(e);
+                        }
+                    }
+                }
+            }
+
+            // Last sequence number in the file, after cutting off a line a crash left half written.
+            private static long recover(Path file) {
+                if (!Files.exists(file)) return 0;
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    long end = lastIndexOf(ch, ch.size(), (byte) '\n');
+                    if (end + 1 < ch.size()) ch.truncate(end + 1);
+                    if (end < 0) return 0;
+                    long start = lastIndexOf(ch, end, (byte) '\n') + 1;
+                    ByteBuffer b = ByteBuffer.allocate((int) (end - start));
+                    while (b.hasRemaining()) if (ch.read(b, start + b.position()) < 0) break;
+                    return ChangeEvent.parse(new String(b.array(), StandardCharsets.UTF_8), end + 1).seq;
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            // Position of the last `c` before `end`, or -1.
+            private static long lastIndexOf(FileChannel ch, long end, byte c) throws IOException {
+                ByteBuffer b = ByteBuffer.allocate(8192);
+                for (long pos = end; pos > 0; ) {
+                    int n = (int) Math.min(b.capacity(), pos);
+                    long from = pos - n;
+                    b.clear().limit(n);
+                    while (b.hasRemaining()) if (ch.read(b, from + b.position()) < 0) break;
+                    for (int i = n - 1; i >= 0; i--) if (b.get(i) == c) return from + i;
+                    pos = from;
+                }
+                return -1;
+            }
+        }
+
+        // Reads changes.log from a saved offset and returns whole lines only, so it can follow
+        // the file while the feed is still writing it. After a restart, open one at the `next`
+        // of the last event handled; nothing before it is read again.
+        static class FeedReader implements Closeable {
+            private final FileChannel ch;
+            private byte[] buf = new byte[64 * 1024];
+            private int start, end, scanned; // buf[start, end) is the file from `offset` on; no newline in [start, scanned)
+            private long offset;
+
+            FeedReader(Path file, long offset) {
+                checkOffset(file, offset);
+                try { this.ch = FileChannel.open(file, StandardOpenOption.READ); }
+                catch (IOException e) { throw new RuntimeException(e); }
+                this.offset = offset;
+            }
+
+            // Where the next unread event starts.
+            long offset() { return offset; }
+
+            // Up to `max` events written since the last call; empty when there's nothing new.
+            List<ChangeEvent> poll(int max) {
+                List<ChangeEvent> out = new ArrayList<>();
+                try {
+                    while (out.size() < max) {
+                        int nl = -1;
+                        for (int i = scanned; i < end && nl < 0; i++) if (buf[i] == '\n') nl = i;
+                        if (nl < 0) {
+                            scanned = end;
+                            if (!fill()) break;
+                            continue;
+                        }
+                        long next = offset + (nl + 1 - start);
+                        out.add(ChangeEvent.parse(new String(buf, start, nl - start, StandardCharsets.UTF_8), next));
+                        offset = next;
+                        start = scanned = nl + 1;
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                return out;
+            }
+
+            // Reads on from the end of what's buffered; false if the file has nothing more yet.
+            private boolean fill() throws IOException {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    scanned -= start;
+                    start = 0;
+                }
+                if (end == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                int n = ch.read(ByteBuffer.wrap(buf, end, buf.length - end), offset + end);
+                if (n <= 0) return false;
+                end += n;
+                return true;
+            }
+
+            private static void checkOffset(Path file, long offset) {
+                try (FileChannel c = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (offset < 0 || offset > c.size()) throw new IllegalArgumentException("Offset " + offset + " is outside " + file);
+                    if (offset == 0) return;
+                    ByteBuffer b = ByteBuffer.allocate(1);
+                    c.read(b, offset - 1);
+                    if (b.get(0) != '\n') throw new IllegalArgumentException("Offset " + offset + " is not the start of an event in " + file);
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            @Override
+            public void close() {
+                try { ch.close(); }
+                catch (IOException e) { throw new RuntimeException(e); }
+            }
+        }
+
+        // ====== SECURITY ======
+        static class SecurityUtil {
+            private static final char[] HEX = "0123456789abcdef".toCharArray();
+            private static final SecureRandom RANDOM = new SecureRandom();
+            // digest() resets the instance, so each thread reuses one
+            private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+                try { return MessageDigest.getInstance("SHA-256"); }
+                catch (NoSuchAlgorithmException e) { throw new RuntimeException(e); }
+            });
+
+            static String sha256Hex(String input) {
+                return hex(SHA256.get().digest(input.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            static String hex(byte[] bytes) {
+                char[] out = new char[bytes.length * 2];
+                for (int i = 0; i < bytes.length; i++) {
+                    out[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+                    out[i * 2 + 1] = HEX[bytes[i] & 0xF];
+                }
+                return new String(out);
+            }
+
+            // Compares every byte, so the time taken doesn't tell how much of a hash matched.
+            static boolean hashesEqual(String a, String b) {
+                return MessageDigest.isEqual(a.getBytes(StandardCharsets.US_ASCII), b.getBytes(StandardCharsets.US_ASCII));
+            }
+
+            // 256 random bits, URL-safe
+            static String newToken() {
+                byte[] b = new byte[32];
+                RANDOM.nextBytes(b);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+            }
+        }
+
+        // ====== METRICS ======
+        // Counters and latency histograms for the service and storage hot paths. Timers live in
+        // static fields, so recording one is a handful of atomic adds with no allocation. When
+        // metrics are off, start() returns 0 without reading the clock and stop(0) returns at
+        // once. Enabled by default; -Dinventory.metrics=false starts with them off.
+        static final class Metrics {
+            private static volatile boolean enabled = !"false".equalsIgnoreCase(System.getProperty("inventory.metrics"));
+            private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+            private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+            private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+            private static ScheduledExecutorService dumper;
+
+            // storage
+            static final Timer LOAD_ITEMS = timer("store.loadItems");
+            static final Timer SAVE_ITEMS = timer("store.saveItems");
+            static final Timer APPEND_JOURNAL = timer("store.appendJournal");
+            static final Timer LOAD_TXNS = timer("store.loadTxns");
+            static final Timer APPEND_TXN = timer("store.appendTxn");
+            static final Timer APPEND_TXNS = timer("store.appendTxns");
+            static final Timer LOAD_USERS = timer("store.loadUsers");
+            static final Timer SAVE_USERS = timer("store.saveUsers");
+            static final Timer WRITE_SNAPSHOT = timer("store.writeSnapshot");
+            static final Timer LOG_FLUSH = timer("txnlog.flush");
+            static final LongAdder LOG_RECORDS = counter("txnlog.records");
+            static final Timer FEED_FLUSH = timer("feed.flush");
+            static final LongAdder FEED_EVENTS = counter("feed.events");
+            static final LongAdder FEED_DROPPED = counter("feed.dropped");
+            // services
+            static final Timer AUTHENTICATE = timer("users.authenticate");
+            static final Timer CHANGE_USERS = timer("users.change");
+            static final Timer LIST_ITEMS = timer("inventory.listItems");
+            static final Timer FIND_ITEM = timer("inventory.findById");
+            static final Timer CREATE_ITEM = timer("inventory.createItem");
+            static final Timer UPDATE_ITEM = timer("inventory.updateItem");
+            static final Timer DELETE_ITEM = timer("inventory.deleteItem");
+            static final Timer ADJUST_STOCK = timer("inventory.adjustStock");
+            static final Timer LOW_STOCK = timer("inventory.lowStockItems");
+            static final LongAdder LOW_STOCK_EVENTS = counter("inventory.lowStockEvents");
+            static final Timer SEARCH_ITEMS = timer("inventory.searchItems");
+            static final Timer RECORD = timer("txn.record");
+            static final LongAdder SEGMENT_LOADS = counter("txn.segmentLoads");
+            static final LongAdder REPORT_CACHE_HITS = counter("reports.cacheHits");
+            static final LongAdder REPORT_CACHE_MISSES = counter("reports.cacheMisses");
+            static final Timer RANGE_SCAN = timer("txn.forEachByDate");
+            static final Timer INGEST = timer("txn.ingest");
+            static final Timer SEARCH_TXNS = timer("txn.searchNotes");
+            static final Timer PLACE_ORDER = timer("orders.place");
+            static final Timer RESERVE_ORDER = timer("orders.reserve");
+            static final Timer CONFIRM_ORDER = timer("orders.confirm");
+            static final LongAdder ORDERS_EXPIRED = counter("orders.expired");
+            static final Timer STOCK_REPORT = timer("report.stock");
+            static final Timer TXN_REPORT = timer("report.transactions");
+            static final Timer MOVEMENT_REPORT = timer("report.movementSummary");
+            static final Timer STOCK_AS_OF = timer("txn.stockAsOf");
+            static final Timer STOCK_AS_OF_REPORT = timer("report.stockAsOf");
+            static final Timer ANALYTICS = timer("analytics.byCategory");
+            static final Timer ANALYTICS_REPORT = timer("report.categoryAnalytics");
+            static final Timer HTTP_REQUEST = timer("http.request");
+            static final LongAdder HTTP_REJECTED = counter("http.rejected");
+            static final LongAdder AUTH_FAILURES = counter("users.authFailures");
+            static final LongAdder RECORD_FAILURES = counter("txn.recordFailures");
+            static final LongAdder INGESTED_ROWS = counter("txn.ingestedRows");
+
+            private Metrics() {}
+
+            static boolean enabled() { return enabled; }
+            static void setEnabled(boolean on) { enabled = on; }
+
+            // Start of a timed section; pass the result to Timer.stop. The low bit is forced
+            // so a real reading is never mistaken for "disabled".
+            static long start() { return enabled ? System.nanoTime() | 1 : 0; }
+
+            static void inc(LongAdder counter) { if (enabled) counter.increment(); }
+            static void add(LongAdder counter, long n) { if (enabled) counter.add(n); }
+
+            static Timer timer(String name) { return timers.computeIfAbsent(name, Timer::new); }
+            static LongAdder counter(String name) { return counters.computeIfAbsent(name, n -> new LongAdder()); }
+
+            // Dataset sizes, read only when metrics are dumped; a later registration under the
+            // same name replaces the earlier one.
+            static void gauge(String name, LongSupplier value) { gauges.put(name, value); }
+
+            static Map<String, Timer> timers() { return Collections.unmodifiableMap(timers); }
+
+            static Map<String, Long> counterValues() {
+                Map<String, Long> out = new LinkedHashMap<>();
+                counters.forEach((k, v) -> out.put(k, v.sum()));
+                return out;
+            }
+
+            static Map<String, Long> gaugeValues() {
+                Map<String, Long> out = new LinkedHashMap<>();
+                gauges.forEach((k, v) -> out.put(k, v.getAsLong()));
+                return out;
+            }
+
+            static void reset() {
+                for (Timer t : timers.values()) t.reset();
+                for (LongAdder c : counters.values()) c.reset();
+            }
+
+            static String dump() {
+                StringBuilder sb = new StringBuilder();
+                sb.append("metrics at ").append(LocalDateTime.now().withNano(0)).append(enabled ? "" : " (disabled)").append('\n');
+                sb.append("sizes:");
+                gaugeValues().forEach((k, v) -> sb.append(' ').append(k).append('=').append(v));
+                sb.append("\ncounters:");
+                counterValues().forEach((k, v) -> sb.append(' ').append(k).append('=').append(v));
+                sb.append('\n').append(String.format(Locale.US, "%-26s %10s %10s %10s %10s %10s %10s%n",
+                        "timer (us)", "count", "mean", "p50", "p99", "p99.9", "max"));
+                for (Timer t : timers.values()) {
+                    long n = t.count();
+                    if (n == 0) continue;
+                    sb.append(String.format(Locale.US, "%-26s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                            t.name, n, t.meanNanos() / 1e3, t.percentileNanos(0.50) / 1e3, t.percentileNanos(0.99) / 1e3,
+                            t.percentileNanos(0.999) / 1e3, t.maxNanos() / 1e3));
+                }
+                return sb.toString();
+            }
+
+            // Appends dump() to `file` every `periodSeconds` from a daemon thread, replacing
+            // any dump already scheduled.
+            static synchronized void startDump(Path file, long periodSeconds) {
+                stopDump();
+                dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "metrics-dump");
+                    t.setDaemon(true);
+                    return t;
+                });
+                dumper.scheduleAtFixedRate(() -> {
+                    try {
+                        Files.writeString(file, dump() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    } catch (IOException e) {
+                        System.err.println("Metrics dump failed: " + e.getMessage());
+                    }
+                }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+            }
+
+            static synchronized boolean stopDump() {
+                if (dumper == null) return false;
+                dumper.shutdownNow();
+                dumper = null;
+                return true;
+            }
+
+            static void registerMBean() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName(MetricsMXBean.NAME));
+                } catch (InstanceAlreadyExistsException e) {
+                    // already registered by an earlier instance in this JVM
+                } catch (JMException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            // Log-linear latency histogram: 8 sub-buckets per power of two, so any recorded
+            // value is reported within 12.5% of its true value, from 1 ns up to Long.MAX_VALUE.
+            static final class Timer {
+                private static final int SUB_BITS = 3;
+                private static final int SUB = 1 << SUB_BITS;
+                private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+                final String name;
+                private final LongAdder count = new LongAdder();
+                private final LongAdder totalNanos = new LongAdder();
+                private final AtomicLong maxNanos = new AtomicLong();
+                private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+                private Timer(String name) { this.name = name; }
+
+                void stop(long start) {
+                    if (start != 0) record(System.nanoTime() - start);
+                }
+
+                void record(long nanos) {
+                    if (nanos < 0) nanos = 0;
+                    count.increment();
+                    totalNanos.add(nanos);
+                    buckets.incrementAndGet(bucket(nanos));
+                    long max;
+                    while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) { }
+                }
+
+                long count() { return count.sum(); }
+                long maxNanos() { return maxNanos.get(); }
+                double meanNanos() { long n = count.sum(); return n == 0 ? 0 : (double) totalNanos.sum() / n; }
+
+                // Upper bound of the bucket holding the p-th fraction of samples, capped at max.
+                long percentileNanos(double p) {
+                    long total = 0;
+                    for (int i = 0; i < BUCKETS; i++) total += buckets.get(i);
+                    if (total == 0) return 0;
+                    long rank = Math.max(1, (long) Math.ceil(p * total));
+                    long seen = 0;
+                    for (int i = 0; i < BUCKETS; i++) {
+                        seen += buckets.get(i);
+                        if (seen >= rank) return Math.min(upperBound(i), maxNanos.get());
+                    }
+                    return maxNanos.get();
+                }
+
+                void reset() {
+                    count.reset();
+                    totalNanos.reset();
+                    maxNanos.set(0);
+                    for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+                }
+
+                static int bucket(long v) {
+                    if (v < SUB) return (int) v;
+                    int exp = 63 - Long.numberOfLeadingZeros(v);
+                    return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+                }
+
+                static long upperBound(int bucket) {
+                    if (bucket < SUB) return bucket;
+                    int exp = bucket / SUB + SUB_BITS - 1;
+                    long width = 1L << (exp - SUB_BITS);
+                    long lower = (SUB + bucket % SUB) * width;
+                    return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+                }
+            }
+        }
+
+        // JMX view of Metrics, registered as NamanDigital:type=Metrics. Latencies are in
+        // microseconds and keyed by timer name.
+        public interface MetricsMXBean {
+            String NAME = "NamanDigital:type=Metrics";
+
+            boolean isEnabled();
+            void setEnabled(boolean enabled);
+            Map<String, Long> getDatasetSizes();
+            Map<String, Long> getCounters();
+            Map<String, Long> getCallCounts();
+            Map<String, Double> getMeanMicros();
+            Map<String, Double> getP99Micros();
+            Map<String, Double> getMaxMicros();
+            String dump();
+            void reset();
+            void startDump(String file, long periodSeconds);
+            boolean stopDump();
+        }
+
+        static class MetricsBean implements MetricsMXBean {
+            public boolean isEnabled() { return Metrics.enabled(); }
+            public void setEnabled(boolean enabled) { Metrics.setEnabled(enabled); }
+            public Map<String, Long> getDatasetSizes() { return Metrics.gaugeValues(); }
+            public Map<String, Long> getCounters() { return Metrics.counterValues(); }
+            public Map<String, Long> getCallCounts() {
+                Map<String, Long> out = new LinkedHashMap<>();
+                for (Metrics.Timer t : Metrics.timers().values()) out.put(t.name, t.count());
+                return out;
+            }
+            public Map<String, Double> getMeanMicros() { return timerValues(t -> t.meanNanos() / 1e3); }
+            public Map<String, Double> getP99Micros() { return timerValues(t -> t.percentileNanos(0.99) / 1e3); }
+            public Map<String, Double> getMaxMicros() { return timerValues(t -> t.maxNanos() / 1e3); }
+            public String dump() { return Metrics.dump(); }
+            public void reset() { Metrics.reset(); }
+            public void startDump(String file, long periodSeconds) { Metrics.startDump(Paths.get(file), periodSeconds); }
+            public boolean stopDump() { return Metrics.stopDump(); }
+
+            private static Map<String, Double> timerValues(ToDoubleFunction<Metrics.Timer> f) {
+                Map<String, Double> out = new LinkedHashMap<>();
+                for (Metrics.Timer t : Metrics.timers().values()) out.put(t.name, f.applyAsDouble(t));
+                return out;
+            }
+        }
+
+        // ====== COLLECTIONS ======
+        // Open-addressing hash map keyed by primitive long, so id lookups don't box.
+        static class LongMap<V> {
+            private static final long EMPTY = Long.MIN_VALUE;
+            private long[] keys;
+            private Object[] vals;
+            private int size;
+            private int mask;
+
+            LongMap() { this(16); }
+
+            LongMap(int expected) {
+                int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+                keys = new long[cap];
+                Arrays.fill(keys, EMPTY);
+                vals = new Object[cap];
+                mask = cap - 1;
+            }
+
+            int size() { return size; }
+
+            @SuppressWarnings("unchecked")
+            V get(long key) {
+                if (key == EMPTY) return null;
+                int i = slot(key);
+                while (true) {
+                    long k = keys[i];
+                    if (k == key) return (V) vals[i];
+                    if (k == EMPTY) return null;
+                    i = (i + 1) & mask;
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            V put(long key, V val) {
+                if (key == EMPTY) throw new IllegalArgumentException("Reserved key: " + key);
+                int i = slot(key);
+                while (true) {
+                    long k = keys[i];
+                    if (k == key) { V old = (V) vals[i]; vals[i] = val; return old; }
+                    if (k == EMPTY) break;
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key; vals[i] = val;
+                if (++size * 2 > keys.length) resize();
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            V remove(long key) {
+                if (key == EMPTY) return null;
+                int i = slot(key);
+                while (true) {
+                    long k = keys[i];
+                    if (k == EMPTY) return null;
+                    if (k == key) break;
+                    i = (i + 1) & mask;
+                }
+                V old = (V) vals[i];
+                size--;
+                // backward-shift deletion keeps probe chains intact without tombstones
+                int gap = i;
+                int j = (i + 1) & mask;
+                while (keys[j] != EMPTY) {
+                    int home = slot(keys[j]);
+                    if (((j - home) & mask) >= ((j - gap) & mask)) {
+                        keys[gap] = keys[j]; vals[gap] = vals[j];
+                        gap = j;
+                    }
+                    j = (j + 1) & mask;
+                }
+                keys[gap] = EMPTY; vals[gap] = null;
+                return old;
+            }
+
+            private int slot(long key) {
+                long h = key * 0x9E3779B97F4A7C15L;
+                return (int) (h ^ (h >>> 32)) & mask;
+            }
+
+            private void resize() {
+                long[] oldKeys = keys; Object[] oldVals = vals;
+                keys = new long[oldKeys.length << 1];
+                Arrays.fill(keys, EMPTY);
+                vals = new Object[keys.length];
+                mask = keys.length - 1;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] == EMPTY) continue;
+                    int j = slot(oldKeys[i]);
+                    while (keys[j] != EMPTY) j = (j + 1) & mask;
+                    keys[j] = oldKeys[i]; vals[j] = oldVals[i];
+                }
+            }
+        }
+
+        // ====== TEXT SEARCH ======
+        // Inverted index from words to the ids of the records holding them. Words are runs of
+        // letters and digits, lower-cased. A query matches the records that hold, for each of
+        // its words, some word starting with it: "blu wid" finds "Blue Widget". Words live in a
+        // sorted map, so a prefix is a range of it; each word's ids are a sorted long array.
+        static final class TextIndex {
+            private final ConcurrentSkipListMap<String, Postings> words = new ConcurrentSkipListMap<>();
+
+            // Distinct words of the texts, in order of first appearance. Nulls are skipped.
+            static List<String> words(String... texts) {
+                List<String> out = new ArrayList<>(4);
+                for (String text : texts) {
+                    if (text == null) continue;
+                    int start = -1;
+                    for (int i = 0; i <= text.length(); i++) {
+                        boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                        if (part && start < 0) start = i;
+                        else if (!part && start >= 0) {
+                            String w = text.substring(start, i).toLowerCase(Locale.ROOT);
+                            if (!out.contains(w)) out.add(w);
+                            start = -1;
+                        }
+                    }
+                }
+                return out;
+            }
+
+            // A word's entry goes once its last id is removed. The skip list's compute methods
+            // aren't atomic against each other, so the emptied Postings is retired under its own
+            // lock first: an add that finds it takes it out of the map itself and starts again.
+            void add(long id, List<String> words) {
+                for (String w : words) {
+                    Postings p;
+                    while (!(p = this.words.computeIfAbsent(w, k -> new Postings())).add(id)) this.words.remove(w, p);
+                }
+            }
+
+            void remove(long id, List<String> words) {
+                for (String w : words) this.words.computeIfPresent(w, (k, p) -> p.remove(id) ? p : null);
+            }
+
+            // Ids of the records matching every word of `query`, ascending; none for a query
+            // without words. Words are taken cheapest first, and once few candidates are left
+            // they're looked up in the remaining words' lists instead of merging those.
+            long[] search(String query) {
+                List<String> terms = words(query);
+                List<List<Postings>> hits = new ArrayList<>(terms.size());
+                for (String t : terms) {
+                    List<Postings> h = new ArrayList<>(words.subMap(t, true, t + Character.MAX_VALUE, false).values());
+                    if (h.isEmpty()) return new long[0];
+                    hits.add(h);
+                }
+                if (hits.isEmpty()) return new long[0];
+                long[] sizes = new long[hits.size()];
+                Integer[] order = new Integer[hits.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                    for (Postings p : hits.get(i)) sizes[i] += p.size();
+                }
+                Arrays.sort(order, Comparator.comparingLong(i -> sizes[i]));
+                long[] ids = union(hits.get(order[0]));
+                for (int k = 1; k < order.length && ids.length > 0; k++) {
+                    List<Postings> h = hits.get(order[k]);
+                    if (h.size() == 1) ids = h.get(0).retain(ids);
+                    else ids = (long) ids.length * h.size() * 16 < sizes[order[k]] ? probe(ids, h) : intersect(ids, ids.length, union(h), -1);
+                }
+                return ids;
+            }
+
+            // What the index holds as of now, with an estimate of the heap it takes. Walks every word.
+            Footprint footprint() {
+                int n = 0;
+                long ids = 0, bytes = 0;
+                for (Map.Entry<String, Postings> e : words.entrySet()) {
+                    Postings p = e.getValue();
+                    synchronized (p) {
+                        if (p.size > 0) n++;
+                        ids += p.size;
+                        // key string and its bytes, map node, Postings and its array
+                        bytes += 56 + e.getKey().length() + 40 + 24 + 16 + 8L * p.ids.length;
+                    }
+                }
+                return new Footprint(n, ids, bytes);
+            }
+
+            // `ids` counts a record once for every word it holds.
+            static final class Footprint {
+                final int words;
+                final long ids;
+                final long bytes;
+
+                Footprint(int words, long ids, long bytes) { this.words = words; this.ids = ids; this.bytes = bytes; }
+
+                @Override public String toString() {
+                    return String.format(Locale.US, "%,d words, %,d entries, about %.1f MB", words, ids, bytes / (1024.0 * 1024));
+                }
+            }
+
+            private static long[] union(List<Postings> lists) {
+                if (lists.size() == 1) return lists.get(0).snapshot();
+                long[][] parts = new long[lists.size()][];
+                int n = 0;
+                for (int i = 0; i < parts.length; i++) n += (parts[i] = lists.get(i).snapshot()).length;
+                long[] all = new long[n];
+                int at = 0;
+                for (long[] p : parts) { System.arraycopy(p, 0, all, at, p.length); at += p.length; }
+                Arrays.sort(all);
+                int u = 0;
+                for (int i = 0; i < n; i++) if (u == 0 || all[i] != all[u - 1]) all[u++] = all[i];
+                return u == n ? all : Arrays.copyOf(all, u);
+            }
+
+            // The ids in both sorted arrays (of which the first aLen and bLen are used; -1 for all).
+            // Lists of similar length are merged; a much shorter one is looked for in the other,
+            // each search starting where the last one ended.
+            private static long[] intersect(long[] a, int aLen, long[] b, int bLen) {
+                if (aLen < 0) aLen = a.length;
+                if (bLen < 0) bLen = b.length;
+                if (aLen > bLen) return intersect(b, bLen, a, aLen);
+                long[] out = new long[aLen];
+                int n = 0;
+                if ((long) aLen * 8 >= bLen) {
+                    for (int i = 0, j = 0; i < aLen && j < bLen; ) {
+                        if (a[i] < b[j]) i++;
+                        else if (a[i] > b[j]) j++;
+                        else { out[n++] = a[i]; i++; j++; }
+                    }
+                } else {
+                    int from = 0;
+                    for (int i = 0; i < aLen && from < bLen; i++) {
+                        int at = Arrays.binarySearch(b, from, bLen, a[i]);
+                        if (at >= 0) { out[n++] = a[i]; from = at + 1; }
+                        else from = -at - 1;
+                    }
+                }
+                return n == out.length ? out : Arrays.copyOf(out, n);
+            }
+
+            private static long[] probe(long[] ids, List<Postings> lists) {
+                long[] out = new long[ids.length];
+                int n = 0;
+                for (long id : ids) {
+                    for (Postings p : lists) {
+                        if (p.contains(id)) { out[n++] = id; break; }
+                    }
+                }
+                return Arrays.copyOf(out, n);
+            }
+
+            // One word's ids, sorted. New ids are nearly always the highest yet, so adding is
+            // usually an append. Removing the last id retires the list for good.
+            private static final class Postings {
+                private long[] ids = new long[2];
+                private int size;
+                private boolean retired;
+
+                // false if the list is retired and the id has to go into a new one
+                synchronized boolean add(long id) {
+                    if (retired) return false;
+                    int at = size;
+                    if (size > 0 && ids[size - 1] >= id) {
+                        at = Arrays.binarySearch(ids, 0, size, id);
+                        if (at >= 0) return true;
+                        at = -at - 1;
+                    }
+                    if (size == ids.length) ids = Arrays.copyOf(ids, size + (size >> 1) + 2);
+                    System.arraycopy(ids, at, ids, at + 1, size - at);
+                    ids[at] = id;
+                    size++;
+                    return true;
+                }
+
+                // false once the list is empty, and so retired
+                synchronized boolean remove(long id) {
+                    int at = Arrays.binarySearch(ids, 0, size, id);
+                    if (at >= 0) {
+                        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+                        size--;
+                    }
+                    if (size == 0) retired = true;
+                    return !retired;
+                }
+
+                synchronized boolean contains(long id) { return Arrays.binarySearch(ids, 0, size, id) >= 0; }
+
+                // The given sorted ids that are also here.
+                synchronized long[] retain(long[] sorted) { return intersect(sorted, -1, ids, size); }
+
+                synchronized int size() { return size; }
+
+                synchronized long[] snapshot() { return Arrays.copyOf(ids, size); }
+            }
+        }
+
+        // A page of search results: the first hits in the order the search returns them, and
+        // how many matched in all.
+        static final class SearchHits<T> {
+            final List<T> hits;
+            final int total;
+            final long elapsedNanos;
+
+            SearchHits(List<T> hits, int total, long elapsedNanos) { this.hits = hits; this.total = total; this.elapsedNanos = elapsedNanos; }
+        }
+
+        // ====== IN-MEMORY TRANSACTION TABLES ======
+        // OBJECTS keeps one Txn per row (plus a time index); COLUMNAR keeps primitive columns
+        // and dictionary-encoded notes, at a fraction of the heap and GC cost.
+        enum TxnLayout { OBJECTS, COLUMNAR }
+
+        // Thread-safe store of transaction history. forEach visits rows in recording order,
+        // forEachInRange in time order over [start, end).
+        interface TxnTable {
+            void add(Txn t);
+            boolean remove(Txn t);
+            int size();
+            void forEach(Consumer<? super TxnView> action);
+            void forEachInRange(LocalDateTime start, LocalDateTime end, Consumer<? super TxnView> action);
+
+            // Parallel fold of [start, end): each fork-join task folds its share of the rows into
+            // `partial()`, called on the thread that runs the task, and `merge(a, b)` adds b
+            // into a as tasks finish. Workers share nothing but the rows. Runs in the pool of
+            // the calling thread (the common pool from outside one). Visit order is unspecified.
+            <A> A reduceInRange(LocalDateTime start, LocalDateTime end, Supplier<A> partial,
+                                BiConsumer<A, ? super TxnView> accumulate, BiConsumer<A, A> merge);
+
+            static TxnTable create(TxnLayout layout) {
+                return layout == TxnLayout.COLUMNAR ? new ColumnarTxnTable() : new ObjectTxnTable();
+            }
+        }
+
+        static class ObjectTxnTable implements TxnTable {
+            // time order, ties broken by id
+            private static final Comparator<Txn> BY_TIME = Comparator.<Txn, LocalDateTime>comparing(t -> t.timestamp).thenComparingLong(t -> t.id);
+
+            private final List<Txn> txns = new ArrayList<>();      // recording order, guarded by itself
+            private final ConcurrentSkipListSet<Txn> byTime = new ConcurrentSkipListSet<>(BY_TIME);
+
+            public void add(Txn t) {
+                synchronized (txns) { txns.add(t); }
+                byTime.add(t);
+            }
+
+            public boolean remove(Txn t) {
+                byTime.remove(t);
+                synchronized (txns) { return txns.remove(t); }
+            }
+
+            public int size() { synchronized (txns) { return txns.size(); } }
+
+            public void forEach(Consumer<? super TxnView> action) {
+                List<Txn> copy;
+                synchronized (txns) { copy = new ArrayList<>(txns); }
+                copy.forEach(action);
+            }
+
+            public void forEachInRange(LocalDateTime start, LocalDateTime end, Consumer<? super TxnView> action) {
+                byTime.subSet(probe(start), probe(end)).forEach(action);
+            }
+
+            public <A> A reduceInRange(LocalDateTime start, LocalDateTime end, Supplier<A> partial,
+                                       BiConsumer<A, ? super TxnView> accumulate, BiConsumer<A, A> merge) {
+                return byTime.subSet(probe(start), probe(end)).parallelStream().collect(partial, accumulate, merge);
+            }
+
+            private static Txn probe(LocalDateTime at) { return new Txn(Long.MIN_VALUE, 0, null, 0, at, null); }
+        }
+
+        // Struct-of-arrays transaction store: ids, item ids, type, quantity and epoch seconds
+        // (the local timestamp read as UTC) live in primitive columns, and notes are interned
+        // into a dictionary. Rows are
+        // append-only (a removed row is tombstoned), so readers capture the column arrays and
+        // row count under the lock and then walk them without holding it.
+        static class ColumnarTxnTable implements TxnTable {
+            private static final byte REMOVED = -1;
+            private static final TxType[] TYPES = TxType.values();
+
+            private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            private long[] ids = new long[1024];
+            private long[] itemIds = new long[1024];
+            private byte[] types = new byte[1024];
+            private int[] qtys = new int[1024];
+            private long[] epochSecs = new long[1024];
+            private int[] noteRefs = new int[1024];
+            private int size;
+            private final Map<String, Integer> noteCodes = new HashMap<>();
+            private String[] notes = new String[16];
+            private int noteCount;
+
+            // Rows are usually appended in time order; while that holds, range queries binary
+            // search epochSecs directly. Otherwise `timeOrder` (rows sorted by time) is built on
+            // demand and extended while later appends stay in order.
+            private boolean appendedInTimeOrder = true;
+            private int[] timeOrder;
+            private int timeOrderSize;
+
+            public void add(Txn t) {
+                long sec = t.timestamp.toEpochSecond(ZoneOffset.UTC);
+                lock.writeLock().lock();
+                try {
+                    if (size == ids.length) grow();
+                    int row = size;
+                    ids[row] = t.id;
+                    itemIds[row] = t.itemId;
+                    types[row] = (byte) t.type.ordinal();
+                    qtys[row] = t.quantity;
+                    epochSecs[row] = sec;
+                    noteRefs[row] = noteCode(t.note);
+                    if (appendedInTimeOrder) {
+                        if (row > 0 && sec < epochSecs[row - 1]) appendedInTimeOrder = false;
+                    } else if (timeOrder != null) {
+                        if (timeOrderSize == size && sec >= epochSecs[timeOrder[size - 1]]) {
+                            if (timeOrderSize == timeOrder.length) timeOrder = Arrays.copyOf(timeOrder, timeOrder.length * 2);
+                            timeOrder[timeOrderSize++] = row;
+                        } else timeOrder = null;
+                    }
+                    size++;
+                } finally { lock.writeLock().unlock(); }
+            }
+
+            public boolean remove(Txn t) {
+                lock.writeLock().lock();
+                try {
+                    for (int row = size - 1; row >= 0; row--) {
+                        if (ids[row] == t.id && types[row] != REMOVED) { types[row] = REMOVED; return true; }
+                    }
+                    return false;
+                } finally { lock.writeLock().unlock(); }
+            }
+
+            public int size() {
+                lock.readLock().lock();
+                try {
+                    int n = 0;
+                    for (int row = 0; row < size; row++) if (types[row] != REMOVED) n++;
+                    return n;
+                } finally { lock.readLock().unlock(); }
+            }
+
+            public void forEach(Consumer<? super TxnView> action) {
+                Cursor c = cursor();
+                for (int row = 0; row < c.rows; row++) {
+                    if (c.types[row] == REMOVED) continue;
+                    c.row = row;
+                    action.accept(c);
+                }
+            }
+
+            public void forEachInRange(LocalDateTime start, LocalDateTime end, Consumer<? super TxnView> action) {
+                Range r = range(start, end);
+                Cursor c = r.cursor;
+                for (int i = r.lo; i < r.hi; i++) {
+                    int row = r.order == null ? i : r.order[i];
+                    if (c.types[row] == REMOVED) continue;
+                    c.row = row;
+                    action.accept(c);
+                }
+            }
+
+            public <A> A reduceInRange(LocalDateTime start, LocalDateTime end, Supplier<A> partial,
+                                       BiConsumer<A, ? super TxnView> accumulate, BiConsumer<A, A> merge) {
+                Range r = range(start, end);
+                RangeTask<A> task = new RangeTask<>(r, r.lo, r.hi, partial, accumulate, merge);
+                return ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+            }
+
+            // Positions [lo, hi) of `order` (or of the rows themselves while they are in time
+            // order) are the rows in range.
+            private static final class Range {
+                final Cursor cursor;
+                final int[] order;
+                final int lo, hi;
+                Range(Cursor cursor, int[] order, int lo, int hi) { this.cursor = cursor; this.order = order; this.lo = lo; this.hi = hi; }
+            }
+
+            private Range range(LocalDateTime start, LocalDateTime end) {
+                long from = start.toEpochSecond(ZoneOffset.UTC), to = end.toEpochSecond(ZoneOffset.UTC);
+                Cursor c = null;
+                int[] order = null;
+                lock.readLock().lock();
+                try {
+                    if (appendedInTimeOrder || (timeOrder != null && timeOrderSize == size)) {
+                        c = new Cursor(this);
+                        order = appendedInTimeOrder ? null : timeOrder;
+                    }
+                } finally { lock.readLock().unlock(); }
+                if (c == null) {
+                    lock.writeLock().lock(); // timeOrder has to be (re)built
+                    try {
+                        c = new Cursor(this);
+                        order = appendedInTimeOrder ? null : timeOrder();
+                    } finally { lock.writeLock().unlock(); }
+                }
+                return new Range(c, order, firstAtOrAfter(c, order, from), firstAtOrAfter(c, order, to));
+            }
+
+            private static int firstAtOrAfter(Cursor c, int[] order, long epochSec) {
+                int lo = 0, hi = c.rows;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (c.epochSecs[order == null ? mid : order[mid]] < epochSec) lo = mid + 1; else hi = mid;
+                }
+                return lo;
+            }
+
+            // Halves its positions until a share is small enough to fold with one cursor.
+            @SuppressWarnings("serial") // never serialized; fork-join tasks only
+            private static final class RangeTask<A> extends RecursiveTask<A> {
+                private static final int LEAF_ROWS = 32 * 1024;
+                private final Range range;
+                private final int lo, hi;
+                private final Supplier<A> partial;
+                private final BiConsumer<A, ? super TxnView> accumulate;
+                private final BiConsumer<A, A> merge;
+
+                RangeTask(Range range, int lo, int hi, Supplier<A> partial, BiConsumer<A, ? super TxnView> accumulate, BiConsumer<A, A> merge) {
+                    this.range = range; this.lo = lo; this.hi = hi;
+                    this.partial = partial; this.accumulate = accumulate; this.merge = merge;
+                }
+
+                @Override protected A compute() {
+                    if (hi - lo > LEAF_ROWS) {
+                        int mid = (lo + hi) >>> 1;
+                        RangeTask<A> left = new RangeTask<>(range, lo, mid, partial, accumulate, merge);
+                        left.fork();
+                        A right = new RangeTask<>(range, mid, hi, partial, accumulate, merge).compute();
+                        A acc = left.join();
+                        merge.accept(acc, right);
+                        return acc;
+                    }
+                    A acc = partial.get();
+                    Cursor c = new Cursor(range.cursor);
+                    int[] order = range.order;
+                    for (int i = lo; i < hi; i++) {
+                        int row = order == null ? i : order[i];
+                        if (c.types[row] == REMOVED) continue;
+                        c.row = row;
+                        accumulate.accept(acc, c);
+                    }
+                    return acc;
+                }
+            }
+
+            // Approximate heap held by the columns and the note dictionary.
+            long estimatedBytes() {
+                lock.readLock().lock();
+                try {
+                    long bytes = ids.length * (8L + 8 + 1 + 4 + 8 + 4) + (timeOrder == null ? 0 : timeOrder.length * 4L);
+                    for (int i = 0; i < noteCount; i++) bytes += 40 + notes[i].length() + 32; // string + map entry
+                    return bytes;
+                } finally { lock.readLock().unlock(); }
+            }
+
+            private int[] timeOrder() {
+                if (timeOrder != null && timeOrderSize == size) return timeOrder;
+                long[] keys = new long[size];
+                long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+                for (int row = 0; row < size; row++) { min = Math.min(min, epochSecs[row]); max = Math.max(max, epochSecs[row]); }
+                int[] order = new int[Math.max(16, size)];
+                if (max - min < (1L << 31)) {
+                    // pack (seconds since min, row) into one long so a primitive sort does the work
+                    for (int row = 0; row < size; row++) keys[row] = (epochSecs[row] - min) << 32 | row;
+                    Arrays.sort(keys);
+                    for (int i = 0; i < size; i++) order[i] = (int) keys[i];
+                } else {
+                    Integer[] boxed = new Integer[size];
+                    for (int row = 0; row < size; row++) boxed[row] = row;
+                    Arrays.sort(boxed, Comparator.comparingLong((Integer r) -> epochSecs[r]).thenComparingInt(r -> r));
+                    for (int i = 0; i < size; i++) order[i] = boxed[i];
+                }
+                timeOrder = order;
+                timeOrderSize = size;
+                return order;
+            }
+
+            private Cursor cursor() {
+                lock.readLock().lock();
+                try { return new Cursor(this); }
+                finally { lock.readLock().unlock(); }
+            }
+
+            private int noteCode(String note) {
+                String n = note == null ? "" : note;
+                Integer code = noteCodes.get(n);
+                if (code != null) return code;
+                if (noteCount == notes.length) notes = Arrays.copyOf(notes, noteCount * 2);
+                notes[noteCount] = n;
+                noteCodes.put(n, noteCount);
+                return noteCount++;
+            }
+
+            private void grow() {
+                int cap = ids.length * 2;
+                ids = Arrays.copyOf(ids, cap);
+                itemIds = Arrays.copyOf(itemIds, cap);
+                types = Arrays.copyOf(types, cap);
+                qtys = Arrays.copyOf(qtys, cap);
+                epochSecs = Arrays.copyOf(epochSecs, cap);
+                noteRefs = Arrays.copyOf(noteRefs, cap);
+            }
+
+            // Flyweight over one row; valid only inside the callback it was passed to.
+            static final class Cursor implements TxnView {
+                final long[] ids, itemIds, epochSecs;
+                final byte[] types;
+                final int[] qtys, noteRefs;
+                final String[] notes;
+                final int rows;
+                int row;
+
+                Cursor(ColumnarTxnTable t) {
+                    ids = t.ids; itemIds = t.itemIds; epochSecs = t.epochSecs;
+                    types = t.types; qtys = t.qtys; noteRefs = t.noteRefs;
+                    notes = t.notes; rows = t.size;
+                }
+
+                // another cursor over the same rows, for another thread
+                Cursor(Cursor c) {
+                    ids = c.ids; itemIds = c.itemIds; epochSecs = c.epochSecs;
+                    types = c.types; qtys = c.qtys; noteRefs = c.noteRefs;
+                    notes = c.notes; rows = c.rows;
+                }
+
+                public long id() { return ids[row]; }
+                public long itemId() { return itemIds[row]; }
+                public TxType type() { return TYPES[types[row]]; }
+                public int quantity() { return qtys[row]; }
+                public long epochSecond() { return epochSecs[row]; }
+                public LocalDateTime timestamp() { return LocalDateTime.ofEpochSecond(epochSecs[row], 0, ZoneOffset.UTC); }
+                public String note() { return notes[noteRefs[row]]; }
+            }
+        }
+
+        // ====== MOVEMENT ROLLUPS ======
+        // Per-item, per-day IN/OUT counts and units, plus the same totals across all items,
+        // kept up to date by TransactionService.record and rebuilt from history at startup.
+        // Aggregate queries read these instead of raw transactions, so their cost depends on
+        // the number of item-days in range, not on the number of transactions.
+        static class MovementRollup {
+            static final class DayMovement {
+                long inCount, inQty, outCount, outQty;
+
+                synchronized void add(TxType type, int qty, int sign) {
+                    if (type == TxType.IN) { inCount += sign; inQty += (long) sign * qty; }
+                    else { outCount += sign; outQty += (long) sign * qty; }
+                }
+
+                synchronized void addTo(DayMovement sum) {
+                    sum.inCount += inCount; sum.inQty += inQty;
+                    sum.outCount += outCount; sum.outQty += outQty;
+                }
+
+                synchronized DayMovement copy() {
+                    DayMovement c = new DayMovement();
+                    addTo(c);
+                    return c;
+                }
+
+                long netQty() { return inQty - outQty; }
+            }
+
+            // An item's movement summed over a date range.
+            static final class ItemMovement {
+                final long itemId;
+                final DayMovement total = new DayMovement();
+                int activeDays;
+
+                ItemMovement(long itemId) { this.itemId = itemId; }
+            }
+
+            private final ConcurrentHashMap<Long, ConcurrentSkipListMap<Long, DayMovement>> byItem = new ConcurrentHashMap<>();
+            private final ConcurrentSkipListMap<Long, DayMovement> allItems = new ConcurrentSkipListMap<>();
+
+            void add(TxnView t) { apply(t, 1); }
+
+            // undoes add(t), for a recording that failed after the rollup was updated
+            void remove(TxnView t) { apply(t, -1); }
+
+            private void apply(TxnView t, int sign) {
+                long day = Math.floorDiv(t.epochSecond(), 86_400L);
+                byItem.computeIfAbsent(t.itemId(), k -> new ConcurrentSkipListMap<>())
+                        .computeIfAbsent(day, k -> new DayMovement()).add(t.type(), t.quantity(), sign);
+                allItems.computeIfAbsent(day, k -> new DayMovement()).add(t.type(), t.quantity(), sign);
+            }
+
+            // Day-by-day movement of one item; days without movement are left out.
+            NavigableMap<LocalDate, DayMovement> dailyMovement(long itemId, LocalDate from, LocalDate to) {
+                NavigableMap<LocalDate, DayMovement> out = new TreeMap<>();
+                ConcurrentSkipListMap<Long, DayMovement> days = byItem.get(itemId);
+                if (days == null) return out;
+                days.subMap(from.toEpochDay(), true, to.toEpochDay(), true)
+                        .forEach((day, m) -> out.put(LocalDate.ofEpochDay(day), m.copy()));
+                return out;
+            }
+
+            // Day-by-day movement summed over all items.
+            NavigableMap<LocalDate, DayMovement> dailyTotals(LocalDate from, LocalDate to) {
+                NavigableMap<LocalDate, DayMovement> out = new TreeMap<>();
+                allItems.subMap(from.toEpochDay(), true, to.toEpochDay(), true)
+                        .forEach((day, m) -> out.put(LocalDate.ofEpochDay(day), m.copy()));
+                return out;
+            }
+
+            ItemMovement itemMovement(long itemId, LocalDate from, LocalDate to) {
+                ItemMovement m = new ItemMovement(itemId);
+                ConcurrentSkipListMap<Long, DayMovement> days = byItem.get(itemId);
+                if (days == null) return m;
+                for (DayMovement d : days.subMap(from.toEpochDay(), true, to.toEpochDay(), true).values()) {
+                    d.addTo(m.total);
+                    m.activeDays++;
+                }
+                return m;
+            }
+
+            // The `limit` items with the most units moved out (sold) in the range, most first;
+            // ties go to the item with more units in.
+            List<ItemMovement> topMovers(LocalDate from, LocalDate to, int limit) {
+                Comparator<ItemMovement> order = Comparator.<ItemMovement>comparingLong(m -> m.total.outQty)
+                        .thenComparingLong(m -> m.total.inQty).thenComparingLong(m -> -m.itemId);
+                PriorityQueue<ItemMovement> best = new PriorityQueue<>(order);
+                for (Long itemId : byItem.keySet()) {
+                    ItemMovement m = itemMovement(itemId, from, to);
+                    if (m.activeDays == 0) continue;
+                    best.add(m);
+                    if (best.size() > limit) best.poll();
+                }
+                List<ItemMovement> out = new ArrayList<>(best);
+                out.sort(order.reversed());
+                return out;
+            }
+        }
+
+        // ====== STOCK CHECKPOINTS ======
+        // Every item's quantity at one instant, ids ascending. TransactionService keeps one
+        // for the start of each month (a checkpoint, saved as transactions/yyyy-MM.stock) and
+        // answers stockAsOf from the nearest of them; see there.
+        static final class StockLevels {
+            static final String HEADER = "itemId,quantity";
+
+            final LocalDateTime at;
+            final long[] itemIds;
+            final int[] quantities;
+            final LocalDateTime base;   // the checkpoint (or reading of current stock) it was worked out from
+            final long applied;         // transactions applied to get from `base` to `at`
+            private final boolean dense; // ids run without gaps, so an id gives its index directly
+
+            StockLevels(LocalDateTime at, long[] itemIds, int[] quantities) { this(at, itemIds, quantities, at, 0); }
+
+            StockLevels(LocalDateTime at, long[] itemIds, int[] quantities, LocalDateTime base, long applied) {
+                this.at = at; this.itemIds = itemIds; this.quantities = quantities; this.base = base; this.applied = applied;
+                this.dense = itemIds.length > 0 && itemIds[itemIds.length - 1] - itemIds[0] == itemIds.length - 1;
+            }
+
+            int size() { return itemIds.length; }
+
+            // negative if the item isn't there
+            int indexOf(long itemId) {
+                if (!dense) return Arrays.binarySearch(itemIds, itemId);
+                long i = itemId - itemIds[0];
+                return i >= 0 && i < itemIds.length ? (int) i : -1;
+            }
+
+            // null if the item isn't there
+            Integer quantityOf(long itemId) {
+                int i = indexOf(itemId);
+                return i < 0 ? null : quantities[i];
+            }
+
+            long totalUnits() {
+                long sum = 0;
+                for (int q : quantities) sum += q;
+                return sum;
+            }
+
+            void write(Path file) {
+                StringBuilder sb = new StringBuilder(HEADER.length() + 1 + itemIds.length * 16).append(HEADER).append('\n');
+                for (int i = 0; i < itemIds.length; i++) sb.append(itemIds[i]).append(',').append(quantities[i]).append('\n');
+                try {
+                    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                    Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            // null if there's no such file
+            static StockLevels read(Path file, LocalDateTime at) {
+                if (!Files.exists(file)) return null;
+                long[] ids = new long[256];
+                int[] qty = new int[256];
+                int n = 0;
+                try (CsvReader r = new CsvReader(file)) {
+                    boolean first = true;
+                    while (r.next()) {
+                        if (first) { first = false; continue; }
+                        if (r.tokens().isBlank()) continue;
+                        if (n == ids.length) { ids = Arrays.copyOf(ids, n * 2); qty = Arrays.copyOf(qty, n * 2); }
+                        ids[n] = r.tokens().longAt(0);
+                        qty[n++] = r.tokens().intAt(1);
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                return sorted(at, Arrays.copyOf(ids, n), Arrays.copyOf(qty, n));
+            }
+
+            // Several sets of items (shards, say) as one.
+            static StockLevels merge(LocalDateTime at, List<StockLevels> parts) {
+                int n = 0;
+                for (StockLevels p : parts) n += p.size();
+                long[] ids = new long[n];
+                int[] qty = new int[n];
+                int i = 0;
+                for (StockLevels p : parts) {
+                    System.arraycopy(p.itemIds, 0, ids, i, p.size());
+                    System.arraycopy(p.quantities, 0, qty, i, p.size());
+                    i += p.size();
+                }
+                return sorted(at, ids, qty);
+            }
+
+            // These levels plus those of `ids` not already here, at 0.
+            StockLevels with(Collection<Long> ids) {
+                long[] extra = ids.stream().mapToLong(Long::longValue).filter(id -> indexOf(id) < 0).toArray();
+                if (extra.length == 0) return this;
+                long[] allIds = Arrays.copyOf(itemIds, itemIds.length + extra.length);
+                System.arraycopy(extra, 0, allIds, itemIds.length, extra.length);
+                StockLevels s = sorted(at, allIds, Arrays.copyOf(quantities, allIds.length));
+                return new StockLevels(at, s.itemIds, s.quantities, base, applied);
+            }
+
+            // The items for which `keep` holds.
+            StockLevels filter(LongPredicate keep) {
+                int n = 0;
+                for (long id : itemIds) if (keep.test(id)) n++;
+                long[] ids = new long[n];
+                int[] qty = new int[n];
+                for (int i = 0, j = 0; i < itemIds.length; i++) {
+                    if (keep.test(itemIds[i])) { ids[j] = itemIds[i]; qty[j++] = quantities[i]; }
+                }
+                return new StockLevels(at, ids, qty, base, applied);
+            }
+
+            static StockLevels sorted(LocalDateTime at, long[] ids, int[] qty) {
+                boolean inOrder = true;
+                for (int i = 1; i < ids.length && inOrder; i++) inOrder = ids[i - 1] < ids[i];
+                if (inOrder) return new StockLevels(at, ids, qty);
+                Integer[] order = new Integer[ids.length];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, Comparator.comparingLong(i -> ids[i]));
+                long[] sortedIds = new long[ids.length];
+                int[] sortedQty = new int[ids.length];
+                for (int i = 0; i < order.length; i++) { sortedIds[i] = ids[order[i]]; sortedQty[i] = qty[order[i]]; }
+                return new StockLevels(at, sortedIds, sortedQty);
+            }
+        }
+
+        // A change to an item's stock that isn't a transaction: its quantity edited by hand (by
+        // the difference), the item created (by its first quantity) or deleted (by minus its
+        // last). stockAsOf walks these like transactions, so each counts from when it was
+        // made, and an item only shows between its creation and its deletion.
+        static final class StockAdjustment {
+            static final String HEADER = "itemId,timestamp,kind,delta";
+
+            enum Kind { EDITED, CREATED, DELETED }
+
+            final long itemId;
+            final LocalDateTime at;
+            final Kind kind;
+            final int delta;
+            final long seq; // order made since startup, 0 for those loaded; see InventoryService.adjustmentFence
+
+            StockAdjustment(long itemId, LocalDateTime at, Kind kind, int delta) { this(itemId, at, kind, delta, 0); }
+
+            StockAdjustment(long itemId, LocalDateTime at, Kind kind, int delta, long seq) {
+                this.itemId = itemId; this.at = at; this.kind = kind; this.delta = delta; this.seq = seq;
+            }
+        }
+
+        // ====== SERVICES ======
+        // Users are indexed by name. Password checks hash outside the lock; everything that
+        // changes a user, and the creation of a session after a successful check, runs under
+        // the service's monitor, so a session can never outlive the credentials it was
+        // issued for.
+        static class UserService {
+            static final long DEFAULT_SESSION_TTL_SECONDS = 30 * 60;
+
+            private final Store store;
+            private final List<User> users;                 // file order, used for listing and saving
+            private final Map<String, User> byName = new ConcurrentHashMap<>();
+            private final SessionManager sessions;
+
+            UserService(Store store) { this(store, DEFAULT_SESSION_TTL_SECONDS); }
+
+            UserService(Store store, long sessionTtlSeconds) {
+                this.store = store;
+                this.users = store.loadUsers();
+                for (User u : users) byName.putIfAbsent(u.username, u);
+                this.sessions = new SessionManager(TimeUnit.SECONDS.toNanos(sessionTtlSeconds));
+                Metrics.gauge("users", this::userCount);
+                Metrics.gauge("sessions", sessions::size);
+            }
+
+            synchronized int userCount() { return users.size(); }
+
+            synchronized List<User> listUsers() { return new ArrayList<>(users); }
+
+            boolean authenticate(String username, String password) {
+                long t0 = Metrics.start();
+                try {
+                    return check(byName.get(username), password);
+                } finally { Metrics.AUTHENTICATE.stop(t0); }
+            }
+
+            // Checks the password and opens a session; returns its token, or null if the
+            // credentials are wrong.
+            String login(String username, String password) {
+                long t0 = Metrics.start();
+                try {
+                    String hash = SecurityUtil.sha256Hex(password);
+                    synchronized (this) {
+                        User u = byName.get(username);
+                        if (u == null || !SecurityUtil.hashesEqual(u.passwordHash, hash)) {
+                            Metrics.inc(Metrics.AUTH_FAILURES);
+                            return null;
+                        }
+                        return sessions.open(username);
+                    }
+                } finally { Metrics.AUTHENTICATE.stop(t0); }
+            }
+
+            // The user a live session belongs to, or null; extends the session.
+            String sessionUser(String token) { return token == null ? null : sessions.touch(token); }
+
+            void logout(String token) { sessions.close(token); }
+
+            long sessionTtlSeconds() { return TimeUnit.NANOSECONDS.toSeconds(sessions.ttlNanos); }
+
+            synchronized boolean changePassword(String username, String newPassword) {
+                long t0 = Metrics.start();
+                try {
+                    User u = byName.get(username);
+                    if (u == null) return false;
+                    u.passwordHash = SecurityUtil.sha256Hex(newPassword);
+                    sessions.closeAll(username);
+                    store.saveUsers(users);
+                    return true;
+                } finally { Metrics.CHANGE_USERS.stop(t0); }
+            }
+
+            synchronized boolean addUser(String username, String password) {
+                long t0 = Metrics.start();
+                try {
+                    if (byName.containsKey(username)) return false;
+                    User u = new User(username, SecurityUtil.sha256Hex(password));
+                    sessions.closeAll(username); // nothing issued to an earlier user of this name survives
+                    users.add(u);
+                    byName.put(username, u);
+                    store.saveUsers(users);
+                    return true;
+                } finally { Metrics.CHANGE_USERS.stop(t0); }
+            }
+
+            synchronized boolean deleteUser(String username) {
+                long t0 = Metrics.start();
+                try {
+                    boolean removed = users.removeIf(u -> u.username.equals(username));
+                    if (removed) {
+                        byName.remove(username);
+                        sessions.closeAll(username);
+                        store.saveUsers(users);
+                    }
+                    return removed;
+                } finally { Metrics.CHANGE_USERS.stop(t0); }
+            }
+
+            private static boolean check(User u, String password) {
+                String hash = SecurityUtil.sha256Hex(password);
+                if (u != null && SecurityUtil.hashesEqual(u.passwordHash, hash)) return true;
+                Metrics.inc(Metrics.AUTH_FAILURES);
+                return false;
+            }
+        }
+
+        // Session tokens, checked with one map lookup. A session expires after `ttlNanos`
+        // without use; expired entries are dropped when next looked up and swept on every
+        // SWEEP_EVERY opens.
+        static class SessionManager {
+            private static final int SWEEP_EVERY = 1024;
+
+            private static final class Session {
+                final String username;
+                volatile long expiresAt;
+                Session(String username, long expiresAt) { this.username = username; this.expiresAt = expiresAt; }
+            }
+
+            final long ttlNanos;
+            private final Map<String, Session> byToken = new ConcurrentHashMap<>();
+            private final ConcurrentHashMap<String, Set<String>> byUser = new ConcurrentHashMap<>();
+            private final AtomicLong opened = new AtomicLong();
+
+            SessionManager(long ttlNanos) { this.ttlNanos = ttlNanos; }
+
+            String open(String username) {
+                if (opened.incrementAndGet() % SWEEP_EVERY == 0) sweep();
+                String token = SecurityUtil.newToken();
+                byToken.put(token, new Session(username, System.nanoTime() + ttlNanos));
+                byUser.compute(username, (k, tokens) -> {
+                    if (tokens == null) tokens = ConcurrentHashMap.newKeySet();
+                    tokens.add(token);
+                    return tokens;
+                });
+                return token;
+            }
+
+            String touch(String token) {
+                Session s = byToken.get(token);
+                if (s == null) return null;
+                long now = System.nanoTime();
+                if (now - s.expiresAt > 0) { remove(token, s); return null; }
+                s.expiresAt = now + ttlNanos;
+                return s.username;
+            }
+
+            void close(String token) {
+                Session s = byToken.get(token);
+                if (s != null) remove(token, s);
+            }
+
+            void closeAll(String username) {
+                Set<String> tokens = byUser.remove(username);
+                if (tokens != null) for (String t : tokens) byToken.remove(t);
+            }
+
+            int size() { return byToken.size(); }
+
+            private void sweep() {
+                long now = System.nanoTime();
+                byToken.forEach((token, s) -> { if (now - s.expiresAt > 0) remove(token, s); });
+            }
+
+            private void remove(String token, Session s) {
+                if (!byToken.remove(token, s)) return;
+                byUser.computeIfPresent(s.username, (k, tokens) -> {
+                    tokens.remove(token);
+                    return tokens.isEmpty() ? null : tokens;
+                });
+            }
+        }
+
+        // Fired when an item's stock crosses its reorder point: `low` is true when it drops to
+        // or below the threshold, false when it's back above it (restocked, or the threshold
+        // was lowered or removed).
+        static final class LowStockEvent {
+            final Item item;
+            final int quantity;
+            final int reorderPoint;
+            final boolean low;
+
+            LowStockEvent(Item item, boolean low) {
+                this.item = item;
+                this.quantity = item.quantity;
+                this.reorderPoint = item.reorderPoint;
+                this.low = low;
+            }
+        }
+
+        interface LowStockListener {
+            void onLowStock(LowStockEvent e);
+        }
+
+        // Locking: the catalogue lock guards which items exist (writers add or remove items),
+        // and a striped lock per item id guards that item's fields. Always take the catalogue
+        // lock before a stripe lock. Stock movements on different items only share the read
+        // side of the catalogue lock, so they run in parallel.
+        static class InventoryService {
+            private final Store store;
+            private List<Item> items;              // insertion order, used for listing and saving
+            private final LongMap<Item> byId;      // id -> item, constant-time lookup
+            private long lastItemId;
+            private final ReentrantReadWriteLock catalog = new ReentrantReadWriteLock();
+            private final ReentrantLock[] stripes;
+            // Stock order (ties by id) and the items at or below their reorder point. Both change
+            // with the stock, under the same locks.
+            private final ConcurrentSkipListMap<StockKey, Item> byQuantity = new ConcurrentSkipListMap<>();
+            private final ConcurrentSkipListMap<Long, Item> lowStock = new ConcurrentSkipListMap<>();
+            private final List<LowStockListener> listeners = new CopyOnWriteArrayList<>();
+            private final TextIndex text = new TextIndex(); // words of names and categories
+            private final List<StockAdjustment> adjustments;  // by time, guarded by itself
+            private long nextAdjustment = 1;                   // seq of the next one, guarded by adjustments
+            // Bumped after every change (version) and after changes to what items are called
+            // (catalogVersion), so cached results can tell whether they are still current.
+            private final AtomicLong version = new AtomicLong();
+            private final AtomicLong catalogVersion = new AtomicLong();
+            private volatile ChangeFeed feed;
+
+            InventoryService(Store store) {
+                this.store = store;
+                this.items = store.loadItems();
+                this.adjustments = store.loadAdjustments();
+                adjustments.sort(Comparator.comparing(a -> a.at));
+                this.byId = new LongMap<>(items.size());
+                this.lastItemId = 1000L;
+                for (Item it : items) {
+                    byId.put(it.id, it);
+                    index(it);
+                    if (it.id > lastItemId) lastItemId = it.id;
+                }
+                int n = Integer.highestOneBit(Math.max(64, Runtime.getRuntime().availableProcessors() * 16));
+                this.stripes = new ReentrantLock[n];
+                for (int i = 0; i < n; i++) stripes[i] = new ReentrantLock();
+                Metrics.gauge("items", byId::size);
+                Metrics.gauge("lowStockItems", lowStock::size);
+            }
+
+            long version() { return version.get(); }
+
+            long catalogVersion() { return catalogVersion.get(); }
+
+            // Adjustments made from here on get a seq at least this. Stable while the items
+            // involved are locked (edits take the item's lock, creations and deletions the
+            // catalog's write lock), so it can fence a reading of stock.
+            long adjustmentFence() { synchronized (adjustments) { return nextAdjustment; } }
+
+            // Of those with a seq below `fence`, the adjustments made in [start, end), by time.
+            List<StockAdjustment> adjustments(LocalDateTime start, LocalDateTime end, long fence) {
+                List<StockAdjustment> out = new ArrayList<>();
+                synchronized (adjustments) {
+                    int lo = 0, hi = adjustments.size();
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (adjustments.get(mid).at.isBefore(start)) lo = mid + 1; else hi = mid;
+                    }
+                    for (int i = lo; i < adjustments.size(); i++) {
+                        StockAdjustment a = adjustments.get(i);
+                        if (!a.at.isBefore(end)) break;
+                        if (a.seq < fence) out.add(a);
+                    }
+                }
+                return out;
+            }
+
+            // Logs a stock change that isn't a transaction. Caller holds the item's lock, or
+            // the catalog's write lock.
+            private void adjusted(long itemId, StockAdjustment.Kind kind, int delta) {
+                synchronized (adjustments) {
+                    StockAdjustment a = new StockAdjustment(itemId, LocalDateTime.now().withNano(0), kind, delta, nextAdjustment);
+                    store.appendAdjustment(a);
+                    nextAdjustment++;
+                    int at = adjustments.size(); // the end, unless the clock went back
+                    while (at > 0 && adjustments.get(at - 1).at.isAfter(a.at)) at--;
+                    adjustments.add(at, a);
+                }
+            }
+
+            // Listeners run on the thread that changed the stock, after the change is saved and
+            // while the item is still locked, so they should be quick and leave other items alone.
+            void addLowStockListener(LowStockListener l) { listeners.add(l); }
+
+            void removeLowStockListener(LowStockListener l) { listeners.remove(l); }
+
+            // Every change from here on is published to `feed` once saved, still under the
+            // item's lock, so the feed has each item's changes in the order they were made.
+            // A stock change a transaction makes is saved and published only after the
+            // transaction is in the log (commitStock), so the feed never carries one whose
+            // transaction failed.
+            void publishTo(ChangeFeed feed) { this.feed = feed; }
+
+            // Items at or below their reorder point, by id.
+            List<Item> lowStockItems() {
+                long t0 = Metrics.start();
+                try { return new ArrayList<>(lowStock.values()); }
+                finally { Metrics.LOW_STOCK.stop(t0); }
+            }
+
+            // Visits every item from lowest to highest stock (ties by id) with its quantity at
+            // one instant. Stock changes wait only while the index is copied; `action` runs
+            // after the locks are released.
+            void forEachByQuantity(ObjIntConsumer<Item> action) {
+                Item[] order;
+                int[] qty;
+                lockAll();
+                try {
+                    order = new Item[byQuantity.size()];
+                    qty = new int[order.length];
+                    int i = 0;
+                    for (Map.Entry<StockKey, Item> e : byQuantity.entrySet()) {
+                        order[i] = e.getValue();
+                        qty[i++] = e.getKey().quantity;
+                    }
+                } finally { unlockAll(); }
+                for (int i = 0; i < order.length; i++) action.accept(order[i], qty[i]);
+            }
+
+            // Every item's quantity at one instant, by id. `atInstant` runs at that instant, while
+            // no stock change is half done, to note whatever has to match the quantities.
+            StockLevels stockLevels(Runnable atInstant) {
+                long[] ids;
+                int[] qty;
+                LocalDateTime at = LocalDateTime.now();
+                lockAll();
+                try {
+                    ids = new long[items.size()];
+                    qty = new int[ids.length];
+                    int i = 0;
+                    for (Item it : items) { ids[i] = it.id; qty[i++] = it.quantity; }
+                    atInstant.run();
+                } finally { unlockAll(); }
+                return StockLevels.sorted(at, ids, qty);
+            }
+
+            // Every stripe, in index order, under the catalog read lock: no stock change can be
+            // in progress until unlockAll.
+            private void lockAll() {
+                catalog.readLock().lock();
+                int locked = 0;
+                try {
+                    for (; locked < stripes.length; locked++) stripes[locked].lock();
+                } catch (RuntimeException | Error e) {
+                    while (locked > 0) stripes[--locked].unlock();
+                    catalog.readLock().unlock();
+                    throw e;
+                }
+            }
+
+            private void unlockAll() {
+                for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+                catalog.readLock().unlock();
+            }
+
+            // Items whose name or category holds every word of `query`, each as a whole word or
+            // the start of one, by id; the first `limit` of them.
+            SearchHits<Item> searchItems(String query, int limit) {
+                long t0 = System.nanoTime();
+                if (limit <= 0) throw new IllegalArgumentException("Limit must be positive");
+                if (TextIndex.words(query).isEmpty()) throw new IllegalArgumentException("Search needs at least one word");
+                long[] ids = text.search(query);
+                List<Item> out = new ArrayList<>(Math.min(limit, ids.length));
+                catalog.readLock().lock();
+                try {
+                    for (int i = 0; i < ids.length && out.size() < limit; i++) {
+                        Item it = byId.get(ids[i]);
+                        if (it != null) out.add(it);
+                    }
+                } finally { catalog.readLock().unlock(); }
+                long elapsed = System.nanoTime() - t0;
+                if (Metrics.enabled()) Metrics.SEARCH_ITEMS.record(elapsed);
+                return new SearchHits<>(out, ids.length, elapsed);
+            }
+
+            TextIndex.Footprint searchFootprint() { return text.footprint(); }
+
+            List<Item> listItems() {
+                long t0 = Metrics.start();
+                catalog.readLock().lock();
+                try { return new ArrayList<>(items); }
+                finally { catalog.readLock().unlock(); Metrics.LIST_ITEMS.stop(t0); }
+            }
+
+            Item findById(long id) {
+                long t0 = Metrics.start();
+                catalog.readLock().lock();
+                try { return byId.get(id); }
+                finally { catalog.readLock().unlock(); Metrics.FIND_ITEM.stop(t0); }
+            }
+
+            Item createItem(String name, String category, int quantity, double unitPrice) {
+                return createItem(name, category, quantity, unitPrice, 0);
+            }
+
+            Item createItem(String name, String category, int quantity, double unitPrice, int reorderPoint) {
+                long t0 = Metrics.start();
+                try {
+                    if (reorderPoint < 0) throw new IllegalArgumentException("Reorder point can't be negative");
+                    catalog.writeLock().lock();
+                    try {
+                        long id = nextItemId();
+                        Item it = new Item(id, name, category, quantity, unitPrice, reorderPoint);
+                        items.add(it);
+                        byId.put(id, it);
+                        index(it);
+                        catalogVersion.incrementAndGet();
+                        version.incrementAndGet();
+                        store.saveItem(it, items);
+                        adjusted(id, StockAdjustment.Kind.CREATED, quantity);
+                        published(it);
+                        if (it.isLowStock()) fire(new LowStockEvent(it, true));
+                        return it;
+                    } finally { catalog.writeLock().unlock(); }
+                } finally { Metrics.CREATE_ITEM.stop(t0); }
+            }
+
+            boolean updateItem(long id, String name, String category, Integer quantity, Double unitPrice) {
+                return updateItem(id, name, category, quantity, unitPrice, null);
+            }
+
+            boolean updateItem(long id, String name, String category, Integer quantity, Double unitPrice, Integer reorderPoint) {
+                long t0 = Metrics.start();
+                try {
+                    if (reorderPoint != null && reorderPoint < 0) throw new IllegalArgumentException("Reorder point can't be negative");
+                    return withItemLocked(id, () -> {
+                        Item it = byId.get(id);
+                        if (it==null) return false;
+                        if (quantity!=null && quantity < it.reserved)
+                            throw new IllegalArgumentException("Insufficient stock. Current: " + it.quantity + ", reserved: " + it.reserved);
+                        List<String> oldWords = name!=null || category!=null ? TextIndex.words(it.name, it.category) : null;
+                        if (name!=null) it.name = name;
+                        if (category!=null) it.category = category;
+                        if (oldWords != null) {
+                            text.remove(id, oldWords);
+                            text.add(id, TextIndex.words(it.name, it.category));
+                        }
+                        if (unitPrice!=null) it.unitPrice = unitPrice;
+                        int edited = quantity!=null ? quantity - it.quantity : 0;
+                        LowStockEvent e = setStock(it, quantity!=null ? quantity : it.quantity,
+                                reorderPoint!=null ? reorderPoint : it.reorderPoint);
+                        if (name!=null) catalogVersion.incrementAndGet();
+                        version.incrementAndGet();
+                        store.saveItem(it, items);
+                        if (edited != 0) adjusted(id, StockAdjustment.Kind.EDITED, edited);
+                        published(it);
+                        fire(e);
+                        return true;
+                    });
+                } finally { Metrics.UPDATE_ITEM.stop(t0); }
+            }
+
+            // Refuses while open reservations hold some of the item's stock: they have to be
+            // confirmed, cancelled or run out first.
+            boolean deleteItem(long id) {
+                long t0 = Metrics.start();
+                try {
+                    catalog.writeLock().lock();
+                    try {
+                        Item it = byId.get(id);
+                        if (it==null) return false;
+                        if (it.reserved > 0)
+                            throw new IllegalArgumentException("Item " + id + " has " + it.reserved + " units held by open orders");
+                        byId.remove(id);
+                        items.remove(it);
+                        byQuantity.remove(new StockKey(it.quantity, id));
+                        lowStock.remove(id);
+                        text.remove(id, TextIndex.words(it.name, it.category));
+                        catalogVersion.incrementAndGet();
+                        version.incrementAndGet();
+                        store.removeItem(id, items);
+                        adjusted(id, StockAdjustment.Kind.DELETED, -it.quantity);
+                        ChangeFeed f = feed;
+                        if (f != null) f.itemDeleted(id);
+                        return true;
+                    } finally { catalog.writeLock().unlock(); }
+                } finally { Metrics.DELETE_ITEM.stop(t0); }
+            }
+
+            void adjustStock(long itemId, int delta) {
+                long t0 = Metrics.start();
+                try {
+                    withItemLocked(itemId, () -> {
+                        Item it = checkStock(itemId, delta);
+                        LowStockEvent e = setStock(it, it.quantity + delta, it.reorderPoint);
+                        version.incrementAndGet();
+                        store.saveItem(it, items);
+                        published(it);
+                        fire(e);
+                        return null;
+                    });
+                } finally { Metrics.ADJUST_STOCK.stop(t0); }
+            }
+
+            // Returns the item if moving its stock by `delta` is allowed, or throws why not.
+            // Caller holds the item's lock.
+            Item checkStock(long itemId, int delta) {
+                Item it = byId.get(itemId);
+                if (it==null) throw new IllegalArgumentException("Item not found: " + itemId);
+                int newQty = it.quantity + delta;
+                if (newQty < 0) throw new IllegalArgumentException("Insufficient stock. Current: " + it.quantity);
+                if (delta < 0 && newQty < it.reserved)
+                    throw new IllegalArgumentException("Insufficient stock. Current: " + it.quantity + ", reserved: " + it.reserved);
+                return it;
+            }
+
+            // Runs `action` with the item pinned: it can't be deleted and no other thread can
+            // change its stock until the action returns. Re-entrant, so the action may call
+            // adjustStock on the same item.
+            <T> T withItemLocked(long itemId, Supplier<T> action) {
+                catalog.readLock().lock();
+                try {
+                    ReentrantLock stripe = stripes[stripe(itemId)];
+                    stripe.lock();
+                    try { return action.get(); }
+                    finally { stripe.unlock(); }
+                } finally { catalog.readLock().unlock(); }
+            }
+
+            // Like withItemLocked for a set of items. Stripes are taken in index order so two
+            // batches over overlapping items can't deadlock.
+            <T> T withItemsLocked(Collection<Long> itemIds, Supplier<T> action) {
+                int[] idx = itemIds.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+                catalog.readLock().lock();
+                try {
+                    int locked = 0;
+                    try {
+                        for (; locked < idx.length; locked++) stripes[idx[locked]].lock();
+                        return action.get();
+                    } finally {
+                        while (locked > 0) stripes[idx[--locked]].unlock();
+                    }
+                } finally { catalog.readLock().unlock(); }
+            }
+
+            // Holds stock for open orders. Held units can only leave through release, so sales
+            // and other orders see just what's left. All lines or none: returns why each line
+            // that can't be held failed, or an empty list once everything is held.
+            List<String> hold(Map<Long, Integer> quantities) {
+                return withItemsLocked(quantities.keySet(), () -> {
+                    List<String> problems = new ArrayList<>();
+                    for (Map.Entry<Long, Integer> e : quantities.entrySet()) {
+                        Item it = byId.get(e.getKey());
+                        if (it == null) problems.add("Item not found: " + e.getKey());
+                        else if (it.quantity - it.reserved < e.getValue())
+                            problems.add("Insufficient stock for item " + it.id + ". Available: " + Math.max(0, it.quantity - it.reserved));
+                    }
+                    if (problems.isEmpty()) for (Map.Entry<Long, Integer> e : quantities.entrySet()) byId.get(e.getKey()).reserved += e.getValue();
+                    return problems;
+                });
+            }
+
+            void release(Map<Long, Integer> quantities) {
+                withItemsLocked(quantities.keySet(), () -> {
+                    for (Map.Entry<Long, Integer> e : quantities.entrySet()) {
+                        Item it = byId.get(e.getKey());
+                        if (it != null) it.reserved = Math.max(0, it.reserved - e.getValue());
+                    }
+                    return null;
+                });
+            }
+
+            // Stock changes that come with transactions take two steps, both under the items'
+            // locks (withItemsLocked): stageStock sets the new, already validated quantities in
+            // memory, and once the transactions are in the log commitStock saves the items,
+            // publishes them and fires their events. If the log write fails, staging the old
+            // quantities puts the items back, and nothing has been saved or told.
+            List<LowStockEvent> stageStock(Map<Item, Integer> newQuantities) {
+                List<LowStockEvent> events = new ArrayList<>();
+                for (Map.Entry<Item, Integer> e : newQuantities.entrySet()) {
+                    Item it = e.getKey();
+                    LowStockEvent ev = setStock(it, e.getValue(), it.reorderPoint);
+                    if (ev != null) events.add(ev);
+                }
+                version.incrementAndGet();
+                return events;
+            }
+
+            void commitStock(Collection<Item> changed, List<LowStockEvent> events) {
+                store.saveItems(changed, items);
+                for (Item it : changed) published(it);
+                for (LowStockEvent ev : events) fire(ev);
+            }
+
+            // Writes a fresh items.csv snapshot so the journal can start over.
+            void compact() {
+                catalog.readLock().lock();
+                try { store.compactItems(items); }
+                finally { catalog.readLock().unlock(); }
+            }
+
+            // Changes an item's stock and threshold, moving it in the quantity index and in or
+            // out of the low-stock set. Caller holds the item's lock. Returns the event to fire
+            // once the change is saved, or null if the item didn't cross its threshold.
+            private LowStockEvent setStock(Item it, int quantity, int reorderPoint) {
+                boolean wasLow = it.isLowStock();
+                if (quantity != it.quantity) {
+                    byQuantity.remove(new StockKey(it.quantity, it.id));
+                    it.quantity = quantity;
+                    byQuantity.put(new StockKey(quantity, it.id), it);
+                }
+                it.reorderPoint = reorderPoint;
+                boolean low = it.isLowStock();
+                if (low == wasLow) return null;
+                if (low) lowStock.put(it.id, it); else lowStock.remove(it.id);
+                return new LowStockEvent(it, low);
+            }
+
+            private void index(Item it) {
+                byQuantity.put(new StockKey(it.quantity, it.id), it);
+                if (it.isLowStock()) lowStock.put(it.id, it);
+                text.add(it.id, TextIndex.words(it.name, it.category));
+            }
+
+            private void published(Item it) {
+                ChangeFeed f = feed;
+                if (f != null) f.itemChanged(it);
+            }
+
+            private void fire(LowStockEvent e) {
+                if (e == null) return;
+                Metrics.inc(Metrics.LOW_STOCK_EVENTS);
+                for (LowStockListener l : listeners) {
+                    try { l.onLowStock(e); }
+                    catch (RuntimeException ex) { System.err.println("Low-stock listener failed: " + ex); }
+                }
+            }
+
+            private static final class StockKey implements Comparable<StockKey> {
+                final int quantity;
+                final long id;
+
+                StockKey(int quantity, long id) { this.quantity = quantity; this.id = id; }
+
+                public int compareTo(StockKey o) {
+                    int c = Integer.compare(quantity, o.quantity);
+                    return c != 0 ? c : Long.compare(id, o.id);
+                }
+            }
+
+            private int stripe(long itemId) {
+                long h = itemId * 0x9E3779B97F4A7C15L;
+                return (int) (h >>> 40) & (stripes.length - 1);
+            }
+
+            private long nextItemId() { return ++lastItemId; }
+        }
+
+        // Bulk ingest: ALL_OR_NOTHING applies the batch only if every row is valid, REJECT_ROWS
+        // applies the valid rows and reports the others.
+        enum IngestMode { ALL_OR_NOTHING, REJECT_ROWS }
+
+        // One row of a bulk upload; a null timestamp means "now". `error` is set by the CSV
+        // reader for rows it couldn't parse.
+        static class IngestRow {
+            final int row;
+            final long itemId;
+            final TxType type;
+            final int quantity;
+            final String note;
+            final LocalDateTime timestamp;
+            String error;
+
+            IngestRow(int row, long itemId, TxType type, int quantity, String note, LocalDateTime timestamp) {
+                this.row = row;
+                this.itemId = itemId;
+                this.type = type;
+                this.quantity = quantity;
+                this.note = note;
+                this.timestamp = timestamp;
+            }
+
+            static IngestRow invalid(int row, String error) {
+                IngestRow r = new IngestRow(row, 0, null, 0, null, null);
+                r.error = error;
+                return r;
+            }
+        }
+
+        static class IngestResult {
+            final int rows;
+            final List<Txn> accepted = new ArrayList<>();
+            final List<String> rejected = new ArrayList<>();  // "row N: reason"
+            boolean applied;
+            long elapsedNanos;
+
+            IngestResult(int rows) { this.rows = rows; }
+
+            double rowsPerSecond() { return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9); }
+        }
+
+        // History is kept per monthly segment. The active month is always in memory; older
+        // months are loaded when a query first touches them and kept in a small LRU cache.
+        // Rollups are built the same way, a month at a time, the first time a rollup query
+        // covers it.
+        static class TransactionService {
+            static final int DEFAULT_SEGMENT_CACHE = 6;
+            static final int DEFAULT_CHECKPOINT_CACHE = 12;
+            private static final long ALL_ITEMS = Long.MIN_VALUE;
+            private static final long[] NO_FENCE = {Long.MAX_VALUE, Long.MAX_VALUE};
+
+            private final Store store;
+            private final InventoryService inventory;
+            private final TxnLayout layout;
+            private final MovementRollup rollup = new MovementRollup();
+            private final AtomicLong txnSeq;
+            private volatile ActiveSegment active;
+            // month -> loaded table, least recently used first, guarded by itself
+            private final LinkedHashMap<YearMonth, CompletableFuture<TxnTable>> loaded = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<YearMonth, CompletableFuture<TxnTable>> e) {
+                    return size() > segmentCacheSize;
+                }
+            };
+            // Held while rows are appended to a month other than the active one and while a month
+            // is folded into the rollup, so a month is never counted twice or half.
+            private final Object history = new Object();
+            private final Set<YearMonth> rolledUp = new HashSet<>(); // guarded by `history`
+            // Every change takes the next version and stamps its month with it, so a date range
+            // whose months haven't changed keeps its version however much else is recorded.
+            private final AtomicLong version = new AtomicLong();
+            private final ConcurrentSkipListMap<YearMonth, Long> monthVersions = new ConcurrentSkipListMap<>();
+            private volatile ChangeFeed feed;
+            // Recently used stock checkpoints, guarded by itself. Saving one and dropping them go
+            // through checkpointLock; a drop bumps the epoch, so a checkpoint worked out from
+            // history as it was before is never saved after it.
+            private final LinkedHashMap<YearMonth, StockLevels> checkpoints = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<YearMonth, StockLevels> e) {
+                    return size() > checkpointCacheSize;
+                }
+            };
+            private final Object checkpointLock = new Object();
+            private long checkpointEpoch; // guarded by checkpointLock
+            // Words of notes. Built from the whole history on the first search (noteIndexing
+            // takes new rows while that runs), then kept up by record and ingest.
+            private volatile TextIndex noteIndex, noteIndexing;
+            private final Object noteIndexBuild = new Object();
+            int segmentCacheSize = DEFAULT_SEGMENT_CACHE;
+            int checkpointCacheSize = DEFAULT_CHECKPOINT_CACHE;
+
+            private static final class ActiveSegment {
+                final YearMonth month;
+                final TxnTable table;
+                ActiveSegment(YearMonth month, TxnTable table) { this.month = month; this.table = table; }
+            }
+
+            TransactionService(Store store, InventoryService inventory) { this(store, inventory, TxnLayout.OBJECTS); }
+
+            TransactionService(Store store, InventoryService inventory, TxnLayout layout) {
+                this.store = store; this.inventory = inventory; this.layout = layout;
+                this.active = new ActiveSegment(store.activeMonth(), loadActive(store.activeMonth()));
+                this.txnSeq = new AtomicLong(Math.max(5000L, store.maxTxnId()));
+                Metrics.gauge("transactions", store::txnCount);
+                Metrics.gauge("loadedSegments", () -> { synchronized (loaded) { return loaded.size(); } });
+            }
+
+            // Daily IN/OUT aggregates covering at least [from, to], maintained as transactions
+            // are recorded.
+            MovementRollup rollup(LocalDate from, LocalDate to) {
+                for (YearMonth month : store.txnSegments().subMap(YearMonth.from(from), true, YearMonth.from(to), true).keySet()) {
+                    synchronized (history) {
+                        if (!rolledUp.add(month)) continue;
+                        table(month).forEach(rollup::add);
+                    }
+                }
+                return rollup;
+            }
+
+            List<Txn> listAll() {
+                List<Txn> out = new ArrayList<>();
+                forEach(t -> out.add(t.toTxn()));
+                return out;
+            }
+
+            // Visits every transaction, month by month and in recording order within a month,
+            // without materializing a list. Months that aren't cached are read and dropped
+            // rather than pushing recent months out of the cache. The view passed to `action`
+            // must not be kept after it returns.
+            void forEach(Consumer<? super TxnView> action) {
+                ActiveSegment a = active;
+                boolean sawActive = false;
+                for (YearMonth month : store.txnSegments().keySet()) {
+                    if (month.equals(a.month)) { a.table.forEach(action); sawActive = true; continue; }
+                    TxnTable cached = cached(month);
+                    if (cached != null) cached.forEach(action);
+                    else store.loadSegment(month).forEach(action);
+                }
+                if (!sawActive) a.table.forEach(action);
+            }
+
+            // The active month's transactions, for the binary snapshot.
+            YearMonth activeMonth() { return active.month; }
+
+            void forEachActive(Consumer<? super TxnView> action) { active.table.forEach(action); }
+
+            // Seeks to the first transaction of `from` and walks forward until the end of `to`.
+            List<Txn> listByDate(LocalDate from, LocalDate to) {
+                List<Txn> out = new ArrayList<>();
+                forEachByDate(from, to, t -> out.add(t.toTxn()));
+                return out;
+            }
+
+            // Same range as listByDate, visited in place without copying it into a list. Only
+            // segments whose meta says they hold rows in range are touched.
+            void forEachByDate(LocalDate from, LocalDate to, Consumer<? super TxnView> action) {
+                long t0 = Metrics.start();
+                try {
+                    LocalDateTime start = from.atStartOfDay(), end = to.plusDays(1).atStartOfDay();
+                    ActiveSegment a = active;
+                    boolean sawActive = false;
+                    for (TxnSegment seg : store.txnSegments().subMap(YearMonth.from(start), true, YearMonth.from(end.minusNanos(1)), true).values()) {
+                        if (seg.month.equals(a.month)) sawActive = true;
+                        if (seg.overlaps(start, end)) table(seg.month).forEachInRange(start, end, action);
+                    }
+                    // rows recorded before their segment's meta was updated
+                    if (!sawActive && !YearMonth.from(start).isAfter(a.month) && !YearMonth.from(end.minusNanos(1)).isBefore(a.month)) {
+                        a.table.forEachInRange(start, end, action);
+                    }
+                } finally { Metrics.RANGE_SCAN.stop(t0); }
+            }
+
+            // Parallel counterpart of forEachByDate (see TxnTable.reduceInRange): months are
+            // folded concurrently, each split further across the pool, and their partials merged.
+            // Like forEach, months that aren't cached are read and dropped.
+            <A> A reduceByDate(LocalDate from, LocalDate to, Supplier<A> partial,
+                               BiConsumer<A, ? super TxnView> accumulate, BiConsumer<A, A> merge) {
+                LocalDateTime start = from.atStartOfDay(), end = to.plusDays(1).atStartOfDay();
+                ActiveSegment a = active;
+                Set<YearMonth> months = new TreeSet<>();
+                for (TxnSegment seg : store.txnSegments().subMap(YearMonth.from(start), true, YearMonth.from(end.minusNanos(1)), true).values()) {
+                    if (seg.overlaps(start, end) || seg.month.equals(a.month)) months.add(seg.month);
+                }
+                if (!YearMonth.from(start).isAfter(a.month) && !YearMonth.from(end.minusNanos(1)).isBefore(a.month)) months.add(a.month);
+                return months.parallelStream().map(month -> {
+                    TxnTable table = month.equals(a.month) ? a.table : cached(month);
+                    if (table != null) return table.reduceInRange(start, end, partial, accumulate, merge);
+                    return store.loadSegment(month).parallelStream()
+                            .filter(t -> !t.timestamp.isBefore(start) && t.timestamp.isBefore(end))
+                            .collect(partial, accumulate, merge);
+                }).collect(partial, merge, merge);
+            }
+
+            // The latest month holding transactions, or the active month if that is later.
+            YearMonth lastMonth() {
+                YearMonth a = active.month;
+                NavigableMap<YearMonth, TxnSegment> segs = store.txnSegments();
+                return segs.isEmpty() || segs.lastKey().isBefore(a) ? a : segs.lastKey();
+            }
+
+            long size() { return store.txnCount(); }
+
+            long version() { return version.get(); }
+
+            // Changes only when a transaction dated in [from, to]'s months is added or removed.
+            long versionOf(LocalDate from, LocalDate to) {
+                long v = 0;
+                for (long m : monthVersions.subMap(YearMonth.from(from), true, YearMonth.from(to), true).values()) v = Math.max(v, m);
+                return v;
+            }
+
+            // ---- Stock as of a date ----
+            // A checkpoint holds every item's quantity at the start of a month. Each is worked
+            // out once, walking back a month at a time from the nearest later one (or from
+            // current stock, taking off what was recorded since), then saved next to the
+            // month's transactions. A query starts from the checkpoint at the start or the end
+            // of its month, whichever is nearer the date (current stock for the active month),
+            // and applies only the transactions in between, so it reads at most about half a
+            // month of history however long the history is.
+            //
+            // Rows added to an earlier month change every later checkpoint, so those are
+            // dropped and worked out again when next needed. A quantity set by editing an item
+            // is walked like a transaction of the difference (see StockAdjustment), so it shows
+            // from the time of the edit on, whenever the checkpoints around it were worked out.
+            // Creating and deleting an item are logged the same way: a walk that crosses one
+            // adds the item to the starting point's items or drops it, so a result holds the
+            // items that existed at its time.
+
+            // The stock at the end of `day`.
+            StockLevels stockAsOf(LocalDate day) { return stockAsOf(day, ALL_ITEMS); }
+
+            // One item's stock at the end of `day`; null if the item isn't known then.
+            Integer stockAsOf(long itemId, LocalDate day) { return stockAsOf(day, itemId).quantityOf(itemId); }
+
+            // Current stock, with the number of the last transaction it reflects in fence[0] and
+            // the adjustment fence in fence[1]. For one item only its own lock is needed: its
+            // later transactions and edits need it too, and creating or deleting it the catalog.
+            private StockLevels currentStock(long onlyItem, long[] fence) {
+                if (onlyItem == ALL_ITEMS) return inventory.stockLevels(() -> { fence[0] = txnSeq.get(); fence[1] = inventory.adjustmentFence(); });
+                LocalDateTime at = LocalDateTime.now();
+                return inventory.withItemLocked(onlyItem, () -> {
+                    fence[0] = txnSeq.get();
+                    fence[1] = inventory.adjustmentFence();
+                    Item it = inventory.findById(onlyItem);
+                    return it == null ? new StockLevels(at, new long[0], new int[0]) : new StockLevels(at, new long[]{onlyItem}, new int[]{it.quantity});
+                });
+            }
+
+            private StockLevels stockAsOf(LocalDate day, long onlyItem) {
+                long t0 = Metrics.start();
+                try {
+                    LocalDateTime end = day.plusDays(1).atStartOfDay();
+                    YearMonth month = YearMonth.from(day), current = active.month;
+                    NavigableMap<YearMonth, TxnSegment> segs = store.txnSegments();
+                    YearMonth first = segs.isEmpty() || segs.firstKey().isAfter(current) ? current : segs.firstKey();
+                    if (month.isBefore(first)) {
+                        StockLevels cp = checkpoint(first); // nothing is recorded before it
+                        return new StockLevels(end, cp.itemIds, cp.quantities, cp.at, 0);
+                    }
+                    if (!month.isBefore(current)) {
+                        long[] fence = new long[2];
+                        StockLevels now = currentStock(onlyItem, fence);
+                        return walk(now, day.plusDays(1), lastMonth().atEndOfMonth(), -1, fence, onlyItem, end);
+                    }
+                    if (day.getDayOfMonth() <= month.lengthOfMonth() - day.getDayOfMonth()) {
+                        return walk(checkpoint(month), month.atDay(1), day, 1, NO_FENCE, onlyItem, end);
+                    }
+                    return walk(checkpoint(month.plusMonths(1)), day.plusDays(1), month.atEndOfMonth(), -1, NO_FENCE, onlyItem, end);
+                } finally { Metrics.STOCK_AS_OF.stop(t0); }
+            }
+
+            // The checkpoint for the start of `month`, no later than the active month.
+            private StockLevels checkpoint(YearMonth month) {
+                StockLevels cp = loadCheckpoint(month);
+                if (cp != null) return cp;
+                long epoch;
+                synchronized (checkpointLock) { epoch = checkpointEpoch; }
+                YearMonth current = active.month, at = null;
+                for (YearMonth m = month.plusMonths(1); !m.isAfter(current) && cp == null; m = m.plusMonths(1)) {
+                    cp = loadCheckpoint(m);
+                    at = m;
+                }
+                // transactions and edits past the fence came after the stock was read, so aren't in it
+                long[] fence = NO_FENCE;
+                if (cp == null) {
+                    fence = new long[2];
+                    StockLevels now = currentStock(ALL_ITEMS, fence);
+                    at = current;
+                    cp = walk(now, current.atDay(1), lastMonth().atEndOfMonth(), -1, fence, ALL_ITEMS, current.atDay(1).atStartOfDay());
+                    saveCheckpoint(at, cp, epoch);
+                }
+                while (at.isAfter(month)) {
+                    at = at.minusMonths(1);
+                    cp = walk(cp, at.atDay(1), at.atEndOfMonth(), -1, fence, ALL_ITEMS, at.atDay(1).atStartOfDay());
+                    saveCheckpoint(at, cp, epoch);
+                }
+                return new StockLevels(cp.at, cp.itemIds, cp.quantities);
+            }
+
+            private StockLevels loadCheckpoint(YearMonth month) {
+                synchronized (checkpoints) {
+                    StockLevels cp = checkpoints.get(month);
+                    if (cp != null) return cp;
+                }
+                StockLevels cp = store.loadCheckpoint(month);
+                if (cp != null) synchronized (checkpoints) { checkpoints.put(month, cp); }
+                return cp;
+            }
+
+            // Unless checkpoints were dropped since `epoch`: then `levels` may be out of date.
+            private void saveCheckpoint(YearMonth month, StockLevels levels, long epoch) {
+                StockLevels cp = new StockLevels(levels.at, levels.itemIds, levels.quantities);
+                synchronized (checkpointLock) {
+                    if (checkpointEpoch != epoch) return;
+                    store.saveCheckpoint(month, cp);
+                    synchronized (checkpoints) { checkpoints.put(month, cp); }
+                }
+            }
+
+            // Rows are about to be added to `month`: the checkpoints after it stop being right.
+            private void dropCheckpointsAfter(YearMonth month) {
+                synchronized (checkpointLock) {
+                    checkpointEpoch++;
+                    synchronized (checkpoints) { checkpoints.keySet().removeIf(m -> m.isAfter(month)); }
+                    store.dropCheckpoints(month.plusMonths(1));
+                }
+            }
+
+            // `base` moved by the transactions dated [from, to] numbered up to fence[0], and by the
+            // adjustments made then below fence[1]: added walking forward (sign 1), taken off
+            // walking back (-1). Only `onlyItem`'s are applied unless it's ALL_ITEMS. The result
+            // is stamped `at`.
+            private StockLevels walk(StockLevels base, LocalDate from, LocalDate to, int sign, long[] fence, long onlyItem, LocalDateTime at) {
+                if (from.isAfter(to)) return new StockLevels(at, base.itemIds, base.quantities, base.at, 0);
+                List<StockAdjustment> adjustments = inventory.adjustments(from.atStartOfDay(), to.plusDays(1).atStartOfDay(), fence[1]);
+                // items created or deleted in between: whether each exists at the far end is up
+                // to its creation or deletion nearest that end. They start at 0 if `base` lacks them.
+                Map<Long, Boolean> exists = new HashMap<>();
+                for (StockAdjustment adj : adjustments) {
+                    if (adj.kind == StockAdjustment.Kind.EDITED || (onlyItem != ALL_ITEMS && adj.itemId != onlyItem)) continue;
+                    if (sign > 0) exists.put(adj.itemId, adj.kind == StockAdjustment.Kind.CREATED);
+                    else exists.putIfAbsent(adj.itemId, adj.kind == StockAdjustment.Kind.DELETED);
+                }
+                StockLevels known = exists.isEmpty() ? base : base.with(exists.keySet());
+                int only = onlyItem == ALL_ITEMS ? -1 : known.indexOf(onlyItem);
+                if (onlyItem != ALL_ITEMS && only < 0) return new StockLevels(at, base.itemIds, base.quantities, base.at, 0);
+                int n = only >= 0 ? 1 : known.size();
+                // per item (or just the one) net units, then the transaction count; ints, like
+                // the stock they change
+                int[] net = reduceByDate(from, to, () -> new int[n + 1], (acc, t) -> {
+                    if (t.id() > fence[0]) return;
+                    int i;
+                    if (only >= 0) {
+                        if (t.itemId() != onlyItem) return;
+                        i = 0;
+                    } else if ((i = known.indexOf(t.itemId())) < 0) return;
+                    acc[i] += t.type() == TxType.IN ? t.quantity() : -t.quantity();
+                    acc[n]++;
+                }, (a, b) -> { for (int i = 0; i <= n; i++) a[i] += b[i]; });
+                for (StockAdjustment adj : adjustments) {
+                    int i = only >= 0 ? (adj.itemId == onlyItem ? 0 : -1) : known.indexOf(adj.itemId);
+                    if (i >= 0) net[i] += adj.delta;
+                }
+                StockLevels out;
+                if (only >= 0) {
+                    out = new StockLevels(at, new long[]{onlyItem}, new int[]{known.quantities[only] + sign * net[0]}, base.at, net[n]);
+                } else {
+                    int[] qty = known.quantities.clone();
+                    for (int i = 0; i < n; i++) qty[i] += sign * net[i];
+                    out = new StockLevels(at, known.itemIds, qty, base.at, net[n]);
+                }
+                return exists.containsValue(false) ? out.filter(id -> exists.getOrDefault(id, true)) : out;
+            }
+
+            // ---- Note search ----
+
+            // Transactions whose note holds every word of `query`, each as a whole word or the
+            // start of one, newest first; the first `limit` of them. The first search reads the
+            // whole history to build the index.
+            SearchHits<Txn> searchNotes(String query, int limit) {
+                long t0 = System.nanoTime();
+                if (limit <= 0) throw new IllegalArgumentException("Limit must be positive");
+                if (TextIndex.words(query).isEmpty()) throw new IllegalArgumentException("Search needs at least one word");
+                long[] ids = noteIndex().search(query);
+                List<Txn> out = findByIds(Arrays.copyOfRange(ids, Math.max(0, ids.length - limit), ids.length));
+                out.sort(Comparator.comparingLong((Txn t) -> t.id).reversed());
+                long elapsed = System.nanoTime() - t0;
+                if (Metrics.enabled()) Metrics.SEARCH_TXNS.record(elapsed);
+                return new SearchHits<>(out, ids.length, elapsed);
+            }
+
+            // Null until the first search has built the index.
+            TextIndex.Footprint searchFootprint() {
+                TextIndex ni = noteIndex;
+                return ni == null ? null : ni.footprint();
+            }
+
+            private TextIndex noteIndex() {
+                TextIndex ni = noteIndex;
+                if (ni != null) return ni;
+                synchronized (noteIndexBuild) {
+                    if (noteIndex != null) return noteIndex;
+                    TextIndex built = new TextIndex();
+                    noteIndexing = built; // a row both recorded and read below is indexed once
+                    try {
+                        // few distinct notes repeat across many rows: split each only once
+                        Map<String, List<String>> split = new HashMap<>();
+                        forEach(t -> {
+                            String note = t.note();
+                            if (note.isEmpty()) return;
+                            List<String> words = split.get(note);
+                            if (words == null) {
+                                words = TextIndex.words(note);
+                                if (split.size() < 100_000) split.put(note, words);
+                            }
+                            built.add(t.id(), words);
+                        });
+                    } catch (RuntimeException e) {
+                        noteIndexing = null;
+                        throw e;
+                    }
+                    noteIndex = built;
+                    return built;
+                }
+            }
+
+            private void indexNote(Txn t) {
+                TextIndex ni = noteIndexing;
+                if (ni != null && !t.note.isEmpty()) ni.add(t.id, TextIndex.words(t.note));
+            }
+
+            // The rows with these ids (ascending), from the months whose id range covers any of
+            // them, latest first. An id with no row (one whose write failed while the index was
+            // being built) is left out.
+            private List<Txn> findByIds(long[] ids) {
+                List<Txn> out = new ArrayList<>(ids.length);
+                if (ids.length == 0) return out;
+                long lo = ids[0], hi = ids[ids.length - 1];
+                Consumer<TxnView> pick = t -> {
+                    long id = t.id();
+                    if (id >= lo && id <= hi && Arrays.binarySearch(ids, id) >= 0) out.add(t.toTxn());
+                };
+                ActiveSegment a = active;
+                a.table.forEach(pick); // its meta may lag the rows
+                for (TxnSegment seg : store.txnSegments().descendingMap().values()) {
+                    if (out.size() == ids.length) break;
+                    if (seg.month.equals(a.month) || seg.rows() == 0 || seg.maxId() < lo || seg.minId() > hi) continue;
+                    table(seg.month).forEach(pick);
+                }
+                return out;
+            }
+
+            // Transactions recorded from here on are published to `feed` once they're in the log,
+            // right after the stock change they caused, which is itself only published then.
+            void publishTo(ChangeFeed feed) { this.feed = feed; }
+
+            // true if the month's rows are in memory (the active month, or a cached one)
+            boolean isLoaded(YearMonth month) { return month.equals(active.month) || cached(month) != null; }
+
+            // The stock change, the in-memory Txn and its log line happen under the item's lock,
+            // so no other movement of the same item can interleave. The new quantity is only
+            // saved and published once the log line is written; if the write fails the quantity
+            // goes back in memory and nothing else happens. Timestamps keep whole seconds, as
+            // the log does.
+            Txn record(long itemId, TxType type, int quantity, String note) {
+                long t0 = Metrics.start();
+                try {
+                    if (quantity <= 0) throw new IllegalArgumentException("Quantity must be positive");
+                    int delta = type==TxType.IN ? quantity : -quantity;
+                    return inventory.withItemLocked(itemId, () -> {
+                        Item it = inventory.checkStock(itemId, delta);
+                        int before = it.quantity;
+                        List<LowStockEvent> events = inventory.stageStock(Collections.singletonMap(it, before + delta));
+                        long id = nextTxnId();
+                        Txn t = new Txn(id, itemId, type, quantity, LocalDateTime.now().withNano(0), note==null?"":note);
+                        ActiveSegment a = activeFor(YearMonth.from(t.timestamp));
+                        try {
+                            if (a == null) appendHistory(Collections.singletonList(t), null); // the clock went back a month
+                            else {
+                                a.table.add(t);
+                                rollup.add(t);
+                                try {
+                                    store.appendTxn(t);
+                                } catch (RuntimeException e) {
+                                    a.table.remove(t);
+                                    rollup.remove(t);
+                                    throw e;
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            inventory.stageStock(Collections.singletonMap(it, before));
+                            throw e;
+                        } finally {
+                            changed(YearMonth.from(t.timestamp)); // a failed row may have been visible for a moment
+                        }
+                        inventory.commitStock(Collections.singleton(it), events);
+                        ChangeFeed f = feed;
+                        if (f != null) f.txnRecorded(t);
+                        indexNote(t);
+                        return t;
+                    });
+                } catch (RuntimeException e) {
+                    Metrics.inc(Metrics.RECORD_FAILURES);
+                    throw e;
+                } finally { Metrics.RECORD.stop(t0); }
+            }
+
+            IngestResult ingestCsv(Path file, IngestMode mode) { return ingest(CsvStore.readIngestCsv(file).iterator(), mode); }
+
+            // Validates the whole batch against current stock (rows apply in order, so a later
+            // sale can use stock an earlier purchase in the batch brought in), then appends
+            // every transaction with one log write and, once that succeeds, saves every stock
+            // change with one item write. All affected items stay locked for the duration.
+            IngestResult ingest(Iterator<IngestRow> rows, IngestMode mode) {
+                long t0 = System.nanoTime();
+                List<IngestRow> batch = new ArrayList<>();
+                rows.forEachRemaining(batch::add);
+                IngestResult result = new IngestResult(batch.size());
+                Set<Long> itemIds = new HashSet<>();
+                for (IngestRow r : batch) if (r.error == null) itemIds.add(r.itemId);
+
+                inventory.withItemsLocked(itemIds, () -> {
+                    Map<Item, Integer> balance = new LinkedHashMap<>();
+                    List<IngestRow> valid = new ArrayList<>();
+                    for (IngestRow r : batch) {
+                        String why = r.error;
+                        if (why == null && r.type == null) why = "Missing type";
+                        if (why == null && r.quantity <= 0) why = "Quantity must be positive";
+                        Item it = why == null ? inventory.findById(r.itemId) : null;
+                        if (why == null && it == null) why = "Item not found: " + r.itemId;
+                        if (why == null) {
+                            int current = balance.getOrDefault(it, it.quantity);
+                            int next = current + (r.type == TxType.IN ? r.quantity : -r.quantity);
+                            if (next < 0) why = "Insufficient stock. Current: " + current;
+                            else if (r.type == TxType.OUT && next < it.reserved) why = "Insufficient stock. Current: " + current + ", reserved: " + it.reserved;
+                            else balance.put(it, next);
+                        }
+                        if (why != null) result.rejected.add("row " + r.row + ": " + why);
+                        else valid.add(r);
+                    }
+                    if (valid.isEmpty() || (mode == IngestMode.ALL_OR_NOTHING && !result.rejected.isEmpty())) return null;
+
+                    Map<Item, Integer> before = new LinkedHashMap<>();
+                    for (Item it : balance.keySet()) before.put(it, it.quantity);
+                    LocalDateTime now = LocalDateTime.now().withNano(0);
+                    ActiveSegment a = activeFor(YearMonth.from(now));
+                    if (a == null) a = active; // the clock went back a month
+                    List<Txn> added = new ArrayList<>(valid.size());
+                    List<Txn> current = new ArrayList<>();
+                    for (IngestRow r : valid) {
+                        LocalDateTime ts = r.timestamp == null ? now : r.timestamp.withNano(0);
+                        Txn t = new Txn(nextTxnId(), r.itemId, r.type, r.quantity, ts, r.note == null ? "" : r.note);
+                        added.add(t);
+                        if (YearMonth.from(ts).equals(a.month)) current.add(t);
+                    }
+                    List<LowStockEvent> events = inventory.stageStock(balance);
+                    for (Txn t : current) { a.table.add(t); rollup.add(t); }
+                    try {
+                        if (current.size() == added.size()) store.appendTxns(added);
+                        else appendHistory(added, a.month);
+                    } catch (RuntimeException e) {
+                        for (Txn t : current) { a.table.remove(t); rollup.remove(t); }
+                        inventory.stageStock(before);
+                        throw e;
+                    } finally {
+                        for (Txn t : added) changed(YearMonth.from(t.timestamp));
+                    }
+                    inventory.commitStock(balance.keySet(), events);
+                    ChangeFeed f = feed;
+                    if (f != null) for (Txn t : added) f.txnRecorded(t);
+                    for (Txn t : added) indexNote(t);
+                    result.accepted.addAll(added);
+                    result.applied = true;
+                    return null;
+                });
+                result.elapsedNanos = System.nanoTime() - t0;
+                if (Metrics.enabled()) Metrics.INGEST.record(result.elapsedNanos);
+                Metrics.add(Metrics.INGESTED_ROWS, result.accepted.size());
+                return result;
+            }
+
+            // Appends rows of which some (or all) belong to months other than `applied`, whose
+            // rows the caller has already put in memory. The other months' cached tables are
+            // dropped rather than patched, and their rows go into the rollup only if the month
+            // was already folded into it.
+            private void appendHistory(List<Txn> txns, YearMonth applied) {
+                synchronized (history) {
+                    YearMonth earliest = null;
+                    for (Txn t : txns) {
+                        YearMonth month = YearMonth.from(t.timestamp);
+                        if (earliest == null || month.isBefore(earliest)) earliest = month;
+                    }
+                    if (earliest.isBefore(active.month)) dropCheckpointsAfter(earliest);
+                    store.appendTxns(txns);
+                    Set<YearMonth> touched = new HashSet<>();
+                    for (Txn t : txns) {
+                        YearMonth month = YearMonth.from(t.timestamp);
+                        if (month.equals(applied)) continue;
+                        touched.add(month);
+                        if (rolledUp.contains(month)) rollup.add(t);
+                    }
+                    synchronized (loaded) { loaded.keySet().removeAll(touched); }
+                }
+            }
+
+            // The active segment if `month` is the active month, after rolling over to it if it's
+            // a later one; null for an earlier month.
+            private ActiveSegment activeFor(YearMonth month) {
+                ActiveSegment a = active;
+                if (month.equals(a.month)) return a;
+                if (month.isBefore(a.month)) return null;
+                synchronized (this) {
+                    a = active;
+                    if (!month.isAfter(a.month)) return month.equals(a.month) ? a : null;
+                    store.rollTxnLog(month);
+                    ActiveSegment next = new ActiveSegment(month, loadActive(month));
+                    // the month that just ended stays warm in the cache
+                    synchronized (loaded) { loaded.put(a.month, CompletableFuture.completedFuture(a.table)); }
+                    active = next;
+                    // in the background: this thread holds an item lock, and reading stock takes them all
+                    CompletableFuture.runAsync(() -> checkpoint(month)).exceptionally(e -> {
+                        System.err.println("Stock checkpoint for " + month + " failed: " + e);
+                        return null;
+                    });
+                    return next;
+                }
+            }
+
+            // A month about to become active may already hold rows: bulk uploads can be dated
+            // ahead. They go into the rollup unless the month was folded into it earlier.
+            private TxnTable loadActive(YearMonth month) {
+                TxnTable table = TxnTable.create(layout);
+                synchronized (history) {
+                    boolean fold = rolledUp.add(month);
+                    for (Txn t : store.loadSegment(month)) {
+                        table.add(t);
+                        if (fold) rollup.add(t);
+                    }
+                }
+                return table;
+            }
+
+            private TxnTable cached(YearMonth month) {
+                CompletableFuture<TxnTable> f;
+                synchronized (loaded) { f = loaded.get(month); }
+                return f != null && f.isDone() && !f.isCompletedExceptionally() ? f.join() : null;
+            }
+
+            // A month's rows, from memory or loaded into the cache. Concurrent callers for the
+            // same month wait for one load.
+            private TxnTable table(YearMonth month) {
+                ActiveSegment a = active;
+                if (month.equals(a.month)) return a.table;
+                CompletableFuture<TxnTable> f;
+                boolean load = false;
+                synchronized (loaded) {
+                    f = loaded.get(month);
+                    if (f == null) {
+                        f = new CompletableFuture<>();
+                        loaded.put(month, f);
+                        load = true;
+                    }
+                }
+                if (load) {
+                    Metrics.inc(Metrics.SEGMENT_LOADS);
+                    try {
+                        TxnTable table = TxnTable.create(layout);
+                        for (Txn t : store.loadSegment(month)) table.add(t);
+                        f.complete(table);
+                    } catch (RuntimeException e) {
+                        synchronized (loaded) { loaded.remove(month, f); }
+                        f.completeExceptionally(e);
+                    }
+                }
+                try { return f.join(); }
+                catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw e;
+                }
+            }
+
+            private void changed(YearMonth month) { monthVersions.merge(month, version.incrementAndGet(), Math::max); }
+
+            private long nextTxnId() { return txnSeq.incrementAndGet(); }
+        }
+
+        // One line of a customer order.
+        static class OrderLine {
+            final long itemId;
+            final int quantity;
+
+            OrderLine(long itemId, int quantity) { this.itemId = itemId; this.quantity = quantity; }
+        }
+
+        // Stock held for an order until it's confirmed, cancelled or the hold runs out.
+        static class Reservation {
+            final long id;
+            final List<OrderLine> lines;
+            final String note;
+            final LocalDateTime expiresAt;
+            final Map<Long, Integer> held;   // units per item, lines for the same item added up
+
+            Reservation(long id, List<OrderLine> lines, String note, LocalDateTime expiresAt, Map<Long, Integer> held) {
+                this.id = id; this.lines = lines; this.note = note; this.expiresAt = expiresAt; this.held = held;
+            }
+
+            boolean expired(LocalDateTime now) { return !now.isBefore(expiresAt); }
+        }
+
+        // Customer orders: several items leaving together. placeOrder takes the stock straight
+        // away; reserve holds it until the order is confirmed, cancelled or the hold runs out.
+        // Either way the sale itself is one ingest, so every line's stock change and
+        // transaction is written in one step, and a line that can't be met stops them all.
+        // Holds are kept in memory only, like sessions: a restart releases them.
+        static class OrderService implements Closeable {
+            static final Duration DEFAULT_HOLD = Duration.ofMinutes(15);
+            static final long SWEEP_MILLIS = 1_000;
+
+            private final InventoryService inventory;
+            private final TransactionService tx;
+            private final AtomicLong reservationSeq = new AtomicLong();
+            private final Map<Long, Reservation> open = new ConcurrentHashMap<>();
+            private final ScheduledExecutorService sweeper;
+
+            OrderService(InventoryService inventory, TransactionService tx) {
+                this.inventory = inventory;
+                this.tx = tx;
+                this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "order-expiry");
+                    t.setDaemon(true);
+                    return t;
+                });
+                sweeper.scheduleWithFixedDelay(this::expire, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+                Metrics.gauge("orders.openReservations", open::size);
+            }
+
+            // Takes every line's stock and records one OUT transaction per line, or nothing if
+            // any line can't be met.
+            List<Txn> placeOrder(List<OrderLine> lines, String note) {
+                long t0 = Metrics.start();
+                try {
+                    held(lines);
+                    return sell(lines, note);
+                } finally { Metrics.PLACE_ORDER.stop(t0); }
+            }
+
+            Reservation reserve(List<OrderLine> lines, String note, Duration hold) {
+                long t0 = Metrics.start();
+                try {
+                    if (hold == null) hold = DEFAULT_HOLD;
+                    if (hold.isNegative() || hold.isZero()) throw new IllegalArgumentException("Hold time must be positive");
+                    Map<Long, Integer> held = held(lines);
+                    List<String> problems = inventory.hold(held);
+                    if (!problems.isEmpty()) throw new IllegalArgumentException("Order rejected: " + String.join("; ", problems));
+                    Reservation r = new Reservation(reservationSeq.incrementAndGet(), List.copyOf(lines), note == null ? "" : note,
+                            LocalDateTime.now().plus(hold), held);
+                    open.put(r.id, r);
+                    return r;
+                } finally { Metrics.RESERVE_ORDER.stop(t0); }
+            }
+
+            // Turns a hold into a sale. The hold is given up and the sale made under the same
+            // item locks, so nothing else can take the stock in between. If the sale fails the
+            // hold is put back, less any items deleted meanwhile; if even that can't be held
+            // the reservation is dropped and the error says why.
+            List<Txn> confirm(long reservationId) {
+                long t0 = Metrics.start();
+                try {
+                    Reservation r = open.remove(reservationId);
+                    if (r == null) throw new IllegalArgumentException("Reservation not found: " + reservationId);
+                    if (r.expired(LocalDateTime.now())) {
+                        inventory.release(r.held);
+                        Metrics.inc(Metrics.ORDERS_EXPIRED);
+                        throw new IllegalArgumentException("Reservation expired: " + reservationId);
+                    }
+                    return inventory.withItemsLocked(r.held.keySet(), () -> {
+                        inventory.release(r.held);
+                        try { return sell(r.lines, r.note); }
+                        catch (RuntimeException e) {
+                            Map<Long, Integer> still = new LinkedHashMap<>(r.held);
+                            still.keySet().removeIf(id -> inventory.findById(id) == null); // deleted meanwhile
+                            List<String> problems = inventory.hold(still);
+                            if (!problems.isEmpty())
+                                throw new IllegalArgumentException(e.getMessage() + "; reservation " + r.id + " dropped: " + String.join("; ", problems), e);
+                            open.put(r.id, new Reservation(r.id, r.lines, r.note, r.expiresAt, still));
+                            throw e;
+                        }
+                    });
+                } finally { Metrics.CONFIRM_ORDER.stop(t0); }
+            }
+
+            boolean cancel(long reservationId) {
+                Reservation r = open.remove(reservationId);
+                if (r == null) return false;
+                inventory.release(r.held);
+                return true;
+            }
+
+            Reservation findReservation(long reservationId) { return open.get(reservationId); }
+
+            List<Reservation> openReservations() {
+                List<Reservation> out = new ArrayList<>(open.values());
+                out.sort(Comparator.comparingLong(r -> r.id));
+                return out;
+            }
+
+            // Releases holds whose time is up. Runs on the sweeper thread.
+            void expire() {
+                LocalDateTime now = LocalDateTime.now();
+                for (Reservation r : open.values()) {
+                    if (r.expired(now) && open.remove(r.id, r)) {
+                        inventory.release(r.held);
+                        Metrics.inc(Metrics.ORDERS_EXPIRED);
+                    }
+                }
+            }
+
+            @Override public void close() { sweeper.shutdownNow(); }
+
+            private List<Txn> sell(List<OrderLine> lines, String note) {
+                List<IngestRow> rows = new ArrayList<>(lines.size());
+                for (int i = 0; i < lines.size(); i++) {
+                    OrderLine l = lines.get(i);
+                    rows.add(new IngestRow(i + 1, l.itemId, TxType.OUT, l.quantity, note, null));
+                }
+                IngestResult result = tx.ingest(rows.iterator(), IngestMode.ALL_OR_NOTHING);
+                if (!result.applied) {
+                    List<String> problems = new ArrayList<>(result.rejected.size());
+                    for (String why : result.rejected) problems.add(why.startsWith("row ") ? "line " + why.substring(4) : why);
+                    throw new IllegalArgumentException("Order rejected: " + String.join("; ", problems));
+                }
+                return result.accepted;
+            }
+
+            // Checks the lines and adds up the units per item.
+            private static Map<Long, Integer> held(List<OrderLine> lines) {
+                if (lines == null || lines.isEmpty()) throw new IllegalArgumentException("An order needs at least one line");
+                Map<Long, Integer> out = new LinkedHashMap<>();
+                for (int i = 0; i < lines.size(); i++) {
+                    OrderLine l = lines.get(i);
+                    if (l.quantity <= 0) throw new IllegalArgumentException("line " + (i + 1) + ": Quantity must be positive");
+                    out.merge(l.itemId, l.quantity, Math::addExact);
+                }
+                return out;
+            }
+        }
+
+        // ====== ANALYTICS ======
+        // Per-category stock value and movement over a period. Stock is taken once, from the
+        // quantity index; transactions from the start of the period up to the latest one are
+        // folded into per-item unit counts, and stock at each end of the period is worked back
+        // from current stock. A transaction recorded while this runs can skew those by its
+        // quantity. Values use current unit prices.
+        //
+        // byCategory folds transactions on a fork-join pool into one set of counters per worker
+        // thread (per task would mean an array per item per task), adds those up, then folds
+        // categories in parallel; byCategorySequential is the single-threaded reference. Unit
+        // counts are exact and each category sums its items in id order either way, so the
+        // two agree exactly.
+        static class InventoryAnalytics {
+            static final class CategoryStats {
+                final String category;
+                int items;
+                long unitsOnHand, unitsIn, unitsSold, openingUnits, closingUnits;
+                double stockValue, soldValue, openingValue, closingValue;
+
+                CategoryStats(String category) { this.category = category; }
+
+                // value sold over average stock value; NaN if there was no stock at either end
+                double turnover() {
+                    double avg = (openingValue + closingValue) / 2;
+                    return avg > 0 ? soldValue / avg : Double.NaN;
+                }
+
+                // how long closing stock lasts at the period's rate of sale; infinite with no sales
+                double daysOfSupply(long days) {
+                    return unitsSold > 0 ? closingUnits * (double) days / unitsSold : Double.POSITIVE_INFINITY;
+                }
+
+                void add(CategoryStats o) {
+                    items += o.items;
+                    unitsOnHand += o.unitsOnHand; unitsIn += o.unitsIn; unitsSold += o.unitsSold;
+                    openingUnits += o.openingUnits; closingUnits += o.closingUnits;
+                    stockValue += o.stockValue; soldValue += o.soldValue;
+                    openingValue += o.openingValue; closingValue += o.closingValue;
+                }
+
+                @Override public boolean equals(Object o) {
+                    if (!(o instanceof CategoryStats)) return false;
+                    CategoryStats c = (CategoryStats) o;
+                    return category.equals(c.category) && items == c.items && unitsOnHand == c.unitsOnHand
+                            && unitsIn == c.unitsIn && unitsSold == c.unitsSold && openingUnits == c.openingUnits
+                            && closingUnits == c.closingUnits && stockValue == c.stockValue && soldValue == c.soldValue
+                            && openingValue == c.openingValue && closingValue == c.closingValue;
+                }
+
+                @Override public int hashCode() { return Objects.hash(category, items, unitsOnHand, unitsSold, stockValue); }
+            }
+
+            static final class Result {
+                final LocalDate from, to;
+                final NavigableMap<String, CategoryStats> byCategory;
+                final CategoryStats total = new CategoryStats("Total");
+
+                Result(LocalDate from, LocalDate to, NavigableMap<String, CategoryStats> byCategory) {
+                    this.from = from; this.to = to; this.byCategory = byCategory;
+                    for (CategoryStats c : byCategory.values()) total.add(c);
+                }
+
+                long days() { return to.toEpochDay() - from.toEpochDay() + 1; }
+
+                @Override public boolean equals(Object o) {
+                    return o instanceof Result && from.equals(((Result) o).from) && to.equals(((Result) o).to)
+                            && byCategory.equals(((Result) o).byCategory);
+                }
+
+                @Override public int hashCode() { return byCategory.hashCode(); }
+            }
+
+            // Items in id order with the quantity and price they had when taken.
+            private static final class Stock {
+                final Item[] items;
+                final int[] qty;
+                final double[] price;
+                final LongMap<Integer> index = new LongMap<>();
+                final NavigableMap<String, List<Integer>> categories = new TreeMap<>();
+
+                Stock(Item[] items, int[] qty) {
+                    this.items = items; this.qty = qty;
+                    price = new double[items.length];
+                    for (int i = 0; i < items.length; i++) {
+                        price[i] = items[i].unitPrice;
+                        index.put(items[i].id, i);
+                        categories.computeIfAbsent(items[i].category == null ? "" : items[i].category, k -> new ArrayList<>()).add(i);
+                    }
+                }
+            }
+
+            // Units per item (indexed like Stock) moved in and out during the period, and the
+            // net change since it ended.
+            private static final class Movement {
+                final long[] in, out, after;
+
+                Movement(int items) { in = new long[items]; out = new long[items]; after = new long[items]; }
+            }
+
+            private final InventoryService inventory;
+            private final TransactionService txns;
+            private final ForkJoinPool pool;
+
+            InventoryAnalytics(InventoryService inventory, TransactionService txns) { this(inventory, txns, ForkJoinPool.commonPool()); }
+
+            InventoryAnalytics(InventoryService inventory, TransactionService txns, ForkJoinPool pool) {
+                this.inventory = inventory; this.txns = txns; this.pool = pool;
+            }
+
+            Result byCategory(LocalDate from, LocalDate to) {
+                long t0 = Metrics.start();
+                try {
+                    Stock stock = stock();
+                    long endSec = endOf(to);
+                    return pool.submit(() -> {
+                        // a worker only ever touches its own counters, and the joins that end
+                        // the fold publish them to this thread
+                        Map<Thread, Movement> perThread = new ConcurrentHashMap<>();
+                        Supplier<Movement> mine = () -> perThread.computeIfAbsent(Thread.currentThread(), k -> new Movement(stock.items.length));
+                        txns.reduceByDate(from, scanEnd(to), mine, (acc, t) -> count(stock, acc, t, endSec), (a, b) -> {});
+                        Movement m = new Movement(stock.items.length);
+                        List<Movement> parts = new ArrayList<>(perThread.values());
+                        IntStream.range(0, stock.items.length).parallel().forEach(i -> {
+                            for (Movement p : parts) { m.in[i] += p.in[i]; m.out[i] += p.out[i]; m.after[i] += p.after[i]; }
+                        });
+                        NavigableMap<String, CategoryStats> out = stock.categories.entrySet().parallelStream()
+                                .map(e -> fold(e.getKey(), e.getValue(), stock, m))
+                                .collect(Collectors.toMap(c -> c.category, c -> c, (a, b) -> a, TreeMap::new));
+                        return new Result(from, to, out);
+                    }).join();
+                } finally { Metrics.ANALYTICS.stop(t0); }
+            }
+
+            Result byCategorySequential(LocalDate from, LocalDate to) {
+                Stock stock = stock();
+                long endSec = endOf(to);
+                Movement m = new Movement(stock.items.length);
+                txns.forEachByDate(from, scanEnd(to), t -> count(stock, m, t, endSec));
+                NavigableMap<String, CategoryStats> out = new TreeMap<>();
+                for (Map.Entry<String, List<Integer>> e : stock.categories.entrySet()) out.put(e.getKey(), fold(e.getKey(), e.getValue(), stock, m));
+                return new Result(from, to, out);
+            }
+
+            private Stock stock() {
+                List<Item> items = new ArrayList<>();
+                List<Integer> qty = new ArrayList<>();
+                inventory.forEachByQuantity((it, q) -> { items.add(it); qty.add(q); });
+                Integer[] order = new Integer[items.size()];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, Comparator.comparingLong(i -> items.get(i).id));
+                Item[] sorted = new Item[order.length];
+                int[] q = new int[order.length];
+                for (int i = 0; i < order.length; i++) { sorted[i] = items.get(order[i]); q[i] = qty.get(order[i]); }
+                return new Stock(sorted, q);
+            }
+
+            // through the last transaction on file, so stock can be worked back from today's
+            private LocalDate scanEnd(LocalDate to) {
+                LocalDate last = txns.lastMonth().atEndOfMonth();
+                return last.isAfter(to) ? last : to;
+            }
+
+            private static long endOf(LocalDate to) { return to.plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC); }
+
+            private static void count(Stock stock, Movement m, TxnView t, long endSec) {
+                Integer i = stock.index.get(t.itemId());
+                if (i == null) return; // item since deleted
+                int qty = t.quantity();
+                boolean in = t.type() == TxType.IN;
+                if (t.epochSecond() >= endSec) m.after[i] += in ? qty : -qty;
+                else if (in) m.in[i] += qty;
+                else m.out[i] += qty;
+            }
+
+            private static CategoryStats fold(String category, List<Integer> members, Stock stock, Movement m) {
+                CategoryStats c = new CategoryStats(category);
+                for (int i : members) {
+                    double price = stock.price[i];
+                    long closing = stock.qty[i] - m.after[i];
+                    long opening = closing - m.in[i] + m.out[i];
+                    c.items++;
+                    c.unitsOnHand += stock.qty[i];
+                    c.stockValue += stock.qty[i] * price;
+                    c.unitsIn += m.in[i];
+                    c.unitsSold += m.out[i];
+                    c.soldValue += m.out[i] * price;
+                    c.openingUnits += opening;
+                    c.closingUnits += closing;
+                    c.openingValue += opening * price;
+                    c.closingValue += closing * price;
+                }
+                return c;
+            }
+        }
+
+        // Reports are streamed row by row into a buffered (optionally gzip-compressed) file, so
+        // the only per-report memory is the list of rows being reported on, never the document.
+        static class ReportService {
+            private static final String STYLE = "<style>body{font-family:Arial;margin:24px} table{border-collapse:collapse;width:100%} th,td{border:1px solid #999;padding:8px;text-align:left} th{background:#eee} .right{text-align:right} .low{background:#fde2e2}</style>";
+
+            static final int DEFAULT_CACHE_SIZE = 32;
+
+            private final InventoryService inventory;
+            private final TransactionService txnService;
+            private final InventoryAnalytics analytics;
+            // Generated reports by (type, parameters, versions of the data they were built from),
+            // least recently used first. A future that is still running is shared, so asking
+            // twice for the same report while it is being written only writes it once.
+            private final LinkedHashMap<List<Object>, CompletableFuture<Path>> cache = new LinkedHashMap<>(16, 0.75f, true);
+            private Executor executor; // created on first async use unless one was given
+            int cacheSize = DEFAULT_CACHE_SIZE;
+
+            ReportService(InventoryService inv, TransactionService tx) { this(inv, tx, null); }
+
+            ReportService(InventoryService inv, TransactionService tx, Executor executor) {
+                this.inventory = inv; this.txnService = tx; this.executor = executor;
+                this.analytics = new InventoryAnalytics(inv, tx);
+            }
+
+            Path generateStockReportHtml(String outDir) { return generateStockReportHtml(outDir, false); }
+
+            Path generateStockReportHtml(String outDir, boolean gzip) { return join(stockReport(outDir, gzip, false)); }
+
+            CompletableFuture<Path> generateStockReportAsync(String outDir, boolean gzip) { return stockReport(outDir, gzip, true).copy(); }
+
+            Path generateTransactionsReportHtml(String outDir, LocalDate from, LocalDate to) {
+                return generateTransactionsReportHtml(outDir, from, to, false);
+            }
+
+            Path generateTransactionsReportHtml(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                return join(transactionsReport(outDir, from, to, gzip, false));
+            }
+
+            CompletableFuture<Path> generateTransactionsReportAsync(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                return transactionsReport(outDir, from, to, gzip, true).copy();
+            }
+
+            Path generateMovementSummaryHtml(String outDir, LocalDate from, LocalDate to, int topN, boolean gzip) {
+                return join(movementSummary(outDir, from, to, topN, gzip, false));
+            }
+
+            CompletableFuture<Path> generateMovementSummaryAsync(String outDir, LocalDate from, LocalDate to, int topN, boolean gzip) {
+                return movementSummary(outDir, from, to, topN, gzip, true).copy();
+            }
+
+            Path generateCategoryAnalyticsHtml(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                return join(categoryAnalytics(outDir, from, to, gzip, false));
+            }
+
+            CompletableFuture<Path> generateCategoryAnalyticsAsync(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                return categoryAnalytics(outDir, from, to, gzip, true).copy();
+            }
+
+            Path generateStockAsOfHtml(String outDir, LocalDate day, boolean gzip) { return join(stockAsOf(outDir, day, gzip, false)); }
+
+            CompletableFuture<Path> generateStockAsOfAsync(String outDir, LocalDate day, boolean gzip) { return stockAsOf(outDir, day, gzip, true).copy(); }
+
+            // The versions are read before anything is generated: a change that lands while a
+            // report is being written bumps them, so the next request misses rather than
+            // getting a report that may predate the change.
+            private CompletableFuture<Path> stockReport(String outDir, boolean gzip, boolean async) {
+                List<Object> key = List.of("stock", dirKey(outDir), gzip, inventory.version());
+                return cached(key, () -> writeStockReport(outDir, gzip), async);
+            }
+
+            // Rows come from the range's months and names from the catalog, so neither stock
+            // changes nor transactions outside the range invalidate it.
+            private CompletableFuture<Path> transactionsReport(String outDir, LocalDate from, LocalDate to, boolean gzip, boolean async) {
+                List<Object> key = List.of("transactions", dirKey(outDir), gzip, from, to,
+                        txnService.versionOf(from, to), inventory.catalogVersion());
+                return cached(key, () -> writeTransactionsReport(outDir, from, to, gzip), async);
+            }
+
+            // Also shows current quantities, so any inventory change invalidates it.
+            private CompletableFuture<Path> movementSummary(String outDir, LocalDate from, LocalDate to, int topN, boolean gzip, boolean async) {
+                List<Object> key = List.of("movement", dirKey(outDir), gzip, from, to, topN,
+                        txnService.versionOf(from, to), inventory.version());
+                return cached(key, () -> writeMovementSummary(outDir, from, to, topN, gzip), async);
+            }
+
+            // Opening and closing stock are worked back from today's, so every transaction from
+            // `from` on counts, as does any inventory change.
+            private CompletableFuture<Path> categoryAnalytics(String outDir, LocalDate from, LocalDate to, boolean gzip, boolean async) {
+                List<Object> key = List.of("analytics", dirKey(outDir), gzip, from, to,
+                        txnService.versionOf(from, LocalDate.MAX), inventory.version());
+                return cached(key, () -> writeCategoryAnalytics(outDir, from, to, gzip), async);
+            }
+
+            // May be worked back from current stock, so any change at all invalidates it.
+            private CompletableFuture<Path> stockAsOf(String outDir, LocalDate day, boolean gzip, boolean async) {
+                List<Object> key = List.of("stockAsOf", dirKey(outDir), gzip, day, txnService.version(), inventory.version());
+                return cached(key, () -> writeStockAsOf(outDir, day, gzip), async);
+            }
+
+            private CompletableFuture<Path> cached(List<Object> key, Supplier<Path> generate, boolean async) {
+                CompletableFuture<Path> f;
+                synchronized (cache) {
+                    f = cache.get(key);
+                    if (f != null && (!f.isDone() || (!f.isCompletedExceptionally() && Files.exists(f.join())))) {
+                        Metrics.inc(Metrics.REPORT_CACHE_HITS);
+                        return f;
+                    }
+                    f = new CompletableFuture<>();
+                    cache.put(key, f);
+                    Iterator<CompletableFuture<Path>> eldest = cache.values().iterator();
+                    for (int n = cache.size() - Math.max(cacheSize, 1); n > 0; n--) { eldest.next(); eldest.remove(); }
+                }
+                Metrics.inc(Metrics.REPORT_CACHE_MISSES);
+                CompletableFuture<Path> result = f;
+                Runnable run = () -> {
+                    try { result.complete(generate.get()); }
+                    catch (Throwable e) {
+                        synchronized (cache) { cache.remove(key, result); }
+                        result.completeExceptionally(e);
+                    }
+                };
+                if (async) executor().execute(run); else run.run();
+                return f;
+            }
+
+            private synchronized Executor executor() {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(2, r -> {
+                        Thread t = new Thread(r, "report-writer");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                return executor;
+            }
+
+            private static Path join(CompletableFuture<Path> f) {
+                try { return f.join(); }
+                catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                    throw e;
+                }
+            }
+
+            private static String dirKey(String outDir) { return Paths.get(outDir).toAbsolutePath().normalize().toString(); }
+
+            private Path writeStockReport(String outDir, boolean gzip) {
+                long t0 = Metrics.start();
+                try {
+                    Path out = reportPath(outDir, "stock_report_" + System.currentTimeMillis(), gzip);
+                    try (HtmlWriter html = HtmlWriter.open(out, gzip)) {
+                        html.raw("<html><head><meta charset='utf-8'><title>Stock Report</title>");
+                        html.raw(STYLE);
+                        html.raw("</head><body><h2>Stock Levels</h2>");
+                        html.raw("<p>Generated: ").raw(LocalDateTime.now().toString()).raw("</p>");
+                        html.raw("<table><tr><th>ID</th><th>Name</th><th>Category</th><th class='right'>Qty</th><th class='right'>Reorder At</th><th class='right'>Unit Price</th><th class='right'>Value</th></tr>");
+                        double[] total = new double[1];
+                        // low to high, straight from the quantity index
+                        inventory.forEachByQuantity((it, qty) -> {
+                            double value = qty * it.unitPrice;
+                            total[0] += value;
+                            int reorder = it.reorderPoint;
+                            html.raw(reorder > 0 && qty <= reorder ? "<tr class='low'><td>" : "<tr><td>").num(it.id).raw("</td><td>")
+                                    .text(it.name).raw("</td><td>")
+                                    .text(it.category).raw("</td><td class='right'>")
+                                    .num(qty).raw("</td><td class='right'>");
+                            if (reorder > 0) html.num(reorder);
+                            html.raw("</td><td class='right'>")
+                                    .money(it.unitPrice).raw("</td><td class='right'>")
+                                    .money(value).raw("</td></tr>");
+                        });
+                        html.raw("<tr><th colspan='6' class='right'>Total Inventory Value</th><th class='right'>")
+                                .money(total[0]).raw("</th></tr>");
+                        html.raw("</table></body></html>");
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return out;
+                } finally { Metrics.STOCK_REPORT.stop(t0); }
+            }
+
+            private Path writeTransactionsReport(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                long t0 = Metrics.start();
+                try {
+                    Path out = reportPath(outDir, "transactions_" + from + "to" + to + "_" + System.currentTimeMillis(), gzip);
+                    try (HtmlWriter html = HtmlWriter.open(out, gzip)) {
+                        html.raw("<html><head><meta charset='utf-8'><title>Transactions Report</title>");
+                        html.raw(STYLE);
+                        html.raw("</head><body><h2>Transactions ");
+                        html.raw("(" + from + " to " + to + ")</h2>");
+                        html.raw("<p>Generated: ").raw(LocalDateTime.now().toString()).raw("</p>");
+                        html.raw("<table><tr><th>ID</th><th>Time</th><th>Item</th><th>Type</th><th class='right'>Qty</th><th>Note</th></tr>");
+                        txnService.forEachByDate(from, to, t -> {
+                            Item it = inventory.findById(t.itemId());
+                            html.raw("<tr><td>").num(t.id()).raw("</td><td>")
+                                    .timestamp(t.timestamp()).raw("</td><td>");
+                            if (it==null) html.raw("#").num(t.itemId()); else html.text(it.name);
+                            html.raw("</td><td>")
+                                    .raw(t.type().name()).raw("</td><td class='right'>")
+                                    .num(t.quantity()).raw("</td><td>")
+                                    .text(t.note()).raw("</td></tr>");
+                        });
+                        html.raw("</table></body></html>");
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return out;
+                } finally { Metrics.TXN_REPORT.stop(t0); }
+            }
+
+            // Top movers and daily totals for a date range, read from the movement rollups
+            // rather than from raw transactions.
+            private Path writeMovementSummary(String outDir, LocalDate from, LocalDate to, int topN, boolean gzip) {
+                long t0 = Metrics.start();
+                try {
+                    MovementRollup rollup = txnService.rollup(from, to);
+                    Path out = reportPath(outDir, "movement_" + from + "to" + to + "_" + System.currentTimeMillis(), gzip);
+                    try (HtmlWriter html = HtmlWriter.open(out, gzip)) {
+                        html.raw("<html><head><meta charset='utf-8'><title>Movement Summary</title>");
+                        html.raw(STYLE);
+                        html.raw("</head><body><h2>Movement Summary ");
+                        html.raw("(" + from + " to " + to + ")</h2>");
+                        html.raw("<p>Generated: ").raw(LocalDateTime.now().toString()).raw("</p>");
+
+                        html.raw("<h3>Top ").num(topN).raw(" Movers (units out)</h3>");
+                        html.raw("<table><tr><th>ID</th><th>Name</th><th>Category</th><th class='right'>IN Txns</th><th class='right'>IN Units</th><th class='right'>OUT Txns</th><th class='right'>OUT Units</th><th class='right'>Net</th><th class='right'>Active Days</th><th class='right'>Current Qty</th></tr>");
+                        for (MovementRollup.ItemMovement m : rollup.topMovers(from, to, topN)) {
+                            Item it = inventory.findById(m.itemId);
+                            html.raw("<tr><td>").num(m.itemId).raw("</td><td>");
+                            if (it==null) html.raw("#").num(m.itemId); else html.text(it.name);
+                            html.raw("</td><td>").text(it==null ? "" : it.category).raw("</td><td class='right'>")
+                                    .num(m.total.inCount).raw("</td><td class='right'>")
+                                    .num(m.total.inQty).raw("</td><td class='right'>")
+                                    .num(m.total.outCount).raw("</td><td class='right'>")
+                                    .num(m.total.outQty).raw("</td><td class='right'>")
+                                    .num(m.total.netQty()).raw("</td><td class='right'>")
+                                    .num(m.activeDays).raw("</td><td class='right'>");
+                            if (it != null) html.num(it.quantity);
+                            html.raw("</td></tr>");
+                        }
+                        html.raw("</table>");
+
+                        html.raw("<h3>Daily Totals</h3>");
+                        html.raw("<table><tr><th>Date</th><th class='right'>IN Txns</th><th class='right'>IN Units</th><th class='right'>OUT Txns</th><th class='right'>OUT Units</th><th class='right'>Net</th></tr>");
+                        MovementRollup.DayMovement sum = new MovementRollup.DayMovement();
+                        for (Map.Entry<LocalDate, MovementRollup.DayMovement> e : rollup.dailyTotals(from, to).entrySet()) {
+                            MovementRollup.DayMovement d = e.getValue();
+                            d.addTo(sum);
+                            html.raw("<tr><td>").raw(e.getKey().toString()).raw("</td><td class='right'>")
+                                    .num(d.inCount).raw("</td><td class='right'>")
+                                    .num(d.inQty).raw("</td><td class='right'>")
+                                    .num(d.outCount).raw("</td><td class='right'>")
+                                    .num(d.outQty).raw("</td><td class='right'>")
+                                    .num(d.netQty()).raw("</td></tr>");
+                        }
+                        html.raw("<tr><th class='right'>Total</th><th class='right'>")
+                                .num(sum.inCount).raw("</th><th class='right'>")
+                                .num(sum.inQty).raw("</th><th class='right'>")
+                                .num(sum.outCount).raw("</th><th class='right'>")
+                                .num(sum.outQty).raw("</th><th class='right'>")
+                                .num(sum.netQty()).raw("</th></tr>");
+                        html.raw("</table></body></html>");
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return out;
+                } finally { Metrics.MOVEMENT_REPORT.stop(t0); }
+            }
+
+            private Path writeCategoryAnalytics(String outDir, LocalDate from, LocalDate to, boolean gzip) {
+                long t0 = Metrics.start();
+                try {
+                    InventoryAnalytics.Result r = analytics.byCategory(from, to);
+                    Path out = reportPath(outDir, "analytics_" + from + "to" + to + "_" + System.currentTimeMillis(), gzip);
+                    try (HtmlWriter html = HtmlWriter.open(out, gzip)) {
+                        html.raw("<html><head><meta charset='utf-8'><title>Category Analytics</title>");
+                        html.raw(STYLE);
+                        html.raw("</head><body><h2>Category Analytics ");
+                        html.raw("(" + from + " to " + to + ")</h2>");
+                        html.raw("<p>Generated: ").raw(LocalDateTime.now().toString()).raw("</p>");
+                        html.raw("<p>Values at current unit prices. Turnover is value sold over average stock value; days of supply is how long closing stock lasts at the period's rate of sale.</p>");
+                        html.raw("<table><tr><th>Category</th><th class='right'>Items</th><th class='right'>Units On Hand</th><th class='right'>Stock Value</th><th class='right'>Units In</th><th class='right'>Units Sold</th><th class='right'>Sold Value</th><th class='right'>Opening Units</th><th class='right'>Closing Units</th><th class='right'>Turnover</th><th class='right'>Days of Supply</th></tr>");
+                        for (InventoryAnalytics.CategoryStats c : r.byCategory.values()) categoryRow(html, "td", c, r.days());
+                        categoryRow(html, "th", r.total, r.days());
+                        html.raw("</table></body></html>");
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return out;
+                } finally { Metrics.ANALYTICS_REPORT.stop(t0); }
+            }
+
+            // Items in id order; names, categories and prices are today's.
+            private Path writeStockAsOf(String outDir, LocalDate day, boolean gzip) {
+                long t0 = Metrics.start();
+                try {
+                    StockLevels levels = txnService.stockAsOf(day);
+                    LongMap<Item> items = new LongMap<>();
+                    for (Item it : inventory.listItems()) items.put(it.id, it);
+                    Path out = reportPath(outDir, "stock_as_of_" + day + "_" + System.currentTimeMillis(), gzip);
+                    try (HtmlWriter html = HtmlWriter.open(out, gzip)) {
+                        html.raw("<html><head><meta charset='utf-8'><title>Stock as of ").raw(day.toString()).raw("</title>");
+                        html.raw(STYLE);
+                        html.raw("</head><body><h2>Stock Levels as of ").raw(day.toString()).raw("</h2>");
+                        html.raw("<p>Generated: ").raw(LocalDateTime.now().toString()).raw("</p>");
+                        html.raw("<p>Worked out from the stock at ").raw(levels.base.toString()).raw(" and ").num(levels.applied)
+                                .raw(" transactions. Values at current unit prices.</p>");
+                        html.raw("<table><tr><th>ID</th><th>Name</th><th>Category</th><th class='right'>Qty</th><th class='right'>Qty Now</th><th class='right'>Unit Price</th><th class='right'>Value</th></tr>");
+                        long units = 0, unitsNow = 0;
+                        double total = 0;
+                        for (int i = 0; i < levels.size(); i++) {
+                            Item it = items.get(levels.itemIds[i]);
+                            int qty = levels.quantities[i];
+                            units += qty;
+                            html.raw("<tr><td>").num(levels.itemIds[i]).raw("</td><td>");
+                            if (it == null) {
+                                html.raw("(deleted)</td><td></td><td class='right'>").num(qty).raw("</td><td></td><td></td><td></td></tr>");
+                                continue;
+                            }
+                            int now = it.quantity;
+                            double value = qty * it.unitPrice;
+                            unitsNow += now;
+                            total += value;
+                            html.text(it.name).raw("</td><td>")
+                                    .text(it.category).raw("</td><td class='right'>")
+                                    .num(qty).raw("</td><td class='right'>")
+                                    .num(now).raw("</td><td class='right'>")
+                                    .money(it.unitPrice).raw("</td><td class='right'>")
+                                    .money(value).raw("</td></tr>");
+                        }
+                        html.raw("<tr><th colspan='3' class='right'>Total</th><th class='right'>").num(units)
+                                .raw("</th><th class='right'>").num(unitsNow)
+                                .raw("</th><th></th><th class='right'>").money(total).raw("</th></tr>");
+                        html.raw("</table></body></html>");
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                    return out;
+                } finally { Metrics.STOCK_AS_OF_REPORT.stop(t0); }
+            }
+
+            private static void categoryRow(HtmlWriter html, String cell, InventoryAnalytics.CategoryStats c, long days) {
+                String open = "<" + cell + " class='right'>", close = "</" + cell + ">";
+                html.raw("<tr><" + cell + ">").text(c.category).raw(close)
+                        .raw(open).num(c.items).raw(close)
+                        .raw(open).num(c.unitsOnHand).raw(close)
+                        .raw(open).money(c.stockValue).raw(close)
+                        .raw(open).num(c.unitsIn).raw(close)
+                        .raw(open).num(c.unitsSold).raw(close)
+                        .raw(open).money(c.soldValue).raw(close)
+                        .raw(open).num(c.openingUnits).raw(close)
+                        .raw(open).num(c.closingUnits).raw(close)
+                        .raw(open);
+                double turnover = c.turnover(), supply = c.daysOfSupply(days);
+                if (Double.isFinite(turnover)) html.money(turnover); else html.raw("&mdash;");
+                html.raw(close).raw(open);
+                if (Double.isFinite(supply)) html.money(supply); else html.raw("&mdash;");
+                html.raw(close).raw("</tr>");
+            }
+
+            private static Path reportPath(String outDir, String baseName, boolean gzip) {
+                Path out = Paths.get(outDir).resolve(baseName + (gzip ? ".html.gz" : ".html"));
+                try { Files.createDirectories(out.getParent()); }
+                catch (IOException e) { throw new RuntimeException(e); }
+                return out;
+            }
+        }
+
+        // Buffered HTML output with escaping and number formatting done in place, so writing
+        // a cell allocates nothing. Write errors surface as UncheckedIOException (so the
+        // methods can be used from lambdas) and from close().
+        static class HtmlWriter implements Closeable {
+            private final Writer out;
+            private final char[] scratch = new char[32];
+
+            private HtmlWriter(Writer out) { this.out = out; }
+
+            static HtmlWriter open(Path file, boolean gzip) throws IOException {
+                OutputStream os = Files.newOutputStream(file);
+                if (gzip) os = new GZIPOutputStream(os, 64 * 1024);
+                return new HtmlWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024));
+            }
+
+            HtmlWriter raw(String s) {
+                try { out.write(s); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+                return this;
+            }
+
+            // same escaping as the old ReportService.escape: &, < and >; null becomes empty
+            HtmlWriter text(String s) {
+                if (s == null) return this;
+                try {
+                    int run = 0;
+                    for (int i = 0; i < s.length(); i++) {
+                        char c = s.charAt(i);
+                        String rep = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : null;
+                        if (rep == null) continue;
+                        out.write(s, run, i - run);
+                        out.write(rep);
+                        run = i + 1;
+                    }
+                    out.write(s, run, s.length() - run);
+                } catch (IOException e) { throw new UncheckedIOException(e); }
+                return this;
+            }
+
+            HtmlWriter num(long v) {
+                if (v == Long.MIN_VALUE) return raw(Long.toString(v));
+                int pos = scratch.length;
+                boolean neg = v < 0;
+                if (neg) v = -v;
+                do { scratch[--pos] = (char) ('0' + v % 10); v /= 10; } while (v != 0);
+                if (neg) scratch[--pos] = '-';
+                return chars(pos);
+            }
+
+            // Same output as String.format(Locale.US, "%.2f", v), which rounds the shortest
+            // decimal form of v half-up. Rounding v*100 agrees with that unless the
+            // fraction is close to a half cent; those (and huge values) take the exact slow path.
+            HtmlWriter money(double v) {
+                if (!Double.isFinite(v)) return raw(String.format(Locale.US, "%.2f", v));
+                boolean neg = v < 0 || (v == 0 && 1 / v < 0);
+                double abs = Math.abs(v);
+                double scaled = abs * 100;
+                if (abs >= 1e9 || Math.abs(scaled - Math.floor(scaled) - 0.5) < 1e-4) {
+                    String exact = new BigDecimal(Double.toString(abs)).setScale(2, RoundingMode.HALF_UP).toPlainString();
+                    return raw(neg ? "-" + exact : exact);
+                }
+                long cents = Math.round(scaled);
+                int pos = scratch.length;
+                scratch[--pos] = (char) ('0' + cents % 10); cents /= 10;
+                scratch[--pos] = (char) ('0' + cents % 10); cents /= 10;
+                scratch[--pos] = '.';
+                do { scratch[--pos] = (char) ('0' + cents % 10); cents /= 10; } while (cents != 0);
+                if (neg) scratch[--pos] = '-';
+                return chars(pos);
+            }
+
+            // Same text as LocalDateTime.toString().
+            HtmlWriter timestamp(LocalDateTime t) {
+                int year = t.getYear();
+                if (year < 0 || year > 9999) return raw(t.toString());
+                char[] c = scratch;
+                int pos = 0;
+                pos = pad(c, pos, year, 4); c[pos++] = '-';
+                pos = pad(c, pos, t.getMonthValue(), 2); c[pos++] = '-';
+                pos = pad(c, pos, t.getDayOfMonth(), 2); c[pos++] = 'T';
+                pos = pad(c, pos, t.getHour(), 2); c[pos++] = ':';
+                pos = pad(c, pos, t.getMinute(), 2);
+                int sec = t.getSecond(), nano = t.getNano();
+                if (sec > 0 || nano > 0) {
+                    c[pos++] = ':';
+                    pos = pad(c, pos, sec, 2);
+                    if (nano > 0) {
+                        c[pos++] = '.';
+                        if (nano % 1000_000 == 0) pos = pad(c, pos, nano / 1000_000, 3);
+                        else if (nano % 1000 == 0) pos = pad(c, pos, nano / 1000, 6);
+                        else pos = pad(c, pos, nano, 9);
+                    }
+                }
+                try { out.write(c, 0, pos); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+                return this;
+            }
+
+            private static int pad(char[] c, int pos, int v, int width) {
+                for (int i = width - 1; i >= 0; i--) { c[pos + i] = (char) ('0' + v % 10); v /= 10; }
+                return pos + width;
+            }
+
+            private HtmlWriter chars(int from) {
+                try { out.write(scratch, from, scratch.length - from); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+                return this;
+            }
+
+            @Override
+            public void close() throws IOException { out.close(); }
+        }
+
+        // ====== CONSOLE UI ======
+        static class ConsoleApp {
+            private final Scanner sc = new Scanner(System.in);
+            private final Store store;
+            private final UserService users;
+            private final InventoryService inv;
+            private final TransactionService tx;
+            private final OrderService orders;
+            private final ReportService reports;
+            private String currentUser;
+            private static final int SEARCH_PAGE = 50;
+
+            ConsoleApp(Store store, UserService users, InventoryService inv, TransactionService tx, OrderService orders, ReportService reports) {
+                this.store = store; this.users = users; this.inv = inv; this.tx = tx; this.orders = orders; this.reports = reports;
+                inv.addLowStockListener(e -> {
+                    if (e.low) System.out.println("!! Low stock: #" + e.item.id + " " + e.item.name + " has " + e.quantity + " (reorder at " + e.reorderPoint + ")");
+                    else System.out.println("Back in stock: #" + e.item.id + " " + e.item.name + " has " + e.quantity);
+                });
+            }
+
+            void run() {
+                if (!login()) return;
+                while (true) {
+                    System.out.println("\n Welcome to Inventory System  (logged in as: " + currentUser + ")");
+                    System.out.println("1) Items (CRUD)");
+                    System.out.println("2) Transactions (IN/OUT)");
+                    System.out.println("3) Reports");
+                    System.out.println("4) Users");
+                    System.out.println("5) Maintenance");
+                    System.out.println("6) Diagnostics");
+                    System.out.println("0) Exit");
+                    System.out.print("Choose: ");
+                    String choice = sc.nextLine().trim();
+                    switch (choice) {
+                        case "1": itemsMenu(); break;
+                        case "2": txMenu(); break;
+                        case "3": reportsMenu(); break;
+                        case "4": usersMenu(); break;
+                        case "5": maintenanceMenu(); break;
+                        case "6": diagnosticsMenu(); break;
+                        case "0": System.out.println("Goodbye!"); return;
+                        default: System.out.println("Invalid option.");
+                    }
+                }
+            }
+
+            private boolean login() {
+                int attempts = 0;
+                while (attempts < 3) {
+                    System.out.print("Username: ");
+                    String u = sc.nextLine().trim();
+                    System.out.print("Password: ");
+                    String p = sc.nextLine().trim();
+                    if (users.authenticate(u, p)) { currentUser = u; return true; }
+                    System.out.println("Invalid credentials. Try again.");
+                    attempts++;
+                }
+                System.out.println("Too many attempts. Exiting.");
+                return false;
+            }
+
+            private void itemsMenu() {
+                while (true) {
+                    System.out.println("\n-- Items --");
+                    System.out.println("1) List");
+                    System.out.println("2) Create");
+                    System.out.println("3) Update");
+                    System.out.println("4) Delete");
+                    System.out.println("5) Low Stock");
+                    System.out.println("6) Search");
+                    System.out.println("0) Back");
+                    System.out.print("Choose: ");
+                    String c = sc.nextLine().trim();
+                    switch (c) {
+                        case "1": listItems(); break;
+                        case "2": createItem(); break;
+                        case "3": updateItem(); break;
+                        case "4": deleteItem(); break;
+                        case "5": listLowStock(); break;
+                        case "6": searchItems(); break;
+                        case "0": return;
+                        default: System.out.println("Invalid option.");
+                    }
+                }
+            }
+
+            private void listItems() {
+                System.out.println("ID | Name | Category | Qty | UnitPrice | ReorderAt");
+                for (Item it : inv.listItems()) {
+                    System.out.printf(Locale.US, "%d | %s | %s | %d | %.2f | %d%n", it.id, it.name, it.category, it.quantity, it.unitPrice, it.reorderPoint);
+                }
+            }
+
+            private void listLowStock() {
+                List<Item> low = inv.lowStockItems();
+                if (low.isEmpty()) { System.out.println("Nothing at or below its reorder point."); return; }
+                System.out.println("ID | Name | Category | Qty | ReorderAt");
+                for (Item it : low) {
+                    System.out.printf(Locale.US, "%d | %s | %s | %d | %d%n", it.id, it.name, it.category, it.quantity, it.reorderPoint);
+                }
+            }
+
+            private void searchItems() {
+                try {
+                    System.out.print("Words (or starts of words) in name or category: "); String q = sc.nextLine();
+                    SearchHits<Item> r = inv.searchItems(q, SEARCH_PAGE);
+                    System.out.println("ID | Name | Category | Qty | UnitPrice");
+                    for (Item it : r.hits) {
+                        System.out.printf(Locale.US, "%d | %s | %s | %d | %.2f%n", it.id, it.name, it.category, it.quantity, it.unitPrice);
+                    }
+                    printSearchSummary(r, inv.searchFootprint());
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void createItem() {
+                try {
                     System.out.print("Name: "); String name = sc.nextLine();
                     System.out.print("Category: "); String cat = sc.nextLine();
                     System.out.print("Quantity: "); int qty = Integer.parseInt(sc.nextLine());
                     System.out.print("Unit Price: "); double price = Double.parseDouble(sc.nextLine());
-                    Item it = inv.createItem(name, cat, qty, price);
+                    System.out.print("Reorder at (blank for none): "); String reorderS = sc.nextLine();
+                    Item it = inv.createItem(name, cat, qty, price, reorderS.isBlank() ? 0 : Integer.parseInt(reorderS.trim()));
                     System.out.println("Created item with ID: " + it.id);
                 } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
             }
 
-            private void updateItem() {
+            private void updateItem() {
+                try {
+                    System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
+                    Item it = inv.findById(id);
+                    if (it==null) { System.out.println("Not found"); return; }
+                    System.out.print("New name (blank to keep '"+it.name+"'): "); String name = sc.nextLine();
+                    System.out.print("New category (blank to keep '"+it.category+"'): "); String cat = sc.nextLine();
+                    System.out.print("New quantity (blank to keep '"+it.quantity+"'): "); String qtyS = sc.nextLine();
+                    System.out.print("New unit price (blank to keep '"+it.unitPrice+"'): "); String priceS = sc.nextLine();
+                    System.out.print("New reorder point, 0 for none (blank to keep '"+it.reorderPoint+"'): "); String reorderS = sc.nextLine();
+                    inv.updateItem(id,
+                            name.isBlank()?null:name,
+                            cat.isBlank()?null:cat,
+                            qtyS.isBlank()?null:Integer.parseInt(qtyS),
+                            priceS.isBlank()?null:Double.parseDouble(priceS),
+                            reorderS.isBlank()?null:Integer.parseInt(reorderS.trim()));
+                    System.out.println("Updated.");
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void deleteItem() {
+                try {
+                    System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
+                    boolean ok = inv.deleteItem(id);
+                    System.out.println(ok?"Deleted.":"Not found.");
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void txMenu() {
+                while (true) {
+                    System.out.println("\n-- Transactions --");
+                    System.out.println("1) Record IN (Purchase)");
+                    System.out.println("2) Record OUT (Sale)");
+                    System.out.println("3) List All");
+                    System.out.println("4) List by Date");
+                    System.out.println("5) Bulk Import from CSV");
+                    System.out.println("6) Orders");
+                    System.out.println("7) Search Notes");
+                    System.out.println("0) Back");
+                    System.out.print("Choose: ");
+                    String c = sc.nextLine().trim();
+                    switch (c) {
+                        case "1": recordTx(TxType.IN); break;
+                        case "2": recordTx(TxType.OUT); break;
+                        case "3": listTx(); break;
+                        case "4": listTxByDate(); break;
+                        case "5": bulkImport(); break;
+                        case "6": ordersMenu(); break;
+                        case "7": searchNotes(); break;
+                        case "0": return;
+                        default: System.out.println("Invalid option.");
+                    }
+                }
+            }
+
+            private void recordTx(TxType type) {
+                try {
+                    System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
+                    Item it = inv.findById(id);
+                    if (it==null) { System.out.println("Not found"); return; }
+                    System.out.print("Quantity: "); int qty = Integer.parseInt(sc.nextLine());
+                    System.out.print("Note (optional): "); String note = sc.nextLine();
+                    Txn t = tx.record(id, type, qty, note);
+                    System.out.println("Recorded TXN #" + t.id + ". Current stock for '"+it.name+"' = " + inv.findById(id).quantity);
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void listTx() { printTx(tx::forEach); }
+
+            private void listTxByDate() {
+                try {
+                    System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
+                    System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
+                    printTx(action -> tx.forEachByDate(from, to, action));
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void searchNotes() {
+                try {
+                    System.out.print("Words (or starts of words) in the note: "); String q = sc.nextLine();
+                    SearchHits<Txn> r = tx.searchNotes(q, SEARCH_PAGE);
+                    printTx(action -> r.hits.forEach(action));
+                    printSearchSummary(r, tx.searchFootprint());
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private static void printSearchSummary(SearchHits<?> r, TextIndex.Footprint index) {
+                System.out.printf(Locale.US, "%,d match%s%s, %.2f ms. Index: %s%n", r.total, r.total == 1 ? "" : "es",
+                        r.total > r.hits.size() ? " (first " + r.hits.size() + " shown)" : "", r.elapsedNanos / 1e6, index);
+            }
+
+            private void bulkImport() {
+                try {
+                    System.out.println("CSV columns: itemId,type,quantity,timestamp,note (header line required)");
+                    System.out.print("File path: "); Path file = Paths.get(sc.nextLine().trim());
+                    System.out.print("Reject bad rows only (r) or whole batch (A)? "); String m = sc.nextLine().trim();
+                    IngestMode mode = m.equalsIgnoreCase("r") ? IngestMode.REJECT_ROWS : IngestMode.ALL_OR_NOTHING;
+                    IngestResult r = tx.ingestCsv(file, mode);
+                    System.out.printf(Locale.US, "%d rows: %d accepted, %d rejected%s (%.0f rows/s)%n",
+                            r.rows, r.accepted.size(), r.rejected.size(), r.applied ? "" : ", nothing applied", r.rowsPerSecond());
+                    for (String why : r.rejected) System.out.println("  " + why);
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void ordersMenu() {
+                while (true) {
+                    System.out.println("\n-- Orders --");
+                    System.out.println("1) Place Order");
+                    System.out.println("2) Reserve Order");
+                    System.out.println("3) Open Reservations");
+                    System.out.println("4) Confirm Reservation");
+                    System.out.println("5) Cancel Reservation");
+                    System.out.println("0) Back");
+                    System.out.print("Choose: ");
+                    String c = sc.nextLine().trim();
+                    try {
+                        switch (c) {
+                            case "1": {
+                                List<OrderLine> lines = readOrderLines();
+                                if (lines.isEmpty()) break;
+                                System.out.print("Note (optional): "); String note = sc.nextLine();
+                                printOrder(orders.placeOrder(lines, note));
+                                break;
+                            }
+                            case "2": {
+                                List<OrderLine> lines = readOrderLines();
+                                if (lines.isEmpty()) break;
+                                System.out.print("Note (optional): "); String note = sc.nextLine();
+                                System.out.print("Hold for minutes [" + OrderService.DEFAULT_HOLD.toMinutes() + "]: "); String m = sc.nextLine().trim();
+                                Reservation r = orders.reserve(lines, note, m.isEmpty() ? null : Duration.ofMinutes(Long.parseLong(m)));
+                                System.out.println("Reserved as #" + r.id + " until " + r.expiresAt.withNano(0));
+                                break;
+                            }
+                            case "3":
+                                System.out.println("ID | Expires | Lines (item x qty) | Note");
+                                for (Reservation r : orders.openReservations()) {
+                                    StringBuilder sb = new StringBuilder();
+                                    for (OrderLine l : r.lines) sb.append(sb.length() == 0 ? "" : ", ").append(l.itemId).append(" x ").append(l.quantity);
+                                    System.out.printf("%d | %s | %s | %s%n", r.id, r.expiresAt.withNano(0), sb, r.note);
+                                }
+                                break;
+                            case "4":
+                                System.out.print("Reservation ID: ");
+                                printOrder(orders.confirm(Long.parseLong(sc.nextLine().trim())));
+                                break;
+                            case "5":
+                                System.out.print("Reservation ID: ");
+                                System.out.println(orders.cancel(Long.parseLong(sc.nextLine().trim())) ? "Cancelled." : "Not found");
+                                break;
+                            case "0": return;
+                            default: System.out.println("Invalid option.");
+                        }
+                    } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                }
+            }
+
+            // One "itemId qty" pair per line, ended by an empty line.
+            private List<OrderLine> readOrderLines() {
+                System.out.println("Enter one line per item as: itemId quantity (empty line to finish)");
+                List<OrderLine> lines = new ArrayList<>();
+                while (true) {
+                    System.out.print("  line " + (lines.size() + 1) + ": ");
+                    String in = sc.nextLine().trim();
+                    if (in.isEmpty()) return lines;
+                    String[] parts = in.split("\\s+");
+                    if (parts.length != 2) { System.out.println("  Expected: itemId quantity"); continue; }
+                    try { lines.add(new OrderLine(Long.parseLong(parts[0]), Integer.parseInt(parts[1]))); }
+                    catch (NumberFormatException e) { System.out.println("  Not a number: " + e.getMessage()); }
+                }
+            }
+
+            private void printOrder(List<Txn> txns) {
+                for (Txn t : txns)
+                    System.out.println("Recorded TXN #" + t.id + ": item " + t.itemId + " x " + t.quantity + ", stock now " + inv.findById(t.itemId).quantity);
+            }
+
+            private void printTx(Consumer<Consumer<? super TxnView>> rows) {
+                System.out.println("ID | Time | ItemId | Type | Qty | Note");
+                rows.accept(t -> System.out.printf("%d | %s | %d | %s | %d | %s%n", t.id(), t.timestamp(), t.itemId(), t.type(), t.quantity(), t.note()));
+            }
+
+            private void reportsMenu() {
+                while (true) {
+                    System.out.println("\n-- Reports --");
+                    System.out.println("1) Generate Stock Level Report (HTML)");
+                    System.out.println("2) Generate Transactions Report by Date (HTML)");
+                    System.out.println("3) Generate Movement Summary by Date (HTML)");
+                    System.out.println("4) Item Daily Movement");
+                    System.out.println("5) Category Analytics by Date (HTML)");
+                    System.out.println("6) Stock As Of Date");
+                    System.out.println("0) Back");
+                    System.out.print("Choose: ");
+                    String c = sc.nextLine().trim();
+                    switch (c) {
+                        case "1":
+                            Path p1 = reports.generateStockReportHtml("reports", askGzip());
+                            System.out.println("Saved: " + p1.toAbsolutePath());
+                            System.out.println("Open in browser and press Ctrl+P to print.");
+                            break;
+                        case "2":
+                            try {
+                                System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
+                                System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
+                                whenReady(reports.generateTransactionsReportAsync("reports", from, to, askGzip()));
+                            } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                            break;
+                        case "3":
+                            try {
+                                System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
+                                System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
+                                System.out.print("Top movers to show: "); int top = Integer.parseInt(sc.nextLine().trim());
+                                whenReady(reports.generateMovementSummaryAsync("reports", from, to, top, askGzip()));
+                            } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                            break;
+                        case "4": itemDailyMovement(); break;
+                        case "5":
+                            try {
+                                System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
+                                System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
+                                whenReady(reports.generateCategoryAnalyticsAsync("reports", from, to, askGzip()));
+                            } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                            break;
+                        case "6": stockAsOf(); break;
+                        case "0": return;
+                        default: System.out.println("Invalid option.");
+                    }
+                }
+            }
+
+            // Date-range reports can take a while over a long history, so they are written in
+            // the background and the menu comes straight back.
+            private void whenReady(CompletableFuture<Path> report) {
+                if (!report.isDone()) System.out.println("Generating in the background...");
+                report.whenComplete((p, e) -> {
+                    if (e == null) System.out.println("Report ready: " + p.toAbsolutePath() + " (open in browser and press Ctrl+P to print)");
+                    else System.out.println("Report failed: " + (e instanceof CompletionException && e.getCause() != null ? e.getCause() : e).getMessage());
+                });
+            }
+
+            // One item's quantity printed, or every item's as an HTML report.
+            private void stockAsOf() {
                 try {
-                    System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
-                    Item it = inv.findById(id);
-                    if (it==null) { System.out.println("Not found"); return; }
-                    System.out.print("New name (blank to keep '"+it.name+"'): "); String name = sc.nextLine();
-                    System.out.print("New category (blank to keep '"+it.category+"'): "); String cat = sc.nextLine();
-                    System.out.print("New quantity (blank to keep '"+it.quantity+"'): "); String qtyS = sc.nextLine();
-                    System.out.print("New unit price (blank to keep '"+it.unitPrice+"'): "); String priceS = sc.nextLine();
-                    inv.updateItem(id,
-                            name.isBlank()?null:name,
-                            cat.isBlank()?null:cat,
-                            qtyS.isBlank()?null:Integer.parseInt(qtyS),
-                            priceS.isBlank()?null:Double.parseDouble(priceS));
-                    System.out.println("Updated.");
+                    System.out.print("Date (yyyy-MM-dd): "); LocalDate day = LocalDate.parse(sc.nextLine().trim());
+                    System.out.print("Item ID (Enter for all items): "); String id = sc.nextLine().trim();
+                    if (id.isEmpty()) { whenReady(reports.generateStockAsOfAsync("reports", day, askGzip())); return; }
+                    Integer qty = tx.stockAsOf(Long.parseLong(id), day);
+                    System.out.println(qty == null ? "No stock recorded for item " + id + " on " + day + "." : "Item " + id + " had " + qty + " on hand at the end of " + day + ".");
                 } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
             }
 
-            private void deleteItem() {
+            private void itemDailyMovement() {
                 try {
                     System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
-                    boolean ok = inv.deleteItem(id);
-                    System.out.println(ok?"Deleted.":"Not found.");
+                    System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
+                    System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
+                    System.out.println("Date | IN Txns | IN Units | OUT Txns | OUT Units | Net");
+                    tx.rollup(from, to).dailyMovement(id, from, to).forEach((day, m) ->
+                            System.out.printf("%s | %d | %d | %d | %d | %d%n", day, m.inCount, m.inQty, m.outCount, m.outQty, m.netQty()));
                 } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
             }
 
-            private void txMenu() {
+            private void maintenanceMenu() {
                 while (true) {
-                    System.out.println("\n-- Transactions --");
-                    System.out.println("1) Record IN (Purchase)");
-                    System.out.println("2) Record OUT (Sale)");
-                    System.out.println("3) List All");
+                    System.out.println("\n-- Maintenance --");
+                    System.out.println("1) Write Binary Snapshot");
+                    System.out.println("2) Compact Item Journal");
+                    System.out.println("3) Transaction Segments");
                     System.out.println("0) Back");
                     System.out.print("Choose: ");
                     String c = sc.nextLine().trim();
                     switch (c) {
-                        case "1": recordTx(TxType.IN); break;
-                        case "2": recordTx(TxType.OUT); break;
-                        case "3": listTx(); break;
+                        case "1":
+                            try {
+                                writeSnapshot(store, users, inv, tx);
+                                System.out.println("Saved snapshot.bin under " + store.baseDir().toAbsolutePath());
+                            } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                            break;
+                        case "2":
+                            try { inv.compact(); System.out.println("Compacted."); }
+                            catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+                            break;
+                        case "3": listSegments(); break;
                         case "0": return;
                         default: System.out.println("Invalid option.");
                     }
                 }
             }
 
-            private void recordTx(TxType type) {
-                try {
-                    System.out.print("Item ID: "); long id = Long.parseLong(sc.nextLine());
-                    Item it = inv.findById(id);
-                    if (it==null) { System.out.println("Not found"); return; }
-                    System.out.print("Quantity: "); int qty = Integer.parseInt(sc.nextLine());
-                    System.out.print("Note (optional): "); String note = sc.nextLine();
-                    Txn t = tx.record(id, type, qty, note);
-                    System.out.println("Recorded TXN #" + t.id + ". Current stock for '"+it.name+"' = " + inv.findById(id).quantity);
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void listTx() {
-                System.out.println("ID | Time | ItemId | Type | Qty | Note");
-                for (Txn t : tx.listAll()) {
-                    System.out.printf("%d | %s | %d | %s | %d | %s%n", t.id, t.timestamp, t.itemId, t.type, t.quantity, t.note);
+            private void listSegments() {
+                System.out.println("Month | Rows | Ids | First | Last | In memory");
+                for (TxnSegment seg : store.txnSegments().values()) {
+                    System.out.printf(Locale.US, "%s | %d | %d-%d | %s | %s | %s%n", seg.month, seg.rows(), seg.minId(), seg.maxId(),
+                            seg.minTimestamp() == null ? "-" : seg.minTimestamp().format(CsvStore.TS),
+                            seg.maxTimestamp() == null ? "-" : seg.maxTimestamp().format(CsvStore.TS),
+                            seg.month.equals(tx.activeMonth()) ? "active" : tx.isLoaded(seg.month) ? "cached" : "no");
                 }
             }
 
-            private void reportsMenu() {
+            private void diagnosticsMenu() {
                 while (true) {
-                    System.out.println("\n-- Reports --");
-                    System.out.println("1) Generate Stock Level Report (HTML)");
-                    System.out.println("2) Generate Transactions Report by Date (HTML)");
+                    System.out.println("\n-- Diagnostics --  (metrics " + (Metrics.enabled() ? "on" : "off") + ")");
+                    System.out.println("1) Show Metrics");
+                    System.out.println("2) Turn Metrics " + (Metrics.enabled() ? "Off" : "On"));
+                    System.out.println("3) Reset Metrics");
+                    System.out.println("4) Start Periodic Dump");
+                    System.out.println("5) Stop Periodic Dump");
                     System.out.println("0) Back");
                     System.out.print("Choose: ");
                     String c = sc.nextLine().trim();
                     switch (c) {
-                        case "1":
-                            Path p1 = reports.generateStockReportHtml("reports");
-                            System.out.println("Saved: " + p1.toAbsolutePath());
-                            System.out.println("Open in browser and press Ctrl+P to print.");
-                            break;
-                        case "2":
+                        case "1": System.out.print(Metrics.dump()); break;
+                        case "2": Metrics.setEnabled(!Metrics.enabled()); break;
+                        case "3": Metrics.reset(); System.out.println("Reset."); break;
+                        case "4":
                             try {
-                                System.out.print("From date (yyyy-MM-dd): "); LocalDate from = LocalDate.parse(sc.nextLine().trim());
-                                System.out.print("To date   (yyyy-MM-dd): "); LocalDate to   = LocalDate.parse(sc.nextLine().trim());
-                                Path p2 = reports.generateTransactionsReportHtml("reports", from, to);
-                                System.out.println("Saved: " + p2.toAbsolutePath());
-                                System.out.println("Open in browser and press Ctrl+P to print.");
+                                System.out.print("Every how many seconds: "); long secs = Long.parseLong(sc.nextLine().trim());
+                                if (secs <= 0) throw new IllegalArgumentException("Period must be positive");
+                                Path file = store.baseDir().resolve("metrics.log");
+                                Metrics.startDump(file, secs);
+                                System.out.println("Dumping to " + file.toAbsolutePath() + " every " + secs + "s.");
                             } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
                             break;
+                        case "5": System.out.println(Metrics.stopDump() ? "Stopped." : "No dump running."); break;
                         case "0": return;
                         default: System.out.println("Invalid option.");
                     }
                 }
             }
 
+            private boolean askGzip() {
+                System.out.print("Compress with gzip for archiving? (y/N): ");
+                return sc.nextLine().trim().equalsIgnoreCase("y");
+            }
+
             private void usersMenu() {
                 while (true) {
                     System.out.println("\n-- Users --");
@@ -645,18 +6153,921 @@ import java.util.*;
             }
         }
 
+        // ====== HTTP API ======
+        // JSON over HTTP in front of the services, on the JDK's built-in server. Each request
+        // runs on its own virtual thread when the JVM has them (Java 21+) and on a cached pool
+        // otherwise. At most maxInFlight requests are served at once; the rest get an immediate
+        // 503 instead of queueing. Requests authenticate with a session token (Bearer) from
+        // POST /api/sessions, or with HTTP Basic on every request.
+        //
+        //   POST   /api/sessions                     Basic or {"username","password"} -> {"token"}
+        //   DELETE /api/sessions                     ends the Bearer session
+        //   GET    /api/items                        all items
+        //   POST   /api/items                        {"name","category","quantity","unitPrice","reorderPoint"?}
+        //   GET    /api/items/low-stock              items at or below their reorder point
+        //   GET    /api/items/search?q=&limit=       items by words of name or category
+        //   GET    /api/items/{id}
+        //   PUT    /api/items/{id}                   any of the create fields
+        //   DELETE /api/items/{id}
+        //   POST   /api/transactions                 {"itemId","type":"IN"|"OUT","quantity","note"}
+        //   GET    /api/transactions?from=&to=       yyyy-MM-dd, both inclusive
+        //   GET    /api/transactions/search?q=&limit=  by words of the note, newest first
+        //   GET    /api/orders                       open reservations
+        //   POST   /api/orders                       {"lines":[{"itemId","quantity"}],"note"?} sells now;
+        //                                            with "holdMinutes" reserves instead
+        //   GET    /api/orders/{id}                  an open reservation
+        //   DELETE /api/orders/{id}                  cancels it, releasing the stock
+        //   POST   /api/orders/{id}/confirm          sells what it holds
+        //   POST   /api/reports/stock                ?gzip=true to compress; ?asOf=yyyy-MM-dd for a past day's stock
+        //   POST   /api/reports/transactions?from=&to=
+        //   POST   /api/reports/analytics?from=&to=  per-category stock value and movement
+        static class ApiServer {
+            static final int DEFAULT_MAX_IN_FLIGHT = 256;
+            static final int DEFAULT_SEARCH_LIMIT = 100;
+
+            // The JDK server leaves Nagle's algorithm on, and a keep-alive client's delayed ACK
+            // then holds every small response back by ~40 ms. Read when the server class loads.
+            static {
+                if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+
+            private final UserService users;
+            private final InventoryService inv;
+            private final TransactionService tx;
+            private final OrderService orders;
+            private final ReportService reports;
+            private final String reportDir;
+            private final Semaphore inFlight;
+            private final ExecutorService executor;
+            private final HttpServer server;
+
+            ApiServer(UserService users, InventoryService inv, TransactionService tx, OrderService orders, ReportService reports,
+                      String reportDir, InetSocketAddress addr, int maxInFlight) {
+                this.users = users; this.inv = inv; this.tx = tx; this.orders = orders; this.reports = reports;
+                this.reportDir = reportDir;
+                this.inFlight = new Semaphore(maxInFlight);
+                this.executor = requestExecutor();
+                try { this.server = HttpServer.create(addr, 0); }
+                catch (IOException e) { throw new RuntimeException("Failed to open HTTP port: " + e.getMessage(), e); }
+                server.createContext("/api/", this::handle);
+                server.setExecutor(executor);
+            }
+
+            void start() { server.start(); }
+
+            void stop() {
+                server.stop(1);
+                executor.shutdown();
+            }
+
+            int port() { return server.getAddress().getPort(); }
+
+            // Virtual threads are looked up reflectively so the code still builds for Java 17.
+            private static ExecutorService requestExecutor() {
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    return Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "http-worker");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+
+            private void handle(HttpExchange ex) {
+                long t0 = Metrics.start();
+                try {
+                    if (!inFlight.tryAcquire()) {
+                        Metrics.inc(Metrics.HTTP_REJECTED);
+                        ex.getResponseHeaders().set("Retry-After", "1");
+                        send(ex, 503, error("Server busy"));
+                        return;
+                    }
+                    try {
+                        if (ex.getRequestURI().getPath().equals("/api/sessions")) sessions(ex);
+                        else if (authorized(ex)) route(ex);
+                        else throw unauthorized(ex);
+                    } catch (ApiException e) {
+                        send(ex, e.status, error(e.getMessage()));
+                    } catch (IllegalArgumentException | DateTimeParseException e) {
+                        send(ex, 400, error(e.getMessage()));
+                    } catch (RuntimeException e) {
+                        send(ex, 500, error("Internal error: " + e.getMessage()));
+                    } finally {
+                        inFlight.release();
+                    }
+                } catch (IOException e) {
+                    // client went away; nothing left to tell it
+                } finally {
+                    ex.close();
+                    Metrics.HTTP_REQUEST.stop(t0);
+                }
+            }
+
+            // A session token costs one map lookup; Basic credentials are hashed on every request.
+            private boolean authorized(HttpExchange ex) {
+                String token = bearerToken(ex);
+                if (token != null) return users.sessionUser(token) != null;
+                String[] cred = basicCredentials(ex);
+                return cred != null && users.authenticate(cred[0], cred[1]);
+            }
+
+            // POST logs in with Basic credentials or a {"username","password"} body and returns
+            // a token for "Authorization: Bearer"; DELETE with that header logs out.
+            private void sessions(HttpExchange ex) throws IOException {
+                String method = ex.getRequestMethod();
+                if (method.equals("POST")) {
+                    String[] cred = basicCredentials(ex);
+                    if (cred == null) {
+                        Map<String, Object> b = body(ex);
+                        cred = new String[]{requireText(b, "username"), requireText(b, "password")};
+                    }
+                    String token = users.login(cred[0], cred[1]);
+                    if (token == null) throw unauthorized(ex);
+                    send(ex, 201, "{\"token\":" + Json.quote(token) + ",\"expiresInSeconds\":" + users.sessionTtlSeconds() + "}");
+                } else if (method.equals("DELETE")) {
+                    String token = bearerToken(ex);
+                    if (token == null) throw unauthorized(ex);
+                    users.logout(token);
+                    send(ex, 204, null);
+                } else throw methodNotAllowed();
+            }
+
+            private static String bearerToken(HttpExchange ex) {
+                String h = ex.getRequestHeaders().getFirst("Authorization");
+                return h != null && h.regionMatches(true, 0, "Bearer ", 0, 7) ? h.substring(7).trim() : null;
+            }
+
+            private static String[] basicCredentials(HttpExchange ex) {
+                String h = ex.getRequestHeaders().getFirst("Authorization");
+                if (h == null || !h.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+                String cred;
+                try { cred = new String(Base64.getDecoder().decode(h.substring(6).trim()), StandardCharsets.UTF_8); }
+                catch (IllegalArgumentException e) { return null; }
+                int colon = cred.indexOf(':');
+                return colon > 0 ? new String[]{cred.substring(0, colon), cred.substring(colon + 1)} : null;
+            }
+
+            private static ApiException unauthorized(HttpExchange ex) {
+                ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"inventory\"");
+                return new ApiException(401, "Unauthorized");
+            }
+
+            private void route(HttpExchange ex) throws IOException {
+                String method = ex.getRequestMethod();
+                String[] path = ex.getRequestURI().getPath().substring("/api/".length()).split("/");
+                Map<String, String> query = query(ex);
+                switch (path[0]) {
+                    case "items":
+                        if (path.length == 1) {
+                            if (method.equals("GET")) { streamItems(ex, inv.listItems()); return; }
+                            if (method.equals("POST")) {
+                                Map<String, Object> b = body(ex);
+                                Integer reorder = optInt(b, "reorderPoint");
+                                Item it = inv.createItem(requireText(b, "name"), requireText(b, "category"),
+                                        requireInt(b, "quantity"), requireDouble(b, "unitPrice"), reorder == null ? 0 : reorder);
+                                send(ex, 201, itemJson(it));
+                                return;
+                            }
+                        } else if (path.length == 2 && path[1].equals("low-stock")) {
+                            if (method.equals("GET")) { streamItems(ex, inv.lowStockItems()); return; }
+                        } else if (path.length == 2 && path[1].equals("search")) {
+                            if (method.equals("GET")) {
+                                SearchHits<Item> r = inv.searchItems(requireParam(query, "q"), limitParam(query));
+                                StringBuilder sb = searchJson(r).append(",\"items\":[");
+                                for (int i = 0; i < r.hits.size(); i++) sb.append(i > 0 ? "," : "").append(itemJson(r.hits.get(i)));
+                                send(ex, 200, sb.append("]}").toString());
+                                return;
+                            }
+                        } else if (path.length == 2) {
+                            long id = parseId(path[1]);
+                            if (method.equals("GET")) { send(ex, 200, itemJson(found(inv.findById(id)))); return; }
+                            if (method.equals("PUT")) {
+                                Map<String, Object> b = body(ex);
+                                if (!inv.updateItem(id, optText(b, "name"), optText(b, "category"),
+                                        optInt(b, "quantity"), optDouble(b, "unitPrice"), optInt(b, "reorderPoint"))) throw notFound();
+                                send(ex, 200, itemJson(found(inv.findById(id))));
+                                return;
+                            }
+                            if (method.equals("DELETE")) {
+                                if (!inv.deleteItem(id)) throw notFound();
+                                send(ex, 204, null);
+                                return;
+                            }
+                        } else break;
+                        throw methodNotAllowed();
+                    case "transactions":
+                        if (path.length == 2 && path[1].equals("search")) {
+                            if (!method.equals("GET")) throw methodNotAllowed();
+                            SearchHits<Txn> r = tx.searchNotes(requireParam(query, "q"), limitParam(query));
+                            StringBuilder sb = searchJson(r).append(",\"transactions\":[");
+                            for (int i = 0; i < r.hits.size(); i++) txnJson(sb.append(i > 0 ? "," : ""), r.hits.get(i));
+                            send(ex, 200, sb.append("]}").toString());
+                            return;
+                        }
+                        if (path.length != 1) break;
+                        if (method.equals("POST")) {
+                            Map<String, Object> b = body(ex);
+                            TxType type = TxType.valueOf(requireText(b, "type").toUpperCase(Locale.ROOT));
+                            Txn t = tx.record(requireLong(b, "itemId"), type, requireInt(b, "quantity"), optText(b, "note"));
+                            send(ex, 201, txnJson(new StringBuilder(), t).toString());
+                            return;
+                        }
+                        if (method.equals("GET")) {
+                            LocalDate from = LocalDate.parse(requireParam(query, "from"));
+                            LocalDate to = LocalDate.parse(requireParam(query, "to"));
+                            streamTxns(ex, from, to);
+                            return;
+                        }
+                        throw methodNotAllowed();
+                    case "orders":
+                        if (path.length == 1) {
+                            if (method.equals("GET")) {
+                                StringBuilder sb = new StringBuilder("[");
+                                for (Reservation r : orders.openReservations()) {
+                                    if (sb.length() > 1) sb.append(',');
+                                    reservationJson(sb, r);
+                                }
+                                send(ex, 200, sb.append(']').toString());
+                                return;
+                            }
+                            if (method.equals("POST")) {
+                                Map<String, Object> b = body(ex);
+                                List<OrderLine> lines = orderLines(b);
+                                Integer holdMinutes = optInt(b, "holdMinutes");
+                                if (holdMinutes == null) {
+                                    send(ex, 201, txnsJson(orders.placeOrder(lines, optText(b, "note"))));
+                                } else {
+                                    Reservation r = orders.reserve(lines, optText(b, "note"), Duration.ofMinutes(holdMinutes));
+                                    send(ex, 201, reservationJson(new StringBuilder(), r).toString());
+                                }
+                                return;
+                            }
+                        } else if (path.length == 2) {
+                            long id = parseId(path[1]);
+                            if (method.equals("GET")) {
+                                Reservation r = orders.findReservation(id);
+                                if (r == null) throw notFound();
+                                send(ex, 200, reservationJson(new StringBuilder(), r).toString());
+                                return;
+                            }
+                            if (method.equals("DELETE")) {
+                                if (!orders.cancel(id)) throw notFound();
+                                send(ex, 204, null);
+                                return;
+                            }
+                        } else if (path.length == 3 && path[2].equals("confirm")) {
+                            long id = parseId(path[1]);
+                            if (!method.equals("POST")) throw methodNotAllowed();
+                            if (orders.findReservation(id) == null) throw notFound();
+                            send(ex, 200, txnsJson(orders.confirm(id)));
+                            return;
+                        } else break;
+                        throw methodNotAllowed();
+                    case "reports":
+                        if (path.length != 2) break;
+                        if (!method.equals("POST")) throw methodNotAllowed();
+                        boolean gzip = "true".equalsIgnoreCase(query.get("gzip"));
+                        Path out;
+                        if (path[1].equals("stock") && query.get("asOf") != null) out = reports.generateStockAsOfHtml(reportDir, LocalDate.parse(query.get("asOf")), gzip);
+                        else if (path[1].equals("stock")) out = reports.generateStockReportHtml(reportDir, gzip);
+                        else if (path[1].equals("transactions")) out = reports.generateTransactionsReportHtml(reportDir,
+                                LocalDate.parse(requireParam(query, "from")), LocalDate.parse(requireParam(query, "to")), gzip);
+                        else if (path[1].equals("analytics")) out = reports.generateCategoryAnalyticsHtml(reportDir,
+                                LocalDate.parse(requireParam(query, "from")), LocalDate.parse(requireParam(query, "to")), gzip);
+                        else break;
+                        send(ex, 201, "{\"path\":" + Json.quote(out.toAbsolutePath().toString()) + ",\"bytes\":" + Files.size(out) + "}");
+                        return;
+                    default:
+                        break;
+                }
+                throw notFound();
+            }
+
+            // List responses are written as they are produced, so their size is not bounded by
+            // a buffer.
+            private void streamItems(HttpExchange ex, List<Item> items) throws IOException {
+                try (Writer w = openStream(ex)) {
+                    w.write('[');
+                    for (int i = 0; i < items.size(); i++) {
+                        if (i > 0) w.write(',');
+                        w.write(itemJson(items.get(i)));
+                    }
+                    w.write(']');
+                }
+            }
+
+            // Months load as the listing reaches them, after the 200 has gone out. If one fails
+            // the body is left unfinished and the exception escapes the handler, so the server
+            // drops the connection and the client sees a broken response, not a short list.
+            private void streamTxns(HttpExchange ex, LocalDate from, LocalDate to) throws IOException {
+                Writer w = openStream(ex);
+                try {
+                    StringBuilder sb = new StringBuilder(256);
+                    boolean[] first = {true};
+                    w.write('[');
+                    tx.forEachByDate(from, to, t -> {
+                        sb.setLength(0);
+                        if (!first[0]) sb.append(',');
+                        first[0] = false;
+                        try { w.write(txnJson(sb, t).toString()); }
+                        catch (IOException e) { throw new UncheckedIOException(e); }
+                    });
+                    w.write(']');
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } catch (RuntimeException e) {
+                    throw new IOException("Transaction listing failed after the response started", e);
+                }
+                w.close();
+            }
+
+            private static Writer openStream(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.sendResponseHeaders(200, 0);
+                return new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024);
+            }
+
+            private static void send(HttpExchange ex, int status, String json) throws IOException {
+                if (json == null) { ex.sendResponseHeaders(status, -1); return; }
+                byte[] body = json.getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.sendResponseHeaders(status, body.length);
+                try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+            }
+
+            private static String itemJson(Item it) {
+                return "{\"id\":" + it.id + ",\"name\":" + Json.quote(it.name) + ",\"category\":" + Json.quote(it.category)
+                        + ",\"quantity\":" + it.quantity + ",\"unitPrice\":" + it.unitPrice + ",\"reorderPoint\":" + it.reorderPoint + "}";
+            }
+
+            private static StringBuilder txnJson(StringBuilder sb, TxnView t) {
+                sb.append("{\"id\":").append(t.id()).append(",\"itemId\":").append(t.itemId())
+                        .append(",\"type\":\"").append(t.type().name()).append("\",\"quantity\":").append(t.quantity())
+                        .append(",\"timestamp\":\"").append(t.timestamp()).append("\",\"note\":");
+                return Json.quote(sb, t.note()).append('}');
+            }
+
+            private static String txnsJson(List<Txn> txns) {
+                StringBuilder sb = new StringBuilder("{\"transactions\":[");
+                for (int i = 0; i < txns.size(); i++) {
+                    if (i > 0) sb.append(',');
+                    txnJson(sb, txns.get(i));
+                }
+                return sb.append("]}").toString();
+            }
+
+            private static StringBuilder reservationJson(StringBuilder sb, Reservation r) {
+                sb.append("{\"id\":").append(r.id).append(",\"expiresAt\":\"").append(r.expiresAt.withNano(0)).append("\",\"note\":");
+                Json.quote(sb, r.note).append(",\"lines\":[");
+                for (int i = 0; i < r.lines.size(); i++) {
+                    OrderLine l = r.lines.get(i);
+                    if (i > 0) sb.append(',');
+                    sb.append("{\"itemId\":").append(l.itemId).append(",\"quantity\":").append(l.quantity).append('}');
+                }
+                return sb.append("]}");
+            }
+
+            private static StringBuilder searchJson(SearchHits<?> r) {
+                return new StringBuilder("{\"total\":").append(r.total).append(",\"micros\":").append(r.elapsedNanos / 1000);
+            }
+
+            private static int limitParam(Map<String, String> query) {
+                String v = query.get("limit");
+                if (v == null) return DEFAULT_SEARCH_LIMIT;
+                try { return Integer.parseInt(v); }
+                catch (NumberFormatException e) { throw new IllegalArgumentException("limit must be a whole number"); }
+            }
+
+            private static String error(String message) { return "{\"error\":" + Json.quote(message) + "}"; }
+
+            private static Map<String, Object> body(HttpExchange ex) throws IOException {
+                try (InputStream in = ex.getRequestBody()) {
+                    return Json.parseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+
+            private static Map<String, String> query(HttpExchange ex) {
+                Map<String, String> out = new HashMap<>();
+                String q = ex.getRequestURI().getRawQuery();
+                if (q == null) return out;
+                for (String kv : q.split("&")) {
+                    int eq = kv.indexOf('=');
+                    if (eq <= 0) continue;
+                    out.put(URLDecoder.decode(kv.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(kv.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+                return out;
+            }
+
+            private static long parseId(String s) {
+                try { return Long.parseLong(s); }
+                catch (NumberFormatException e) { throw notFound(); }
+            }
+
+            private static Item found(Item it) {
+                if (it == null) throw notFound();
+                return it;
+            }
+
+            private static ApiException notFound() { return new ApiException(404, "Not found"); }
+
+            private static ApiException methodNotAllowed() { return new ApiException(405, "Method not allowed"); }
+
+            private static String requireParam(Map<String, String> q, String name) {
+                String v = q.get(name);
+                if (v == null) throw new IllegalArgumentException("Missing query parameter: " + name);
+                return v;
+            }
+
+            // "lines": [{"itemId": 1001, "quantity": 2}, ...]
+            private static List<OrderLine> orderLines(Map<String, Object> b) {
+                Object v = b.get("lines");
+                if (v == null) throw new IllegalArgumentException("Missing field: lines");
+                if (!(v instanceof List)) throw new IllegalArgumentException("lines must be an array");
+                List<OrderLine> out = new ArrayList<>();
+                for (Object o : (List<?>) v) {
+                    if (!(o instanceof Map)) throw new IllegalArgumentException("lines must hold objects");
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> line = (Map<String, Object>) o;
+                    out.add(new OrderLine(requireLong(line, "itemId"), requireInt(line, "quantity")));
+                }
+                return out;
+            }
+
+            private static String requireText(Map<String, Object> b, String field) {
+                String v = optText(b, field);
+                if (v == null) throw new IllegalArgumentException("Missing field: " + field);
+                return v;
+            }
+
+            private static long requireLong(Map<String, Object> b, String field) {
+                Long v = optLong(b, field);
+                if (v == null) throw new IllegalArgumentException("Missing field: " + field);
+                return v;
+            }
+
+            private static int requireInt(Map<String, Object> b, String field) {
+                Integer v = optInt(b, field);
+                if (v == null) throw new IllegalArgumentException("Missing field: " + field);
+                return v;
+            }
+
+            private static double requireDouble(Map<String, Object> b, String field) {
+                Double v = optDouble(b, field);
+                if (v == null) throw new IllegalArgumentException("Missing field: " + field);
+                return v;
+            }
+
+            private static String optText(Map<String, Object> b, String field) {
+                Object v = b.get(field);
+                if (v == null) return null;
+                if (!(v instanceof String)) throw new IllegalArgumentException(field + " must be a string");
+                return (String) v;
+            }
+
+            private static Long optLong(Map<String, Object> b, String field) {
+                Object v = b.get(field);
+                if (v == null) return null;
+                if (!(v instanceof Long)) throw new IllegalArgumentException(field + " must be a whole number");
+                return (Long) v;
+            }
+
+            private static Integer optInt(Map<String, Object> b, String field) {
+                Long v = optLong(b, field);
+                if (v == null) return null;
+                if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new IllegalArgumentException(field + " is out of range");
+                return v.intValue();
+            }
+
+            private static Double optDouble(Map<String, Object> b, String field) {
+                Object v = b.get(field);
+                if (v == null) return null;
+                if (!(v instanceof Number)) throw new IllegalArgumentException(field + " must be a number");
+                return ((Number) v).doubleValue();
+            }
+        }
+
+        static class ApiException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            final int status;
+            ApiException(int status, String message) { super(message); this.status = status; }
+        }
+
+        // Just enough JSON for the API: request objects in, hand-built documents out.
+        static class Json {
+            static String quote(String s) { return quote(new StringBuilder(), s).toString(); }
+
+            static StringBuilder quote(StringBuilder sb, String s) {
+                if (s == null) return sb.append("null");
+                sb.append('"');
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    switch (c) {
+                        case '"': sb.append("\\\""); break;
+                        case '\\': sb.append("\\\\"); break;
+                        case '\n': sb.append("\\n"); break;
+                        case '\r': sb.append("\\r"); break;
+                        case '\t': sb.append("\\t"); break;
+                        default:
+                            if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                            else sb.append(c);
+                    }
+                }
+                return sb.append('"');
+            }
+
+            // One object whose values are strings, numbers (Long or Double), booleans, null,
+            // nested objects (Map) or arrays (List).
+            static Map<String, Object> parseObject(String text) {
+                Parser p = new Parser(text);
+                p.skipSpace();
+                if (p.pos >= text.length() || text.charAt(p.pos) != '{') throw p.fail("Expected '{'");
+                @SuppressWarnings("unchecked")
+                Map<String, Object> out = (Map<String, Object>) p.value();
+                p.skipSpace();
+                if (p.pos != text.length()) throw p.fail("Trailing characters");
+                return out;
+            }
+
+            private static class Parser {
+                static final int MAX_DEPTH = 32; // a request body nested deeper is an attack, not an order
+
+                final String s;
+                int pos;
+                int depth;
+
+                Parser(String s) { this.s = s; }
+
+                Object value() {
+                    skipSpace();
+                    if (pos >= s.length()) throw fail("Unexpected end");
+                    char c = s.charAt(pos);
+                    if (c == '"') return string();
+                    if (c == '{') return object();
+                    if (c == '[') return array();
+                    if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+                    if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+                    if (s.startsWith("null", pos)) { pos += 4; return null; }
+                    int start = pos;
+                    while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+                    String num = s.substring(start, pos);
+                    try {
+                        if (num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0) return Long.parseLong(num);
+                        return Double.parseDouble(num);
+                    } catch (NumberFormatException e) { throw fail("Bad value"); }
+                }
+
+                Map<String, Object> object() {
+                    Map<String, Object> out = new LinkedHashMap<>();
+                    expect('{');
+                    if (++depth > MAX_DEPTH) throw fail("Nested too deep");
+                    if (!consume('}')) {
+                        do {
+                            String key = string();
+                            expect(':');
+                            out.put(key, value());
+                        } while (consume(','));
+                        expect('}');
+                    }
+                    depth--;
+                    return out;
+                }
+
+                List<Object> array() {
+                    List<Object> out = new ArrayList<>();
+                    expect('[');
+                    if (++depth > MAX_DEPTH) throw fail("Nested too deep");
+                    if (!consume(']')) {
+                        do out.add(value()); while (consume(','));
+                        expect(']');
+                    }
+                    depth--;
+                    return out;
+                }
+
+                String string() {
+                    expect('"');
+                    StringBuilder sb = new StringBuilder();
+                    while (true) {
+                        if (pos >= s.length()) throw fail("Unterminated string");
+                        char c = s.charAt(pos++);
+                        if (c == '"') return sb.toString();
+                        if (c != '\\') { sb.append(c); continue; }
+                        if (pos >= s.length()) throw fail("Unterminated string");
+                        char e = s.charAt(pos++);
+                        switch (e) {
+                            case 'n': sb.append('\n'); break;
+                            case 'r': sb.append('\r'); break;
+                            case 't': sb.append('\t'); break;
+                            case 'b': sb.append('\b'); break;
+                            case 'f': sb.append('\f'); break;
+                            case 'u':
+                                if (pos + 4 > s.length()) throw fail("Bad escape");
+                                try { sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16)); }
+                                catch (NumberFormatException ex) { throw fail("Bad escape"); }
+                                pos += 4;
+                                break;
+                            default: sb.append(e);
+                        }
+                    }
+                }
+
+                void expect(char c) {
+                    if (!consume(c)) throw fail("Expected '" + c + "'");
+                }
+
+                boolean consume(char c) {
+                    skipSpace();
+                    if (pos < s.length() && s.charAt(pos) == c) { pos++; return true; }
+                    return false;
+                }
+
+                void skipSpace() {
+                    while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+                }
+
+                IllegalArgumentException fail(String why) {
+                    return new IllegalArgumentException("Invalid JSON at " + pos + ": " + why);
+                }
+            }
+        }
+
+        // ====== TOOLS ======
+        // Concurrency stress check: many threads move stock on a small catalogue (so items are
+        // contended) and the final state is checked against what each thread saw succeed.
+        // Run with: java NamanDigital.InventoryManagement --stress [threads] [opsPerThread]
+        static class StressTest {
+            static void run(String[] args) throws Exception {
+                int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 4;
+                int ops = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+                int itemCount = 16, initialQty = 500;
+                Path dir = Files.createTempDirectory("inventory-stress");
+                CsvStore store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+                store.txnDurability = Durability.OS_BUFFERED;
+                store.initIfNeeded();
+                InventoryService inv = new InventoryService(store);
+                TransactionService tx = new TransactionService(store, inv);
+                long[] ids = new long[itemCount];
+                for (int i = 0; i < itemCount; i++) ids[i] = inv.createItem("stress-" + i, "stress", initialQty, 1.0).id;
+
+                // net[i] = sum of successful deltas on ids[i]; rejected = insufficient-stock refusals
+                AtomicLongArray net = new AtomicLongArray(itemCount);
+                AtomicLong recorded = new AtomicLong(), rejected = new AtomicLong();
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                long t0 = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(pool.submit(() -> {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            int k = rnd.nextInt(itemCount);
+                            boolean out = rnd.nextInt(100) < 70;   // mostly sales, so stock runs out
+                            int qty = 1 + rnd.nextInt(20);
+                            try {
+                                tx.record(ids[k], out ? TxType.OUT : TxType.IN, qty, "stress");
+                                net.addAndGet(k, out ? -qty : qty);
+                                recorded.incrementAndGet();
+                            } catch (IllegalArgumentException e) {
+                                rejected.incrementAndGet();
+                            }
+                            if (inv.findById(ids[k]).quantity < 0) throw new IllegalStateException("Negative stock on " + ids[k]);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> f : futures) f.get();
+                pool.shutdown();
+                long elapsed = System.nanoTime() - t0;
+
+                List<String> failures = new ArrayList<>();
+                for (int i = 0; i < itemCount; i++) {
+                    int expected = initialQty + (int) net.get(i);
+                    int actual = inv.findById(ids[i]).quantity;
+                    if (actual != expected) failures.add("item " + ids[i] + ": expected " + expected + ", got " + actual);
+                }
+                List<Txn> all = tx.listAll();
+                if (all.size() != recorded.get()) failures.add("txn count " + all.size() + " != recorded " + recorded.get());
+                if (new HashSet<>(all.stream().map(t -> t.id).collect(Collectors.toList())).size() != all.size()) failures.add("duplicate txn ids");
+                int[] replayed = new int[itemCount];
+                Arrays.fill(replayed, initialQty);
+                Map<Long, Integer> slot = new HashMap<>();
+                for (int i = 0; i < itemCount; i++) slot.put(ids[i], i);
+                for (Txn t : all) replayed[slot.get(t.itemId)] += t.type == TxType.IN ? t.quantity : -t.quantity;
+                for (int i = 0; i < itemCount; i++) {
+                    if (replayed[i] != inv.findById(ids[i]).quantity) failures.add("txn history of item " + ids[i] + " does not add up to its stock");
+                }
+                store.close();
+
+                // what is on disk must agree too
+                CsvStore reopened = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+                InventoryService inv2 = new InventoryService(reopened);
+                if (reopened.loadTxns().size() != all.size()) failures.add("the transaction log has a different row count");
+                for (long id : ids) {
+                    if (inv2.findById(id).quantity != inv.findById(id).quantity) failures.add("persisted stock of item " + id + " differs");
+                }
+                reopened.close();
+
+                System.out.printf(Locale.US, "%d threads x %d ops: %d recorded, %d rejected in %.1f ms (%.0f ops/s)%n",
+                        threads, ops, recorded.get(), rejected.get(), elapsed / 1e6, threads * (double) ops / (elapsed / 1e9));
+                if (failures.isEmpty()) System.out.println("PASS");
+                else {
+                    failures.forEach(f -> System.out.println("FAIL: " + f));
+                    System.exit(1);
+                }
+            }
+        }
+
+        // Load test for the HTTP API: starts a server on a loopback port over a throwaway data
+        // directory and drives it with concurrent clients for a fixed time, 70% item lookups,
+        // 25% recorded transactions and 5% one-day transaction listings, all on one session.
+        // Run with: java NamanDigital.InventoryManagement --loadtest [clients] [seconds] [maxInFlight]
+        static class LoadTest {
+            static void run(String[] args) throws Exception {
+                int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+                int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                int maxInFlight = args.length > 3 ? Integer.parseInt(args[3]) : ApiServer.DEFAULT_MAX_IN_FLIGHT;
+                int itemCount = 1_000;
+                Path dir = Files.createTempDirectory("inventory-loadtest");
+                CsvStore store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+                store.txnDurability = Durability.GROUP_FSYNC;
+                store.initIfNeeded();
+                UserService users = new UserService(store);
+                InventoryService inv = new InventoryService(store);
+                TransactionService tx = new TransactionService(store, inv, TxnLayout.COLUMNAR);
+                ReportService reports = new ReportService(inv, tx);
+                long firstId = 0;
+                for (int i = 0; i < itemCount; i++) {
+                    long id = inv.createItem("load-" + i, "load", 1_000_000, 1.0).id;
+                    if (i == 0) firstId = id;
+                }
+                ApiServer server = new ApiServer(users, inv, tx, new OrderService(inv, tx), reports, dir.resolve("reports").toString(),
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxInFlight);
+                server.start();
+
+                String base = "http://127.0.0.1:" + server.port() + "/api/";
+                String today = LocalDate.now().toString();
+                ExecutorService clientIo = Executors.newFixedThreadPool(4);
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientIo).build();
+                HttpResponse<String> login = client.send(HttpRequest.newBuilder(URI.create(base + "sessions"))
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"admin\",\"password\":\"admin123\"}")).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (login.statusCode() != 201) throw new IllegalStateException("Login failed: " + login.body());
+                String auth = "Bearer " + Json.parseObject(login.body()).get("token");
+                Metrics.Timer latency = Metrics.timer("loadtest.request");
+                latency.reset();
+                LongAdder ok = new LongAdder(), busy = new LongAdder(), failed = new LongAdder();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+                long first = firstId;
+                ExecutorService pool = Executors.newFixedThreadPool(clients);
+                List<Future<?>> futures = new ArrayList<>();
+                long t0 = System.nanoTime();
+                for (int c = 0; c < clients; c++) {
+                    futures.add(pool.submit(() -> {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        while (System.nanoTime() < deadline) {
+                            long id = first + rnd.nextInt(itemCount);
+                            int kind = rnd.nextInt(100);
+                            HttpRequest.Builder req = HttpRequest.newBuilder().header("Authorization", auth);
+                            if (kind < 70) req.uri(URI.create(base + "items/" + id)).GET();
+                            else if (kind < 95) req.uri(URI.create(base + "transactions")).POST(HttpRequest.BodyPublishers.ofString(
+                                    "{\"itemId\":" + id + ",\"type\":\"" + (kind % 2 == 0 ? "IN" : "OUT") + "\",\"quantity\":1,\"note\":\"load\"}"));
+                            else req.uri(URI.create(base + "transactions?from=" + today + "&to=" + today)).GET();
+                            long start = System.nanoTime();
+                            try {
+                                HttpResponse<byte[]> res = client.send(req.build(), HttpResponse.BodyHandlers.ofByteArray());
+                                latency.record(System.nanoTime() - start);
+                                if (res.statusCode() < 300) ok.increment();
+                                else if (res.statusCode() == 503) busy.increment();
+                                else failed.increment();
+                            } catch (IOException e) {
+                                failed.increment();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) f.get();
+                long elapsed = System.nanoTime() - t0;
+                pool.shutdown();
+                clientIo.shutdown();
+                server.stop();
+                store.close();
+
+                long total = latency.count();
+                System.out.printf(Locale.US, "%d clients, %d s, max %d in flight: %d requests (%d ok, %d busy, %d failed)%n",
+                        clients, seconds, maxInFlight, total, ok.sum(), busy.sum(), failed.sum());
+                System.out.printf(Locale.US, "%.0f req/s, latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                        total / (elapsed / 1e9), latency.percentileNanos(0.50) / 1e6, latency.percentileNanos(0.99) / 1e6,
+                        latency.percentileNanos(0.999) / 1e6, latency.maxNanos() / 1e6);
+                System.out.print("\nServer side:\n" + Metrics.dump());
+                if (failed.sum() > 0) System.exit(1);
+            }
+        }
+
+        // Heap footprint per transaction of each in-memory layout, measured on synthetic rows
+        // shaped like a loaded log (every note its own String, as the CSV loader produces).
+        // Run with: java NamanDigital.InventoryManagement --footprint [rows]
+        static class FootprintCheck {
+            static void run(String[] args) {
+                int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+                String[] notes = {"", "walk-in sale", "restock from supplier", "returned, damaged", "online order"};
+                LocalDateTime base = LocalDateTime.of(2024, 1, 1, 8, 0);
+                for (TxnLayout layout : TxnLayout.values()) {
+                    long before = usedHeap();
+                    TxnTable table = TxnTable.create(layout);
+                    for (int i = 0; i < rows; i++) {
+                        table.add(new Txn(5001L + i, 1001 + i % 5000, i % 3 == 0 ? TxType.IN : TxType.OUT, 1 + i % 20,
+                                base.plusSeconds(i * 13L), new String(notes[i % notes.length])));
+                    }
+                    long used = usedHeap() - before;
+                    System.out.printf(Locale.US, "%-9s %,d rows: %,d bytes total, %.1f bytes/txn%n", layout, table.size(), used, used / (double) rows);
+                }
+            }
+
+            private static long usedHeap() {
+                Runtime rt = Runtime.getRuntime();
+                for (int i = 0; i < 4; i++) System.gc();
+                return rt.totalMemory() - rt.freeMemory();
+            }
+        }
+
         // ====== MAIN ======
         public static void main(String[] args) {
-            CsvStore store = new CsvStore("data");
+            if (args.length > 0 && args[0].equals("--stress")) {
+                try { StressTest.run(args); }
+                catch (Exception e) { throw new RuntimeException(e); }
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--footprint")) { FootprintCheck.run(args); return; }
+            if (args.length > 0 && args[0].equals("--loadtest")) {
+                try { LoadTest.run(args); }
+                catch (Exception e) { throw new RuntimeException(e); }
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--reshard")) { reshard(args); return; }
+            Store store = Store.open("data", ItemPersistence.JOURNAL, s -> s.txnDurability = Durability.GROUP_FSYNC);
             store.initIfNeeded();
+            Metrics.registerMBean();
 
             UserService userService = new UserService(store);
             InventoryService invService = new InventoryService(store);
-            TransactionService txService = new TransactionService(store, invService);
+            TransactionService txService = new TransactionService(store, invService, TxnLayout.COLUMNAR);
             ReportService reportService = new ReportService(invService, txService);
+            ChangeFeed feed = new ChangeFeed(store.baseDir().resolve(ChangeFeed.FILE), Durability.GROUP_FSYNC);
+            invService.publishTo(feed);
+            txService.publishTo(feed);
+            OrderService orderService = new OrderService(invService, txService);
+
+            if (args.length > 0 && args[0].equals("--serve")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+                int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : ApiServer.DEFAULT_MAX_IN_FLIGHT;
+                ApiServer api = new ApiServer(userService, invService, txService, orderService, reportService, "reports", new InetSocketAddress(port), maxInFlight);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    api.stop();
+                    orderService.close();
+                    feed.close();
+                    shutdown(store, userService, invService, txService);
+                }));
+                api.start();
+                System.out.println("Serving the inventory API on port " + api.port() + " (Ctrl+C to stop)");
+                return;
+            }
 
-            ConsoleApp app = new ConsoleApp(userService, invService, txService, reportService);
+            ConsoleApp app = new ConsoleApp(store, userService, invService, txService, orderService, reportService);
             app.run();
+            orderService.close();
+            feed.close();
+            shutdown(store, userService, invService, txService);
+        }
+
+        // --reshard <fromDir> <toDir> <shards>
+        static void reshard(String[] args) {
+            if (args.length != 4) {
+                System.out.println("Usage: --reshard <fromDir> <toDir> <shards>");
+                return;
+            }
+            Store source = Store.open(args[1], ItemPersistence.JOURNAL, s -> {});
+            long t0 = System.nanoTime();
+            try {
+                ShardedStore.reshard(source, Paths.get(args[2]), Integer.parseInt(args[3]), s -> {});
+            } finally { source.close(); }
+            System.out.printf(Locale.US, "Wrote %s shards of %s to %s in %.1f s; move it to data/ to use it%n",
+                    args[3], args[1], args[2], (System.nanoTime() - t0) / 1e9);
+        }
+
+        static void shutdown(Store store, UserService users, InventoryService inv, TransactionService tx) {
+            inv.compact();
+            writeSnapshot(store, users, inv, tx);
+            store.close();
+        }
+
+        static void writeSnapshot(Store store, UserService users, InventoryService inv, TransactionService tx) {
+            store.writeSnapshot(inv.listItems(), tx.activeMonth(), tx::forEachActive, users.listUsers());
         }
     }
 
@@ -0,0 +1,71 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// InventoryAnalytics.byCategory over the middle three years of the dataset on pools of 1 to 8
+/// workers, against the sequential reference. Every month is loaded into the segment cache
+/// during setup, so this measures the fold rather than CSV parsing; on a machine with at least
+/// `threads` cores the parallel time should drop roughly in proportion. Setup also checks that
+/// both paths give the same result.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class AnalyticsBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"COLUMNAR", "OBJECTS"})
+    public String layout;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private static final LocalDate FROM = Datasets.START.toLocalDate().plusYears(1);
+    private static final LocalDate TO = FROM.plusYears(3).minusDays(1);
+
+    private CsvStore store;
+    private ForkJoinPool pool;
+    private InventoryAnalytics analytics;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Path dir = Datasets.prepare(rows);
+        store = new CsvStore(dir.toString());
+        store.preferSnapshot = false;
+        InventoryService inventory = new InventoryService(store);
+        TransactionService txns = new TransactionService(store, inventory, TxnLayout.valueOf(layout));
+        txns.segmentCacheSize = 64;
+        txns.forEachByDate(Datasets.START.toLocalDate(), txns.lastMonth().atEndOfMonth(), t -> {});
+        pool = new ForkJoinPool(threads);
+        analytics = new InventoryAnalytics(inventory, txns, pool);
+        if (!analytics.byCategory(FROM, TO).equals(analytics.byCategorySequential(FROM, TO))) {
+            throw new IllegalStateException("parallel and sequential analytics disagree");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        store.close();
+    }
+
+    @Benchmark
+    public InventoryAnalytics.Result parallel() {
+        return analytics.byCategory(FROM, TO);
+    }
+
+    @Benchmark
+    public InventoryAnalytics.Result sequential() {
+        return analytics.byCategorySequential(FROM, TO);
+    }
+}
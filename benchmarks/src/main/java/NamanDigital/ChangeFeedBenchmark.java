@@ -0,0 +1,71 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// What the change feed adds to TransactionService.record: the same OS-buffered record as
+/// TransactionBenchmark with the feed off and on (an ITEM and a TXN event per call), and the
+/// cost of publishing one event by itself. The feed writes in the background, so this is the
+/// caller's share only.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeFeedBenchmark {
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean feed;
+
+    private Path dir;
+    private CsvStore store;
+    private ChangeFeed changes;
+    private TransactionService txns;
+    private int items;
+    private long flips;
+    private final Txn sample = new Txn(1, Datasets.FIRST_ITEM_ID, TxType.OUT, 3, LocalDateTime.of(2024, 5, 1, 12, 0), "bench");
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, true);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        store.compactEvery = Integer.MAX_VALUE;
+        store.txnDurability = Durability.OS_BUFFERED;
+        InventoryService inventory = new InventoryService(store);
+        txns = new TransactionService(store, inventory, TxnLayout.COLUMNAR);
+        changes = new ChangeFeed(dir.resolve(ChangeFeed.FILE), Durability.OS_BUFFERED);
+        if (feed) {
+            inventory.publishTo(changes);
+            txns.publishTo(changes);
+        }
+        items = Datasets.itemCount(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        changes.close();
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public Txn record() {
+        TxType type = (flips++ & 1) == 0 ? TxType.OUT : TxType.IN;
+        return txns.record(Datasets.FIRST_ITEM_ID + ThreadLocalRandom.current().nextInt(items), type, 1, "bench");
+    }
+
+    @Benchmark
+    public void publish() {
+        changes.txnRecorded(sample);
+    }
+}
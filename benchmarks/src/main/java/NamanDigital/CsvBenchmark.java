@@ -0,0 +1,57 @@
+package NamanDigital;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// The CSV tokenizer on the row shapes the loaders see: a plain transaction, one with a quoted
+/// note, and an item row. `tokenize` only splits; `parse` builds the Txn or Item as the loaders
+/// do, and `format` writes the row back. gc.alloc.rate.norm is the allocation per row.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvBenchmark {
+    @Param({"plain", "quoted", "item"})
+    public String shape;
+
+    private final CsvTokenizer tokens = new CsvTokenizer();
+    private byte[] row;
+    private Txn txn;
+    private Item item;
+
+    @Setup
+    public void setUp() {
+        String line;
+        switch (shape) {
+            case "plain": line = "1234567,104211,OUT,3,2024-03-05 14:22:09,walk-in sale"; break;
+            case "quoted": line = "1234567,104211,IN,12,2024-03-05 14:22:09,\"restock, supplier \"\"A\"\"\""; break;
+            default: line = "104211,Item 104211,Category 17,1000000,412.5"; break;
+        }
+        row = line.getBytes(StandardCharsets.UTF_8);
+        txn = new Txn(1234567, 104211, TxType.IN, 12, LocalDateTime.of(2024, 3, 5, 14, 22, 9), "restock, supplier \"A\"");
+        item = new Item(104211, "Item 104211", "Category 17", 1_000_000, 412.5);
+    }
+
+    @Benchmark
+    public int tokenize() {
+        return tokens.reset(row, 0, row.length).fields();
+    }
+
+    @Benchmark
+    public Object parse() {
+        tokens.reset(row, 0, row.length);
+        return shape.equals("item") ? CsvStore.parseItem(tokens, 0) : CsvStore.parseTxn(tokens);
+    }
+
+    @Benchmark
+    public String format() {
+        return shape.equals("item") ? CsvStore.itemLine(item) : CsvStore.txnLine(txn);
+    }
+}
@@ -0,0 +1,134 @@
+package NamanDigital;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import NamanDigital.InventoryManagement.*;
+
+/// Synthetic data directories for the benchmarks. A dataset of `rows` transactions comes with
+/// max(1000, rows / 10) items and covers five years of history starting 2020-01-01, so about 61
+/// monthly transaction segments. Datasets are generated once under java.io.tmpdir and reused by
+/// later forks and runs.
+final class Datasets {
+    static final LocalDateTime START = LocalDateTime.of(2020, 1, 1, 0, 0);
+    static final long SPAN_SECONDS = 5L * 365 * 24 * 3600;
+    static final long FIRST_ITEM_ID = 1001;
+
+    private Datasets() {}
+
+    static int itemCount(int rows) { return Math.max(1000, rows / 10); }
+
+    static Path prepare(int rows) {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "inventory-bench-" + rows);
+        Path done = dir.resolve(".complete");
+        try {
+            if (!Files.exists(done)) generate(dir, rows);
+            // the log is written as one file and split into segments like a real upgrade;
+            // this also splits datasets left by earlier runs
+            CsvStore store = new CsvStore(dir.toString());
+            store.txnSegments();
+            Files.deleteIfExists(store.txnsCsv.resolveSibling(store.txnsCsv.getFileName() + ".migrated"));
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void generate(Path dir, int rows) throws IOException {
+        Files.createDirectories(dir);
+        CsvStore store = new CsvStore(dir.toString());
+        Files.deleteIfExists(store.itemsCsv);
+        Files.deleteIfExists(store.txnsCsv);
+        Files.deleteIfExists(store.usersCsv);
+        if (Files.exists(store.txnDir)) delete(store.txnDir);
+        store.initIfNeeded();
+        Random rnd = new Random(rows);
+        int items = itemCount(rows);
+        try (BufferedWriter w = Files.newBufferedWriter(store.itemsCsv, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            for (int i = 0; i < items; i++) {
+                w.write(CsvStore.itemLine(new Item(FIRST_ITEM_ID + i, "Item " + i, "Category " + (i % 40),
+                        1_000_000, (100 + rnd.nextInt(99_900)) / 100.0)));
+                w.newLine();
+            }
+        }
+        String[] notes = {"", "walk-in sale", "restock, supplier A", "online order", "returned \"damaged\""};
+        long step = Math.max(1, SPAN_SECONDS / rows);
+        try (BufferedWriter w = Files.newBufferedWriter(store.txnsCsv, StandardCharsets.UTF_8)) {
+            w.write(CsvStore.TXNS_HEADER);
+            w.newLine();
+            for (int i = 0; i < rows; i++) {
+                TxType type = rnd.nextInt(10) < 3 ? TxType.IN : TxType.OUT;
+                w.write(CsvStore.txnLine(new Txn(5001L + i, FIRST_ITEM_ID + rnd.nextInt(items), type, 1 + rnd.nextInt(20),
+                        START.plusSeconds(i * step), notes[rnd.nextInt(notes.length)])));
+                w.newLine();
+            }
+        }
+        Files.createFile(dir.resolve(".complete"));
+    }
+
+    /// The `rows` dataset resharded `shards` ways, built once next to it.
+    static Path sharded(int rows, int shards) {
+        Path src = prepare(rows);
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "inventory-bench-" + rows + "-shards-" + shards);
+        Path done = dir.resolve(".complete");
+        try {
+            if (!Files.exists(done)) {
+                if (Files.exists(dir)) delete(dir);
+                Store source = Store.open(src.toString(), ItemPersistence.SNAPSHOT, s -> s.preferSnapshot = false);
+                try { ShardedStore.reshard(source, dir, shards, s -> {}); }
+                finally { source.close(); }
+                Files.createFile(done);
+            }
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /// A private, writable copy of a dataset for benchmarks that mutate it. Without
+    /// `withTxns` the copy gets an empty transaction log.
+    static Path copyOf(int rows, boolean withTxns) {
+        Path src = prepare(rows);
+        try {
+            Path dst = Files.createTempDirectory("inventory-bench-work-");
+            Files.copy(src.resolve("items.csv"), dst.resolve("items.csv"));
+            Files.copy(src.resolve("users.csv"), dst.resolve("users.csv"));
+            if (withTxns) copyDir(src.resolve("transactions"), dst.resolve("transactions"));
+            new CsvStore(dst.toString()).initIfNeeded();
+            return dst;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void copyDir(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+            for (Path f : files) Files.copy(f, to.resolve(f.getFileName()));
+        }
+    }
+
+    static void delete(Path dir) {
+        if (dir == null) return;
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// InventoryService lookups and stock adjustments (journal persistence, so adjustStock
+/// includes its item write) on a private copy of the catalogue.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InventoryBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    private Path dir;
+    private CsvStore store;
+    private InventoryService inventory;
+    private int items;
+    private long flips;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, false);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        store.compactEvery = Integer.MAX_VALUE; // keep snapshot rewrites out of the measurement
+        inventory = new InventoryService(store);
+        items = Datasets.itemCount(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public Item findById() {
+        return inventory.findById(Datasets.FIRST_ITEM_ID + ThreadLocalRandom.current().nextInt(items));
+    }
+
+    @Benchmark
+    public void adjustStock() {
+        inventory.adjustStock(Datasets.FIRST_ITEM_ID + ThreadLocalRandom.current().nextInt(items), (flips++ & 1) == 0 ? 1 : -1);
+    }
+}
@@ -0,0 +1,54 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// Cold loading of items.csv and the transaction log (binary snapshot disabled): loadSegment is
+/// one month, what startup reads; loadTxns and loadTxnsSequential read every segment. loadTxns
+/// picks the mapped parallel loader for large segments; loadTxnsSequential is the line-by-line
+/// path.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class LoadBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    private CsvStore store;
+
+    @Setup
+    public void setUp() {
+        Path dir = Datasets.prepare(rows);
+        store = new CsvStore(dir.toString());
+        store.preferSnapshot = false;
+    }
+
+    @Benchmark
+    public List<Item> loadItems() {
+        return store.loadItems();
+    }
+
+    @Benchmark
+    public List<Txn> loadSegment() {
+        return store.loadSegment(YearMonth.from(Datasets.START).plusMonths(30));
+    }
+
+    @Benchmark
+    public List<Txn> loadTxns() {
+        return store.loadTxns();
+    }
+
+    @Benchmark
+    public List<Txn> loadTxnsSequential() {
+        return store.loadTxnsSequential();
+    }
+}
@@ -0,0 +1,83 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// A customer order of `lines` different items: placed as one order (one item write and one
+/// log write), reserved and then confirmed, and, for comparison, recorded the old way as one
+/// TransactionService.record call per line. With GROUP_FSYNC the order should cost about one
+/// commit whatever its size, and the per-line recording one commit per line.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderBenchmark {
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"1", "5", "20"})
+    public int lines;
+
+    @Param({"OS_BUFFERED", "GROUP_FSYNC"})
+    public String durability; // Durability is package-private, which JMH's generated code can't see
+
+    private Path dir;
+    private CsvStore store;
+    private TransactionService txns;
+    private OrderService orders;
+    private int items;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, true);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        store.compactEvery = Integer.MAX_VALUE;
+        store.txnDurability = Durability.valueOf(durability);
+        InventoryService inventory = new InventoryService(store);
+        txns = new TransactionService(store, inventory, TxnLayout.COLUMNAR);
+        orders = new OrderService(inventory, txns);
+        items = Datasets.itemCount(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        orders.close();
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public List<Txn> placeOrder() {
+        return orders.placeOrder(order(), "bench");
+    }
+
+    @Benchmark
+    public List<Txn> reserveConfirm() {
+        return orders.confirm(orders.reserve(order(), "bench", null).id);
+    }
+
+    @Benchmark
+    public Txn recordEachLine() {
+        Txn last = null;
+        for (OrderLine l : order()) last = txns.record(l.itemId, TxType.OUT, l.quantity, "bench");
+        return last;
+    }
+
+    // `lines` distinct items, one unit each. Every item starts with a million units.
+    private List<OrderLine> order() {
+        int first = ThreadLocalRandom.current().nextInt(items);
+        List<OrderLine> out = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) out.add(new OrderLine(Datasets.FIRST_ITEM_ID + (first + i * 37) % items, 1));
+        return out;
+    }
+}
@@ -0,0 +1,69 @@
+package NamanDigital;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// Both ReportService generators: the full stock report and a one-week transactions report.
+/// Each generated file is deleted right away so the output directory stays small. Every month
+/// fits in the segment cache, as in TransactionBenchmark.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ReportBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    private Path outDir;
+    private CsvStore store;
+    private ReportService reports;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = new CsvStore(Datasets.prepare(rows).toString());
+        store.preferSnapshot = false;
+        InventoryService inventory = new InventoryService(store);
+        TransactionService txns = new TransactionService(store, inventory, TxnLayout.COLUMNAR);
+        txns.segmentCacheSize = 64;
+        reports = new ReportService(inventory, txns);
+        outDir = Files.createTempDirectory("inventory-bench-reports-");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Datasets.delete(outDir);
+    }
+
+    @Benchmark
+    public long stockReport() {
+        return consume(reports.generateStockReportHtml(outDir.toString()));
+    }
+
+    @Benchmark
+    public long transactionsReport() {
+        LocalDate from = Datasets.START.toLocalDate().plusDays(ThreadLocalRandom.current().nextInt(5 * 365 - 7));
+        return consume(reports.generateTransactionsReportHtml(outDir.toString(), from, from.plusDays(6)));
+    }
+
+    private static long consume(Path report) {
+        try {
+            long size = Files.size(report);
+            Files.delete(report);
+            return size;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
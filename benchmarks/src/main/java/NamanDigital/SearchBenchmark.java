@@ -0,0 +1,83 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// Word and prefix searches over item names and categories ("Item 123", "Category 7") and
+/// over transaction notes, where a handful of notes repeat across the whole history, so
+/// "online order" matches a fifth of it. The note index is built during setup, and
+/// the heap both indexes take is printed then. Searches should stay in milliseconds at 10M
+/// transactions; a common note costs most, since its matches are counted in full.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    private static final int LIMIT = 50;
+
+    private Path dir;
+    private CsvStore store;
+    private InventoryService inventory;
+    private TransactionService txns;
+    private int items;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, true);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        inventory = new InventoryService(store);
+        txns = new TransactionService(store, inventory, TxnLayout.COLUMNAR);
+        txns.segmentCacheSize = 128;
+        txns.searchNotes("sale", 1);
+        items = Datasets.itemCount(rows);
+        System.out.println("\nitem index: " + inventory.searchFootprint() + "; note index: " + txns.searchFootprint());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public SearchHits<Item> itemByName() {
+        return inventory.searchItems("item " + ThreadLocalRandom.current().nextInt(items), LIMIT);
+    }
+
+    // about ten numbers start with it, each a word of its own
+    @Benchmark
+    public SearchHits<Item> itemByPrefix() {
+        return inventory.searchItems("ite " + ThreadLocalRandom.current().nextInt(items / 10), LIMIT);
+    }
+
+    @Benchmark
+    public SearchHits<Item> itemsInCategory() {
+        return inventory.searchItems("category " + ThreadLocalRandom.current().nextInt(40), LIMIT);
+    }
+
+    @Benchmark
+    public SearchHits<Txn> notesCommon() {
+        return txns.searchNotes("online order", LIMIT);
+    }
+
+    @Benchmark
+    public SearchHits<Txn> notesPrefix() {
+        return txns.searchNotes("supp", LIMIT);
+    }
+
+    @Benchmark
+    public SearchHits<Txn> notesNoMatch() {
+        return txns.searchNotes("damaged online", LIMIT);
+    }
+}
@@ -0,0 +1,57 @@
+package NamanDigital;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// Cold loads through a ShardedStore (binary snapshots disabled), which reads its shards in
+/// parallel: all items, one month, and every month in turn. With one shard this is the
+/// single-directory cost plus the merge.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ShardedLoadBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private Store store;
+
+    @Setup
+    public void setUp() {
+        store = Store.open(Datasets.sharded(rows, shards).toString(), ItemPersistence.SNAPSHOT, s -> s.preferSnapshot = false);
+        store.txnSegments();
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public List<Item> loadItems() {
+        return store.loadItems();
+    }
+
+    @Benchmark
+    public List<Txn> loadSegment() {
+        return store.loadSegment(YearMonth.from(Datasets.START).plusMonths(30));
+    }
+
+    @Benchmark
+    public int loadAllMonths() {
+        int n = 0;
+        for (YearMonth month : new ArrayList<>(store.txnSegments().keySet())) n += store.loadSegment(month).size();
+        return n;
+    }
+}
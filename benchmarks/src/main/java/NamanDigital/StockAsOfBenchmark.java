@@ -0,0 +1,76 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// TransactionService.stockAsOf for a random day of the dataset's five years, for every item
+/// and for one, against walking back from current stock through every later transaction (what
+/// a query costs without checkpoints). Checkpoints are worked out during setup, on a private
+/// copy of the dataset; every month is cached, so this measures the walk rather than CSV
+/// parsing. stockAsOf should stay flat as the history gets longer, the full walk shouldn't.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StockAsOfBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    private static final int DAYS = 5 * 365;
+
+    private Path dir;
+    private CsvStore store;
+    private TransactionService txns;
+    private int items;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, true);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        InventoryService inventory = new InventoryService(store);
+        txns = new TransactionService(store, inventory, TxnLayout.COLUMNAR);
+        txns.segmentCacheSize = 128;
+        txns.checkpointCacheSize = 128;
+        txns.forEachByDate(Datasets.START.toLocalDate(), txns.lastMonth().atEndOfMonth(), t -> {});
+        txns.stockAsOf(Datasets.START.toLocalDate());
+        items = Datasets.itemCount(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public StockLevels stockAsOf() {
+        return txns.stockAsOf(randomDay());
+    }
+
+    @Benchmark
+    public Integer itemStockAsOf() {
+        return txns.stockAsOf(Datasets.FIRST_ITEM_ID + ThreadLocalRandom.current().nextInt(items), randomDay());
+    }
+
+    // per-item net units since the day; the dataset's item ids run from FIRST_ITEM_ID without gaps
+    @Benchmark
+    public int[] fullWalk() {
+        int[] net = new int[items];
+        txns.forEachByDate(randomDay().plusDays(1), txns.lastMonth().atEndOfMonth(),
+                t -> net[(int) (t.itemId() - Datasets.FIRST_ITEM_ID)] += t.type() == TxType.IN ? t.quantity() : -t.quantity());
+        return net;
+    }
+
+    private static LocalDate randomDay() {
+        return Datasets.START.toLocalDate().plusDays(ThreadLocalRandom.current().nextInt(DAYS));
+    }
+}
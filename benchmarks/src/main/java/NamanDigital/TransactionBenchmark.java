@@ -0,0 +1,65 @@
+package NamanDigital;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import NamanDigital.InventoryManagement.*;
+
+/// TransactionService.record (stock change + OS-buffered log append) and one-day listByDate
+/// queries, for both in-memory layouts, on a private copy of the dataset. The segment cache is
+/// big enough for every month, so after warm-up listByDate measures the query, not segment loads.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"OBJECTS", "COLUMNAR"})
+    public String layout;
+
+    private Path dir;
+    private CsvStore store;
+    private TransactionService txns;
+    private int items;
+    private long flips;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Datasets.copyOf(rows, true);
+        store = new CsvStore(dir.toString(), ItemPersistence.JOURNAL);
+        store.preferSnapshot = false;
+        store.compactEvery = Integer.MAX_VALUE;
+        store.txnDurability = Durability.OS_BUFFERED;
+        InventoryService inventory = new InventoryService(store);
+        txns = new TransactionService(store, inventory, TxnLayout.valueOf(layout));
+        txns.segmentCacheSize = 64;
+        items = Datasets.itemCount(rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public Txn record() {
+        TxType type = (flips++ & 1) == 0 ? TxType.OUT : TxType.IN;
+        return txns.record(Datasets.FIRST_ITEM_ID + ThreadLocalRandom.current().nextInt(items), type, 1, "bench");
+    }
+
+    @Benchmark
+    public List<Txn> listByDate() {
+        LocalDate day = Datasets.START.toLocalDate().plusDays(ThreadLocalRandom.current().nextInt(5 * 365));
+        return txns.listByDate(day, day);
+    }
+}